@@ -14,15 +14,27 @@ import org.slf4j.LoggerFactory;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Optional;
 
 public final class CliMain {
     public static void main(String[] args) {
         CommandLineParser parser = new DefaultParser();
         try {
             var commandLine = parser.parse(CliOptions.OPTIONS, args);
+            var maxActiveDirectories = Optional.ofNullable((Number) commandLine.getParsedOptionValue("a"));
+            var dailyRequestBudget = Optional.ofNullable((Number) commandLine.getParsedOptionValue("q"));
             Application.builder()
                     .addModule(() -> DependenciesModule.builder().build())
-                    .addModule(() -> new UploadPhotosModule(1000))
+                    .addModule(() -> {
+                        var builder = UploadPhotosModule.builder()
+                                .withMemoryMappedStateStore(commandLine.hasOption('m'))
+                                .withContentDeduplication(commandLine.hasOption('d'))
+                                .withFullRescan(commandLine.hasOption('f'))
+                                .withCachedFileRecheck(commandLine.hasOption('c'));
+                        maxActiveDirectories.ifPresent(count -> builder.withMaxActiveDirectories(count.intValue()));
+                        dailyRequestBudget.ifPresent(count -> builder.withDailyRequestBudget(count.longValue()));
+                        return builder.build();
+                    })
                     .addModule(ResourceBundleModule::new)
                     .addModule(() -> new CliModule(commandLine))
                     .build()
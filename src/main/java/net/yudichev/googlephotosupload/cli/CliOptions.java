@@ -15,6 +15,46 @@ public final class CliOptions {
             .addOption(Option.builder("n")
                     .longOpt("no-resume")
                     .desc("Forget previous state and force re-uploading all files")
+                    .build())
+            .addOption(Option.builder("m")
+                    .longOpt("memory-mapped-state")
+                    .desc("Keep the upload state in a memory-mapped file instead of in memory; " +
+                            "uses less memory for very large libraries")
+                    .build())
+            .addOption(Option.builder("d")
+                    .longOpt("deduplicate")
+                    .desc("Do not upload files whose content is identical to an already uploaded file, " +
+                            "add the existing media item to the album instead")
+                    .build())
+            .addOption(Option.builder("f")
+                    .longOpt("full-rescan")
+                    .desc("Read every directory again instead of reusing the results of the previous scan " +
+                            "for directories that have not been modified since")
+                    .build())
+            .addOption(Option.builder("c")
+                    .longOpt("recheck-cached-files")
+                    .desc("Read the attributes of every file in directories whose contents are reused from the previous scan, " +
+                            "to pick up files modified in place while not watching")
+                    .build())
+            .addOption(Option.builder("a")
+                    .longOpt("max-active-directories")
+                    .hasArg()
+                    .argName("COUNT")
+                    .type(Number.class)
+                    .desc("Maximum number of directories to upload at the same time (default 32)")
+                    .build())
+            .addOption(Option.builder("q")
+                    .longOpt("daily-request-budget")
+                    .hasArg()
+                    .argName("COUNT")
+                    .type(Number.class)
+                    .desc("Number of API requests, not counting uploads of media bytes, to spread over each day, " +
+                            "so that a long run does not use up the daily quota (default: no budget)")
+                    .build())
+            .addOption(Option.builder("w")
+                    .longOpt("watch")
+                    .desc("Keep running after the upload and upload files as they are created or modified " +
+                            "under the root directory, until stopped")
                     .build());
 
     private CliOptions() {
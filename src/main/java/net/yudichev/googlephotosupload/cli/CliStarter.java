@@ -22,24 +22,46 @@ final class CliStarter extends BaseLifecycleComponent {
     private final ApplicationLifecycleControl applicationLifecycleControl;
     private final ResourceBundle resourceBundle;
     private final boolean resume;
+    private final boolean watch;
+    private final DirectoryWatcher directoryWatcher;
 
     @Inject
     CliStarter(CommandLine commandLine,
                Uploader uploader,
                ApplicationLifecycleControl applicationLifecycleControl,
-               ResourceBundle resourceBundle) {
+               ResourceBundle resourceBundle,
+               DirectoryWatcher directoryWatcher) {
         rootDir = Paths.get(commandLine.getOptionValue('r'));
         resume = !commandLine.hasOption('n');
+        watch = commandLine.hasOption('w');
         this.uploader = checkNotNull(uploader);
         this.applicationLifecycleControl = checkNotNull(applicationLifecycleControl);
         this.resourceBundle = checkNotNull(resourceBundle);
+        this.directoryWatcher = checkNotNull(directoryWatcher);
     }
 
     @Override
     protected void doStart() {
         logger.info(resourceBundle.getString("googleStorageWarning"));
-        uploader.upload(rootDir, resume)
-                .whenComplete(logErrorOnFailure(logger, "Failed"))
-                .whenComplete((ignored1, ignored2) -> applicationLifecycleControl.initiateShutdown());
+        if (watch) {
+            directoryWatcher.watch(rootDir, () -> uploader.upload(rootDir, resume))
+                    .whenComplete(logErrorOnFailure(logger, "Failed"))
+                    .whenComplete((ignored, e) -> {
+                        if (e == null) {
+                            logger.info("Watching {} for changes until stopped", rootDir);
+                        } else {
+                            applicationLifecycleControl.initiateShutdown();
+                        }
+                    });
+        } else {
+            uploader.upload(rootDir, resume)
+                    .whenComplete(logErrorOnFailure(logger, "Failed"))
+                    .whenComplete((ignored1, ignored2) -> applicationLifecycleControl.initiateShutdown());
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        directoryWatcher.close();
     }
 }
@@ -0,0 +1,181 @@
+package net.yudichev.googlephotosupload.cli;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.yudichev.googlephotosupload.core.PreferencesSupplier;
+import net.yudichev.googlephotosupload.core.Uploader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.FileVisitResult.SKIP_SUBTREE;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static net.yudichev.jiotty.common.lang.MoreThrowables.asUnchecked;
+import static net.yudichev.jiotty.common.lang.MoreThrowables.getAsUnchecked;
+
+/**
+ * Watches the root directory tree for created and modified entries and uploads them once their directory has had no new
+ * events for {@link #DEFAULT_DEBOUNCE_DELAY}, as copying a file usually produces a series of events. Batches are uploaded one at
+ * a time; events that arrive meanwhile are queued by the watch service.
+ */
+final class DirectoryWatcher implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryWatcher.class);
+    private static final Duration DEFAULT_DEBOUNCE_DELAY = Duration.ofSeconds(5);
+    private static final Duration POLL_INTERVAL = Duration.ofSeconds(1);
+
+    private final Uploader uploader;
+    private final PreferencesSupplier preferencesSupplier;
+    private final Duration debounceDelay;
+    private final Map<Path, Set<Path>> changedPathsByDirectory = new HashMap<>();
+    private final Map<Path, Long> lastEventNanosByDirectory = new HashMap<>();
+    private WatchService watchService;
+
+    @Inject
+    DirectoryWatcher(Uploader uploader,
+                     PreferencesSupplier preferencesSupplier) {
+        this(uploader, preferencesSupplier, DEFAULT_DEBOUNCE_DELAY);
+    }
+
+    DirectoryWatcher(Uploader uploader,
+                     PreferencesSupplier preferencesSupplier,
+                     Duration debounceDelay) {
+        this.uploader = checkNotNull(uploader);
+        this.preferencesSupplier = checkNotNull(preferencesSupplier);
+        this.debounceDelay = checkNotNull(debounceDelay);
+    }
+
+    /**
+     * Registers the whole tree before starting the initial upload, so that no change made during it is missed, and starts
+     * uploading changes once it has succeeded.
+     *
+     * @return the initial upload
+     */
+    CompletableFuture<Void> watch(Path rootDir, Supplier<CompletableFuture<Void>> initialUpload) {
+        checkState(watchService == null, "Already watching");
+        watchService = getAsUnchecked(() -> rootDir.getFileSystem().newWatchService());
+        asUnchecked(() -> registerTree(rootDir));
+        var initialUploadFuture = initialUpload.get();
+        new ThreadFactoryBuilder()
+                .setNameFormat("directory-watcher")
+                .setDaemon(true)
+                .build()
+                .newThread(() -> run(rootDir, initialUploadFuture))
+                .start();
+        return initialUploadFuture;
+    }
+
+    @Override
+    public void close() {
+        if (watchService != null) {
+            asUnchecked(watchService::close);
+        }
+    }
+
+    private void run(Path rootDir, CompletableFuture<Void> initialUploadFuture) {
+        try {
+            while (true) {
+                var key = watchService.poll(POLL_INTERVAL.toMillis(), MILLISECONDS);
+                if (key != null) {
+                    handleEvents(key);
+                }
+                if (initialUploadFuture.isDone() && !initialUploadFuture.isCompletedExceptionally()) {
+                    uploadSettledChanges(rootDir);
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            logger.info("Stopped watching {}", rootDir);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handleEvents(WatchKey key) {
+        var directory = (Path) key.watchable();
+        var changedPaths = changedPathsByDirectory.computeIfAbsent(directory, ignored -> new HashSet<>());
+        for (var event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // some events were lost, so the directory is uploaded as a whole
+                changedPaths.add(directory);
+            } else {
+                var path = directory.resolve((Path) event.context());
+                changedPaths.add(path);
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, NOFOLLOW_LINKS)) {
+                    try {
+                        registerTree(path);
+                    } catch (IOException e) {
+                        logger.warn("Failed to watch new directory {}", path, e);
+                    }
+                }
+            }
+        }
+        lastEventNanosByDirectory.put(directory, System.nanoTime());
+        if (!key.reset()) {
+            logger.debug("No longer watching {}", directory);
+        }
+    }
+
+    private void uploadSettledChanges(Path rootDir) {
+        var now = System.nanoTime();
+        Set<Path> settledChangedPaths = new HashSet<>();
+        for (var iterator = lastEventNanosByDirectory.entrySet().iterator(); iterator.hasNext(); ) {
+            var entry = iterator.next();
+            if (now - entry.getValue() >= debounceDelay.toNanos()) {
+                iterator.remove();
+                settledChangedPaths.addAll(changedPathsByDirectory.remove(entry.getKey()));
+            }
+        }
+        if (!settledChangedPaths.isEmpty()) {
+            logger.info("Uploading {} created or modified path(s)", settledChangedPaths.size());
+            try {
+                uploader.uploadChanges(rootDir, settledChangedPaths).join();
+            } catch (RuntimeException e) {
+                // these changes will be picked up by the next full upload
+                logger.error("Failed to upload changes", e);
+            }
+        }
+    }
+
+    private void registerTree(Path directory) throws IOException {
+        var preferences = preferencesSupplier.get();
+        Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (preferences.anyMatch(dir)) {
+                    return SKIP_SUBTREE;
+                }
+                dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+                return CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                logger.debug("Not watching {}", file, exc);
+                return CONTINUE;
+            }
+        });
+    }
+}
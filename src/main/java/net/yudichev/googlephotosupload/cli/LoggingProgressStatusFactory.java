@@ -21,6 +21,7 @@ final class LoggingProgressStatusFactory implements ProgressStatusFactory {
     public ProgressStatus create(String name, Optional<Integer> totalCount) {
         return new ProgressStatus() {
             private final Lock lock = new ReentrantLock();
+            private Optional<Integer> total = totalCount;
             private int successCount;
             private int failureCount;
 
@@ -40,6 +41,14 @@ final class LoggingProgressStatusFactory implements ProgressStatusFactory {
                 });
             }
 
+            @Override
+            public void updateTotal(int totalCount) {
+                inLock(lock, () -> {
+                    total = Optional.of(totalCount);
+                    log();
+                });
+            }
+
             @Override
             public void onBackoffDelay(long backoffDelayMs) {
                 if (backoffDelayMs > BACKOFF_DELAY_MS_BEFORE_NOTICE_APPEARS) {
@@ -62,8 +71,8 @@ final class LoggingProgressStatusFactory implements ProgressStatusFactory {
             }
 
             private void log() {
-                inLock(lock, () -> totalCount.ifPresentOrElse(
-                        totalCount -> logger.info("{}: progress {}%", name, (successCount + failureCount) * 100 / totalCount),
+                inLock(lock, () -> total.ifPresentOrElse(
+                        totalCount -> logger.info("{}: progress {}%", name, totalCount == 0 ? 100 : (successCount + failureCount) * 100 / totalCount),
                         () -> logger.info("{}: completed {}", name, successCount + failureCount)));
             }
         };
@@ -0,0 +1,143 @@
+package net.yudichev.googlephotosupload.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Lets a task into the delegate only once it holds a permit, which it returns when done, so that the number of tasks
+ * queued or running in the delegate is bounded. A task without a permit waits in the {@link AsyncSemaphore}, rather
+ * than running on the submitting thread, which is often a future completion thread or the UI thread. Work
+ * {@link #withPermit(Supplier) admitted} with a permit of its own holds it from the moment it submits its task until it
+ * completes, so that no more work is in flight than the pool has room for.
+ */
+final class AdmissionControlledExecutorService extends AbstractExecutorService implements TaskAdmission, UploadAdmissionMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionControlledExecutorService.class);
+
+    private final ExecutorService delegate;
+    private final AsyncSemaphore semaphore;
+    private final AsyncSemaphore admission;
+    private final AtomicLong rejectionCount = new AtomicLong();
+
+    AdmissionControlledExecutorService(ExecutorService delegate, int permits) {
+        this.delegate = checkNotNull(delegate);
+        semaphore = new AsyncSemaphore(permits);
+        admission = new AsyncSemaphore(permits);
+    }
+
+    void setPermits(int permits) {
+        semaphore.setPermits(permits);
+        if (!delegate.isShutdown()) {
+            admission.setPermits(permits);
+        }
+    }
+
+    @Override
+    public <T> CompletableFuture<T> withPermit(Supplier<CompletableFuture<T>> task) {
+        return admission.acquire().thenCompose(ignored -> {
+            CompletableFuture<T> taskFuture;
+            try {
+                taskFuture = task.get();
+            } catch (RuntimeException e) {
+                admission.release();
+                throw e;
+            }
+            return taskFuture.whenComplete((result, e) -> admission.release());
+        });
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        checkNotNull(command);
+        if (delegate.isShutdown()) {
+            rejectionCount.incrementAndGet();
+            throw new RejectedExecutionException("Executor shut down: " + delegate);
+        }
+        semaphore.acquire().thenRun(() -> {
+            try {
+                delegate.execute(() -> {
+                    try {
+                        command.run();
+                    } finally {
+                        semaphore.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                semaphore.release();
+                rejectionCount.incrementAndGet();
+                logger.warn("Dropped task as the executor was shut down while it waited for a permit: {}", command);
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+        letWaitingWorkThrough();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        var tasks = delegate.shutdownNow();
+        letWaitingWorkThrough();
+        return tasks;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return semaphore.queueDepth();
+    }
+
+    @Override
+    public int getAvailablePermits() {
+        return semaphore.availablePermits();
+    }
+
+    @Override
+    public double getAverageWaitMillis() {
+        return semaphore.averageWaitMillis();
+    }
+
+    @Override
+    public long getRejectionCount() {
+        return rejectionCount.get();
+    }
+
+    @Override
+    public int getAdmissionQueueDepth() {
+        return admission.queueDepth();
+    }
+
+    /**
+     * Once the executor is shut down, waiting work is let through, so that its tasks are rejected rather than left
+     * waiting for permits that tasks dropped from the pool never return.
+     */
+    private void letWaitingWorkThrough() {
+        admission.setPermits(Integer.MAX_VALUE);
+    }
+}
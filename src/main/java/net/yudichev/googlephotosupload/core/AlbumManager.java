@@ -2,11 +2,13 @@ package net.yudichev.googlephotosupload.core;
 
 import net.yudichev.jiotty.connector.google.photos.GooglePhotosAlbum;
 
-import java.util.List;
-import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 
 interface AlbumManager {
-    CompletableFuture<Map<String, GooglePhotosAlbum>> listAlbumsByTitle(List<AlbumDirectory> albumDirectories,
-                                                                        Map<String, List<GooglePhotosAlbum>> cloudAlbumsByTitle);
+    /**
+     * @return the cloud album to upload the directory's files to, created or merged from duplicates if needed; empty for
+     * the root directory
+     */
+    CompletableFuture<Optional<GooglePhotosAlbum>> albumFor(AlbumDirectory albumDirectory, ProgressStatus progressStatus);
 }
@@ -16,7 +16,6 @@ import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
-import java.util.function.Function;
 import java.util.function.LongConsumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -24,7 +23,6 @@ import java.util.stream.IntStream;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Throwables.getCausalChain;
 import static com.google.common.collect.ImmutableList.toImmutableList;
-import static com.google.common.collect.ImmutableMap.toImmutableMap;
 import static java.lang.Math.min;
 import static java.util.concurrent.CompletableFuture.completedFuture;
 import static net.yudichev.googlephotosupload.core.Bindings.Backpressured;
@@ -37,7 +35,7 @@ final class AlbumManagerImpl extends BaseLifecycleComponent implements AlbumMana
     private final GooglePhotosClient googlePhotosClient;
     private final Provider<ExecutorService> executorServiceProvider;
     private final CloudOperationHelper cloudOperationHelper;
-    private final ProgressStatusFactory progressStatusFactory;
+    private final CloudAlbumsProvider cloudAlbumsProvider;
     private final ResourceBundle resourceBundle;
 
     private volatile ExecutorService executorService;
@@ -46,12 +44,12 @@ final class AlbumManagerImpl extends BaseLifecycleComponent implements AlbumMana
     AlbumManagerImpl(GooglePhotosClient googlePhotosClient,
                      @Backpressured Provider<ExecutorService> executorServiceProvider,
                      CloudOperationHelper cloudOperationHelper,
-                     ProgressStatusFactory progressStatusFactory,
+                     CloudAlbumsProvider cloudAlbumsProvider,
                      ResourceBundle resourceBundle) {
         this.googlePhotosClient = checkNotNull(googlePhotosClient);
         this.executorServiceProvider = checkNotNull(executorServiceProvider);
         this.cloudOperationHelper = checkNotNull(cloudOperationHelper);
-        this.progressStatusFactory = checkNotNull(progressStatusFactory);
+        this.cloudAlbumsProvider = checkNotNull(cloudAlbumsProvider);
         this.resourceBundle = checkNotNull(resourceBundle);
     }
 
@@ -61,27 +59,16 @@ final class AlbumManagerImpl extends BaseLifecycleComponent implements AlbumMana
     }
 
     @Override
-    public CompletableFuture<Map<String, GooglePhotosAlbum>> listAlbumsByTitle(List<AlbumDirectory> albumDirectories,
-                                                                               Map<String, List<GooglePhotosAlbum>> cloudAlbumsByTitle) {
+    public CompletableFuture<Optional<GooglePhotosAlbum>> albumFor(AlbumDirectory albumDirectory, ProgressStatus progressStatus) {
         checkStarted();
-        // root directory is excluded from progress as it does not need to be reconciled
-        var reconcilableAlbumCount = albumDirectories.size() - 1;
-        logger.info("Reconciling {} albums(s) with Google Photos, may take a bit of time...", reconcilableAlbumCount);
-        var progressStatus = progressStatusFactory.create(
-                String.format(resourceBundle.getString("albumManagerProgressStatusTitlePattern"), reconcilableAlbumCount),
-                Optional.of(reconcilableAlbumCount));
-        return albumDirectories.stream()
-                .map(albumDirectory -> albumDirectory.albumTitle()
-                        .map(albumTitle -> reconcile(cloudAlbumsByTitle, albumTitle, albumDirectory.path(), progressStatus, progressStatus::onBackoffDelay)
-                                .whenComplete((album, e) -> progressStatus.incrementSuccess())))
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .collect(toFutureOfList())
-                .<Map<String, GooglePhotosAlbum>>thenApply(googlePhotosAlbums -> googlePhotosAlbums.stream()
-                        .collect(toImmutableMap(
-                                GooglePhotosAlbum::getTitle,
-                                Function.identity())))
-                .whenComplete((ignored, e) -> progressStatus.close(e == null));
+        // root directory does not need to be reconciled
+        return albumDirectory.albumTitle()
+                .map(albumTitle -> cloudAlbumsProvider.albumsWithTitle(albumTitle, progressStatus::onBackoffDelay)
+                        .thenCompose(cloudAlbumsForThisTitle ->
+                                reconcile(cloudAlbumsForThisTitle, albumTitle, albumDirectory.path(), progressStatus, progressStatus::onBackoffDelay))
+                        .whenComplete((album, e) -> progressStatus.incrementSuccess())
+                        .thenApply(Optional::of))
+                .orElseGet(() -> completedFuture(Optional.empty()));
     }
 
     private static String mediaItemsToIds(List<GoogleMediaItem> items) {
@@ -138,12 +125,14 @@ final class AlbumManagerImpl extends BaseLifecycleComponent implements AlbumMana
                                 var addOperationName = "add " + itemsToAdd.size() + " items for " + sourceAlbum.getTitle() +
                                         " to album " + destinationAlbum.getId();
                                 addFuture = cloudOperationHelper.withBackOffAndRetry(addOperationName,
+                                        ApiQuotaGroup.ALBUM,
                                         () -> withInvalidMediaItemErrorIgnored(addOperationName, destinationAlbum.addMediaItems(itemsToAdd, executorService)),
                                         backoffEventConsumer);
                             }
                             var removeOperationName = "remove " + itemsInGroup.size() + " items for " + sourceAlbum.getTitle() +
                                     " from album " + sourceAlbum.getId();
                             return addFuture.thenCompose(aVoid -> cloudOperationHelper.withBackOffAndRetry(removeOperationName,
+                                    ApiQuotaGroup.ALBUM,
                                     () -> withInvalidMediaItemErrorIgnored(removeOperationName, sourceAlbum.removeMediaItems(itemsInGroup, executorService)),
                                     backoffEventConsumer));
                         })
@@ -160,23 +149,28 @@ final class AlbumManagerImpl extends BaseLifecycleComponent implements AlbumMana
     private CompletableFuture<List<GoogleMediaItem>> getItemsInAlbum(GooglePhotosAlbum sourceAlbum, LongConsumer backoffEventConsumer) {
         return cloudOperationHelper.withBackOffAndRetry(
                 "get media items in album " + sourceAlbum.getId(),
+                ApiQuotaGroup.LISTING,
                 () -> sourceAlbum.getMediaItems(executorService),
                 backoffEventConsumer);
     }
 
-    private CompletableFuture<GooglePhotosAlbum> reconcile(Map<String, List<GooglePhotosAlbum>> cloudAlbumsByTitle,
+    private CompletableFuture<GooglePhotosAlbum> reconcile(List<GooglePhotosAlbum> cloudAlbumsForThisTitle,
                                                            String filesystemAlbumTitle,
                                                            Path path,
                                                            ProgressStatus progressStatus,
                                                            LongConsumer backoffEventConsumer) {
         CompletableFuture<GooglePhotosAlbum> albumFuture;
-        var cloudAlbumsForThisTitle = cloudAlbumsByTitle.get(filesystemAlbumTitle);
-        if (cloudAlbumsForThisTitle == null) {
+        if (cloudAlbumsForThisTitle.isEmpty()) {
             logger.info("Creating album [{}] for path [{}]", filesystemAlbumTitle, path);
             albumFuture = cloudOperationHelper.withBackOffAndRetry(
                     "create album " + filesystemAlbumTitle,
+                    ApiQuotaGroup.ALBUM,
                     () -> googlePhotosClient.createAlbum(filesystemAlbumTitle, executorService),
-                    backoffEventConsumer);
+                    backoffEventConsumer)
+                    .thenApply(album -> {
+                        cloudAlbumsProvider.onAlbumCreated(album);
+                        return album;
+                    });
         } else if (cloudAlbumsForThisTitle.size() > 1) {
             List<GooglePhotosAlbum> nonEmptyCloudAlbumsForThisTitle = cloudAlbumsForThisTitle.stream()
                     .filter(googlePhotosAlbum -> googlePhotosAlbum.getMediaItemCount() > 0)
@@ -0,0 +1,38 @@
+package net.yudichev.googlephotosupload.core;
+
+/**
+ * Remote API calls that are rate limited together. The rates are well below what the API allows per user, so that a
+ * long run does not use up the daily quota in bursts.
+ * <p>
+ * When a daily request budget is set, each group gets its share of it. Uploads of media bytes are not API requests as
+ * far as the request quota is concerned, so they have no share, and are not rate limited either: their concurrency is
+ * left to the {@link UploadConcurrencyController}.
+ */
+enum ApiQuotaGroup {
+    UPLOAD(0, 0),
+    CREATE_MEDIA_ITEMS(60, 0.6),
+    ALBUM(120, 0.3),
+    LISTING(60, 0.1);
+
+    private final int requestsPerMinute;
+    private final double dailyBudgetShare;
+
+    ApiQuotaGroup(int requestsPerMinute, double dailyBudgetShare) {
+        this.requestsPerMinute = requestsPerMinute;
+        this.dailyBudgetShare = dailyBudgetShare;
+    }
+
+    /**
+     * @return rate limit of the group, or 0 if its calls are neither rate limited nor counted against the daily budget
+     */
+    int requestsPerMinute() {
+        return requestsPerMinute;
+    }
+
+    /**
+     * @return fraction of the daily request budget the group may use, or 0 if its calls do not count against it
+     */
+    double dailyBudgetShare() {
+        return dailyBudgetShare;
+    }
+}
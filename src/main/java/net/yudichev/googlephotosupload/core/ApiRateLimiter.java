@@ -0,0 +1,14 @@
+package net.yudichev.googlephotosupload.core;
+
+import java.util.concurrent.CompletableFuture;
+
+interface ApiRateLimiter {
+    /**
+     * Takes a token from the group's bucket and, unless the call is a retry, counts it against the group's daily
+     * budget, if there is one.
+     *
+     * @return future that completes once the call may be made: when the bucket refills if it is empty, or when the
+     * daily budget resets if the group has used up its share
+     */
+    CompletableFuture<Void> acquire(ApiQuotaGroup group, boolean retry);
+}
@@ -0,0 +1,228 @@
+package net.yudichev.googlephotosupload.core;
+
+import com.google.inject.BindingAnnotation;
+import net.yudichev.jiotty.common.inject.BaseLifecycleComponent;
+import net.yudichev.jiotty.common.lang.PackagePrivateImmutablesStyle;
+import net.yudichev.jiotty.common.time.CurrentDateTimeProvider;
+import net.yudichev.jiotty.common.varstore.VarStore;
+import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.annotation.ElementType.*;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.CompletableFuture.delayedExecutor;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static net.yudichev.jiotty.common.lang.Locks.inLock;
+
+/**
+ * Each rate limited group has a token bucket holding up to {@link #BURST_DURATION} worth of calls. A call that finds the bucket empty
+ * reserves the next token to be added and is delayed until then, so waiting calls are served in order.
+ * <p>
+ * If a daily request budget is set, each group counts its calls, other than retries, against its own share of it. The
+ * group's rate is lowered so that the rest of its share is spread over the rest of the day instead of being used up in
+ * the first hours. The counts are saved in the {@link VarStore} in background every {@link #SAVE_INTERVAL_REQUESTS}
+ * calls and on stop.
+ */
+final class ApiRateLimiterImpl extends BaseLifecycleComponent implements ApiRateLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(ApiRateLimiterImpl.class);
+    private static final String VAR_STORE_KEY = "apiQuotaUsage";
+    private static final ZoneId QUOTA_DAY_ZONE = ZoneId.of("America/Los_Angeles");
+    private static final Duration BURST_DURATION = Duration.ofSeconds(10);
+    private static final int SAVE_INTERVAL_REQUESTS = 50;
+
+    private final VarStore varStore;
+    private final CurrentDateTimeProvider currentDateTimeProvider;
+    private final StateSaverFactory stateSaverFactory;
+    private final long dailyRequestBudget;
+    private final Lock lock = new ReentrantLock();
+    private final Map<ApiQuotaGroup, TokenBucket> bucketByGroup = new EnumMap<>(ApiQuotaGroup.class);
+    private final Map<ApiQuotaGroup, Long> requestCountByGroup = new EnumMap<>(ApiQuotaGroup.class);
+    private final Set<ApiQuotaGroup> groupsWithBudgetUsedUp = EnumSet.noneOf(ApiQuotaGroup.class);
+
+    private LocalDate quotaDay;
+    private int unsavedRequestCount;
+    private StateSaver stateSaver;
+
+    @Inject
+    ApiRateLimiterImpl(VarStore varStore,
+                       CurrentDateTimeProvider currentDateTimeProvider,
+                       StateSaverFactory stateSaverFactory,
+                       @DailyRequestBudget long dailyRequestBudget) {
+        this.varStore = checkNotNull(varStore);
+        this.currentDateTimeProvider = checkNotNull(currentDateTimeProvider);
+        this.stateSaverFactory = checkNotNull(stateSaverFactory);
+        checkArgument(dailyRequestBudget >= 0, "dailyRequestBudget must not be negative: %s", dailyRequestBudget);
+        this.dailyRequestBudget = dailyRequestBudget;
+        for (var group : ApiQuotaGroup.values()) {
+            if (group.requestsPerMinute() > 0) {
+                bucketByGroup.put(group, new TokenBucket(group.requestsPerMinute()));
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> acquire(ApiQuotaGroup group, boolean retry) {
+        // not checking whether started, as pending media items are still created while other components stop
+        if (group.requestsPerMinute() == 0) {
+            return completedFuture(null);
+        }
+        var reservation = inLock(lock, () -> {
+            var bucket = bucketByGroup.get(group);
+            var groupBudget = budgetOf(group);
+            if (groupBudget == 0) {
+                return Reservation.of(true, bucket.reserve(System.nanoTime(), bucket.maxTokensPerNano));
+            }
+            var now = currentDateTimeProvider.currentInstant();
+            var today = now.atZone(QUOTA_DAY_ZONE).toLocalDate();
+            if (!today.equals(quotaDay)) {
+                startDay(today);
+            }
+            var untilReset = Duration.between(now, today.plusDays(1).atStartOfDay(QUOTA_DAY_ZONE).toInstant());
+            long remainingBudget = groupBudget - requestCountByGroup.getOrDefault(group, 0L);
+            if (remainingBudget <= 0) {
+                if (groupsWithBudgetUsedUp.add(group)) {
+                    logger.warn("Daily budget of {} {} calls is used up, waiting {} for it to reset", groupBudget, group, untilReset);
+                }
+                return Reservation.of(false, untilReset.toNanos());
+            }
+            if (!retry) {
+                requestCountByGroup.merge(group, 1L, Long::sum);
+                if (++unsavedRequestCount >= SAVE_INTERVAL_REQUESTS && stateSaver != null) {
+                    // only dispatches the save, which is done in background
+                    stateSaver.save();
+                }
+            }
+            var pacedTokensPerNano = remainingBudget / (double) Math.max(1, untilReset.toNanos());
+            return Reservation.of(true, bucket.reserve(System.nanoTime(), Math.min(bucket.maxTokensPerNano, pacedTokensPerNano)));
+        });
+        var delayed = reservation.delayNanos() <= 0 ?
+                CompletableFuture.<Void>completedFuture(null) :
+                CompletableFuture.runAsync(() -> {}, delayedExecutor(reservation.delayNanos(), NANOSECONDS));
+        // when the budget is used up, the call tries again once it resets
+        return reservation.granted() ? delayed : delayed.thenCompose(ignored -> acquire(group, retry));
+    }
+
+    @Override
+    protected void doStart() {
+        inLock(lock, () -> {
+            var today = currentDateTimeProvider.currentInstant().atZone(QUOTA_DAY_ZONE).toLocalDate();
+            startDay(today);
+            if (dailyRequestBudget > 0) {
+                varStore.readValue(ApiQuotaUsage.class, VAR_STORE_KEY)
+                        .filter(usage -> usage.day().equals(today.toString()))
+                        .ifPresent(usage -> {
+                            requestCountByGroup.putAll(usage.requestCountByGroup());
+                            logger.info("API calls already made today: {}, daily budget {}", requestCountByGroup, dailyRequestBudget);
+                        });
+            }
+            stateSaver = stateSaverFactory.create("api-quota-usage", this::save);
+        });
+    }
+
+    @Override
+    protected void doStop() {
+        var stoppedStateSaver = inLock(lock, () -> {
+            var theStateSaver = stateSaver;
+            stateSaver = null;
+            return theStateSaver;
+        });
+        stoppedStateSaver.close();
+        // the last conflated save may still be in flight; save synchronously so that no call is left out
+        save();
+    }
+
+    /**
+     * @return the group's share of the daily request budget, or 0 if its calls are not counted
+     */
+    private long budgetOf(ApiQuotaGroup group) {
+        if (dailyRequestBudget == 0 || group.dailyBudgetShare() == 0) {
+            return 0;
+        }
+        return Math.max(1, Math.round(dailyRequestBudget * group.dailyBudgetShare()));
+    }
+
+    private void startDay(LocalDate day) {
+        quotaDay = day;
+        requestCountByGroup.clear();
+        groupsWithBudgetUsedUp.clear();
+    }
+
+    private void save() {
+        if (dailyRequestBudget == 0) {
+            return;
+        }
+        var usage = inLock(lock, () -> {
+            unsavedRequestCount = 0;
+            return ApiQuotaUsage.of(quotaDay.toString(), requestCountByGroup);
+        });
+        varStore.saveValue(VAR_STORE_KEY, usage);
+    }
+
+    private static final class TokenBucket {
+        private final double maxTokensPerNano;
+        private double tokensPerNano;
+        private double tokens;
+        private long lastRefillNanos = System.nanoTime();
+
+        TokenBucket(int requestsPerMinute) {
+            maxTokensPerNano = requestsPerMinute / (double) Duration.ofMinutes(1).toNanos();
+            tokensPerNano = maxTokensPerNano;
+            tokens = capacity();
+        }
+
+        /**
+         * Tokens go negative while calls are waiting for them.
+         *
+         * @param tokensPerNano rate at which tokens are added from now on, at most {@link #maxTokensPerNano}
+         * @return how long to wait for the reserved token, in nanoseconds
+         */
+        long reserve(long nowNanos, double tokensPerNano) {
+            tokens += (nowNanos - lastRefillNanos) * this.tokensPerNano;
+            lastRefillNanos = nowNanos;
+            this.tokensPerNano = tokensPerNano;
+            tokens = Math.min(capacity(), tokens) - 1;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+        }
+
+        private double capacity() {
+            return Math.max(1, tokensPerNano * BURST_DURATION.toNanos());
+        }
+    }
+
+    @Value.Immutable
+    @PackagePrivateImmutablesStyle
+    interface BaseReservation {
+        /**
+         * @return false if the group's daily budget is used up, in which case the delay is until it resets
+         */
+        @Value.Parameter
+        boolean granted();
+
+        @Value.Parameter
+        long delayNanos();
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    @interface DailyRequestBudget {
+    }
+}
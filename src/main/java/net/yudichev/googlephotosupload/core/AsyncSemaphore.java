@@ -0,0 +1,105 @@
+package net.yudichev.googlephotosupload.core;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static net.yudichev.jiotty.common.lang.Locks.inLock;
+
+/**
+ * Semaphore whose acquirers wait for a permit without blocking: a waiting acquirer's future is completed, in FIFO order,
+ * by the thread that releases the permit.
+ */
+final class AsyncSemaphore {
+    private final Lock lock = new ReentrantLock();
+    private final Queue<Waiter> waiters = new ArrayDeque<>();
+    private int permits;
+    private int acquiredPermits;
+    private long waitCount;
+    private long totalWaitNanos;
+
+    AsyncSemaphore(int permits) {
+        setPermits(permits);
+    }
+
+    CompletableFuture<Void> acquire() {
+        return inLock(lock, () -> {
+            if (waiters.isEmpty() && acquiredPermits < permits) {
+                acquiredPermits++;
+                return completedFuture(null);
+            }
+            var waiter = new Waiter(System.nanoTime());
+            waiters.add(waiter);
+            return waiter.future;
+        });
+    }
+
+    void release() {
+        inLock(lock, () -> {
+            acquiredPermits--;
+        });
+        completeWaiters();
+    }
+
+    /**
+     * If the number of permits is lowered below the number acquired, no waiter gets a permit until enough are released.
+     */
+    void setPermits(int permits) {
+        checkArgument(permits > 0, "permits must be positive: %s", permits);
+        inLock(lock, () -> {
+            this.permits = permits;
+        });
+        completeWaiters();
+    }
+
+    int queueDepth() {
+        return inLock(lock, waiters::size);
+    }
+
+    int permits() {
+        return inLock(lock, () -> permits);
+    }
+
+    int availablePermits() {
+        return inLock(lock, () -> Math.max(0, permits - acquiredPermits));
+    }
+
+    double averageWaitMillis() {
+        return inLock(lock, () -> waitCount == 0 ? 0 : totalWaitNanos / 1_000_000.0 / waitCount);
+    }
+
+    /**
+     * Waiters are completed outside of the lock, as completing them runs their continuations.
+     */
+    private void completeWaiters() {
+        while (true) {
+            var waiter = inLock(lock, () -> {
+                if (waiters.isEmpty() || acquiredPermits >= permits) {
+                    return null;
+                }
+                acquiredPermits++;
+                var nextWaiter = waiters.remove();
+                waitCount++;
+                totalWaitNanos += System.nanoTime() - nextWaiter.sinceNanos;
+                return nextWaiter;
+            });
+            if (waiter == null) {
+                return;
+            }
+            waiter.future.complete(null);
+        }
+    }
+
+    private static final class Waiter {
+        private final long sinceNanos;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Waiter(long sinceNanos) {
+            this.sinceNanos = sinceNanos;
+        }
+    }
+}
@@ -1,12 +1,18 @@
 package net.yudichev.googlephotosupload.core;
 
+import com.google.api.client.util.BackOff;
+
 import java.util.Optional;
+import java.util.function.Supplier;
 
 interface BackingOffRemoteApiExceptionHandler {
     /**
-     * @return backoff delay applied, in milliseconds, or 0, if no backoff delay was applied
+     * Reports the outcome of the admitted call to the {@link QuotaGate}. Only a quota error pauses the gate, and so all
+     * calls; any other retryable error only delays the retry of the failed operation, by the next interval of its own
+     * back-off. Does not wait.
+     *
+     * @param operationBackOff back-off of the failed operation, created when first needed
+     * @return delay before the operation is retried, in milliseconds, or empty if the exception is not retryable
      */
-    Optional<Long> handle(String operationName, Throwable exception);
-
-    void reset();
+    Optional<Long> handle(String operationName, Throwable exception, Admission admission, Supplier<BackOff> operationBackOff);
 }
@@ -3,26 +3,22 @@ package net.yudichev.googlephotosupload.core;
 import com.google.api.client.util.BackOff;
 import com.google.api.gax.rpc.*;
 import com.google.common.collect.ImmutableSet;
-import com.google.inject.BindingAnnotation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
-import java.lang.annotation.Retention;
-import java.lang.annotation.Target;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Supplier;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Throwables.getCausalChain;
-import static java.lang.annotation.ElementType.*;
-import static java.lang.annotation.RetentionPolicy.RUNTIME;
-import static net.yudichev.jiotty.common.lang.MoreThrowables.asUnchecked;
 import static net.yudichev.jiotty.common.lang.MoreThrowables.getAsUnchecked;
 
 final class BackingOffRemoteApiExceptionHandlerImpl implements BackingOffRemoteApiExceptionHandler {
     private static final Logger logger = LoggerFactory.getLogger(BackingOffRemoteApiExceptionHandlerImpl.class);
-    private final BackOff backOff;
+    private final QuotaGate quotaGate;
+    private final UploadConcurrencyController uploadConcurrencyController;
     // Unfortunately, the "retryable" flag in most, if not all, all these exceptions is not reliable; some of these
     // are marked as not retryable while in reality they are
     private final Set<Class<? extends Throwable>> EXCEPTION_TYPES_REQUIRING_BACKOFF = ImmutableSet.of(
@@ -33,32 +29,35 @@ final class BackingOffRemoteApiExceptionHandlerImpl implements BackingOffRemoteA
             InternalException.class);
 
     @Inject
-    BackingOffRemoteApiExceptionHandlerImpl(@Dependency BackOff backOff) {
-        this.backOff = checkNotNull(backOff);
+    BackingOffRemoteApiExceptionHandlerImpl(QuotaGate quotaGate,
+                                            UploadConcurrencyController uploadConcurrencyController) {
+        this.quotaGate = checkNotNull(quotaGate);
+        this.uploadConcurrencyController = checkNotNull(uploadConcurrencyController);
     }
 
     @Override
-    public Optional<Long> handle(String operationName, Throwable exception) {
+    public Optional<Long> handle(String operationName, Throwable exception, Admission admission, Supplier<BackOff> operationBackOff) {
         return getCausalChain(exception).stream()
                 .filter(e -> EXCEPTION_TYPES_REQUIRING_BACKOFF.contains(e.getClass()))
                 .findFirst()
                 .map(throwable -> {
-                    long backOffMs = getAsUnchecked(backOff::nextBackOffMillis);
-                    logger.debug("Retryable exception performing operation '{}', backing off by waiting for {}ms", operationName, backOffMs, throwable);
-                    asUnchecked(() -> Thread.sleep(backOffMs));
+                    if (throwable instanceof ResourceExhaustedException || throwable instanceof UnavailableException) {
+                        uploadConcurrencyController.onThrottled();
+                    }
+                    long backOffMs;
+                    if (throwable instanceof ResourceExhaustedException) {
+                        backOffMs = quotaGate.onThrottled(admission);
+                    } else {
+                        // says nothing about the quota, so other calls carry on
+                        quotaGate.onNotThrottled(admission);
+                        backOffMs = getAsUnchecked(() -> operationBackOff.get().nextBackOffMillis());
+                    }
+                    logger.debug("Retryable exception performing operation '{}', backing off by {}ms", operationName, backOffMs, throwable);
                     return Optional.of(backOffMs);
                 })
-                .orElse(Optional.empty());
-    }
-
-    @Override
-    public void reset() {
-        asUnchecked(backOff::reset);
-    }
-
-    @BindingAnnotation
-    @Target({FIELD, PARAMETER, METHOD})
-    @Retention(RUNTIME)
-    @interface Dependency {
+                .orElseGet(() -> {
+                    quotaGate.onNotThrottled(admission);
+                    return Optional.empty();
+                });
     }
 }
@@ -5,49 +5,104 @@ import net.yudichev.jiotty.common.inject.BaseLifecycleComponent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.inject.Inject;
 import javax.inject.Provider;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
-import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.util.concurrent.MoreExecutors.shutdownAndAwaitTermination;
+import static net.yudichev.jiotty.common.lang.MoreThrowables.getAsUnchecked;
 
-final class BackpressuredExecutorServiceProvider extends BaseLifecycleComponent implements Provider<ExecutorService> {
+/**
+ * Tasks enter the pool's queue only with a permit; there are as many permits as there are threads, plus twice as many
+ * for the queue, so that the queue stays short while tasks waiting for a permit keep their submission order. Work
+ * admitted through {@link TaskAdmission} takes as many permits of its own, so no more of it is in flight than there is
+ * room for in the pool.
+ */
+final class BackpressuredExecutorServiceProvider extends BaseLifecycleComponent implements Provider<ExecutorService>, TaskAdmission {
     private static final Logger logger = LoggerFactory.getLogger(BackpressuredExecutorServiceProvider.class);
-    private final int threadCount = Runtime.getRuntime().availableProcessors() * 2;
-    private ThreadPoolExecutor executor;
+    private static final int PERMITS_PER_THREAD = 3;
+    private static final ObjectName OBJECT_NAME = getAsUnchecked(() -> new ObjectName("net.yudichev.googlephotosupload:type=UploadAdmission"));
+
+    private final UploadConcurrencyController uploadConcurrencyController;
+    private ThreadPoolExecutor threadPool;
+    private AdmissionControlledExecutorService executor;
+
+    @Inject
+    BackpressuredExecutorServiceProvider(UploadConcurrencyController uploadConcurrencyController) {
+        this.uploadConcurrencyController = checkNotNull(uploadConcurrencyController);
+    }
 
     @Override
     public ExecutorService get() {
         return whenStartedAndNotLifecycling(() -> executor);
     }
 
-    private static void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
-        checkState(!executor.isShutdown(), "Executor shut down: %s", executor);
-        task.run();
+    @Override
+    public <T> CompletableFuture<T> withPermit(Supplier<CompletableFuture<T>> task) {
+        return whenStartedAndNotLifecycling(() -> executor).withPermit(task);
     }
 
     @Override
     protected void doStop() {
-        if (!shutdownAndAwaitTermination(executor, 3, TimeUnit.SECONDS)) {
+        if (!shutdownAndAwaitTermination(threadPool, 3, TimeUnit.SECONDS)) {
             logger.warn("Failed to shutdown upload thread pool in 3 seconds");
         }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(OBJECT_NAME);
+        } catch (JMException e) {
+            logger.warn("Failed to unregister upload admission MBean", e);
+        }
+        threadPool = null;
         executor = null;
     }
 
     @Override
     protected void doStart() {
-        executor = new ThreadPoolExecutor(
+        var threadCount = uploadConcurrencyController.limit();
+        // never full, as the number of tasks in it is bounded by the permits
+        threadPool = new ThreadPoolExecutor(
                 threadCount,
                 threadCount,
                 0L, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<>(threadCount * 2),
+                new LinkedBlockingQueue<>(),
                 new ThreadFactoryBuilder()
                         .setNameFormat("upload-pool-%s")
                         .setDaemon(true)
-                        .build(),
-                BackpressuredExecutorServiceProvider::rejectedExecution);
+                        .build());
+        executor = new AdmissionControlledExecutorService(threadPool, threadCount * PERMITS_PER_THREAD);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(executor, OBJECT_NAME);
+        } catch (JMException e) {
+            logger.warn("Failed to register upload admission MBean", e);
+        }
+        var theThreadPool = threadPool;
+        var theExecutor = executor;
+        uploadConcurrencyController.setLimitListener(limit -> {
+            resize(theThreadPool, limit);
+            theExecutor.setPermits(limit * PERMITS_PER_THREAD);
+        });
+    }
+
+    /**
+     * The core size may never exceed the maximum size, so the order of the updates depends on the direction. Surplus
+     * threads exit once they are done with their current task.
+     */
+    private static void resize(ThreadPoolExecutor threadPool, int threadCount) {
+        if (threadCount > threadPool.getMaximumPoolSize()) {
+            threadPool.setMaximumPoolSize(threadCount);
+            threadPool.setCorePoolSize(threadCount);
+        } else {
+            threadPool.setCorePoolSize(threadCount);
+            threadPool.setMaximumPoolSize(threadCount);
+        }
     }
 }
@@ -0,0 +1,35 @@
+package net.yudichev.googlephotosupload.core;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import net.yudichev.jiotty.common.lang.PackagePrivateImmutablesStyle;
+import org.immutables.value.Value;
+
+import java.util.List;
+
+@Value.Immutable
+@PackagePrivateImmutablesStyle
+@JsonSerialize
+@JsonDeserialize
+interface BaseAlbumCatalogue {
+    @Value.Parameter
+    List<CachedAlbum> albums();
+
+    @Value.Immutable
+    @PackagePrivateImmutablesStyle
+    @JsonSerialize
+    @JsonDeserialize
+    interface BaseCachedAlbum {
+        @Value.Parameter
+        String id();
+
+        @Value.Parameter
+        String title();
+
+        @Value.Parameter
+        long mediaItemCount();
+
+        @Value.Parameter
+        String albumUrl();
+    }
+}
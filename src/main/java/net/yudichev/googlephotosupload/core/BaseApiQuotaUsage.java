@@ -0,0 +1,23 @@
+package net.yudichev.googlephotosupload.core;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import net.yudichev.jiotty.common.lang.PackagePrivateImmutablesStyle;
+import org.immutables.value.Value;
+
+import java.util.Map;
+
+@Value.Immutable
+@PackagePrivateImmutablesStyle
+@JsonSerialize
+@JsonDeserialize
+interface BaseApiQuotaUsage {
+    /**
+     * ISO date of the quota day, which starts at midnight Pacific Time.
+     */
+    @Value.Parameter
+    String day();
+
+    @Value.Parameter
+    Map<ApiQuotaGroup, Long> requestCountByGroup();
+}
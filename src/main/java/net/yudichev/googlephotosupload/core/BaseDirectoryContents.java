@@ -0,0 +1,24 @@
+package net.yudichev.googlephotosupload.core;
+
+import net.yudichev.jiotty.common.lang.PackagePrivateImmutablesStyle;
+import org.immutables.value.Value;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Relevant files and non-excluded subdirectories of a directory as of its last modification time.
+ */
+@Value.Immutable
+@PackagePrivateImmutablesStyle
+interface BaseDirectoryContents {
+    @Value.Parameter
+    Instant lastModified();
+
+    @Value.Parameter
+    List<Path> subdirectories();
+
+    @Value.Parameter
+    List<LocalFile> files();
+}
@@ -24,6 +24,8 @@ interface BaseItemState {
 
     Optional<String> albumId();
 
+    Optional<FileFingerprint> fingerprint();
+
     @Immutable
     @PackagePrivateImmutablesStyle
     @JsonSerialize
@@ -36,4 +38,17 @@ interface BaseItemState {
         @Value.Parameter
         Instant uploadInstant();
     }
+
+    @Immutable
+    @PackagePrivateImmutablesStyle
+    @JsonSerialize
+    @JsonDeserialize
+    @JsonInclude(NON_NULL)
+    interface BaseFileFingerprint {
+        long size();
+
+        Instant lastModified();
+
+        Optional<String> fileKey();
+    }
 }
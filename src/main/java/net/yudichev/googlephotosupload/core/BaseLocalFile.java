@@ -0,0 +1,16 @@
+package net.yudichev.googlephotosupload.core;
+
+import net.yudichev.jiotty.common.lang.PackagePrivateImmutablesStyle;
+import org.immutables.value.Value;
+
+import java.nio.file.Path;
+
+@Value.Immutable
+@PackagePrivateImmutablesStyle
+interface BaseLocalFile {
+    @Value.Parameter
+    Path path();
+
+    @Value.Parameter
+    FileFingerprint fingerprint();
+}
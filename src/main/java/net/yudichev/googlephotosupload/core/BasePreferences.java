@@ -4,15 +4,16 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
 import net.yudichev.jiotty.common.lang.PublicImmutablesStyle;
 import org.immutables.value.Value;
 import org.immutables.value.Value.Immutable;
 
 import java.nio.file.Path;
 import java.util.Set;
-import java.util.regex.Pattern;
 
-import static com.google.common.collect.ImmutableSet.toImmutableSet;
+import static com.google.common.hash.Hashing.sha256;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 @Immutable
 @PublicImmutablesStyle
@@ -33,18 +34,31 @@ abstract class BasePreferences {
     }
 
     public final boolean anyMatch(Path path) {
-        return patterns().stream().anyMatch(pattern -> pattern.matcher(path.getFileName().toString()).matches());
+        return exclusionMatcher().matches(path.getFileName().toString());
     }
 
     public final boolean noneMatch(Path path) {
-        return patterns().stream().noneMatch(pattern -> pattern.matcher(path.getFileName().toString()).matches());
+        return !anyMatch(path);
     }
 
     @Value.Derived
+    @Value.Auxiliary
     @JsonIgnore
-    protected Set<Pattern> patterns() {
-        return scanExclusionPatterns().stream()
-                .map(Pattern::compile)
-                .collect(toImmutableSet());
+    ExclusionMatcher exclusionMatcher() {
+        return new ExclusionMatcher(scanExclusionPatterns());
+    }
+
+    /**
+     * Identifies the set of patterns regardless of its iteration order, for results of scans to be saved along with.
+     */
+    @Value.Lazy
+    @Value.Auxiliary
+    @JsonIgnore
+    HashCode scanExclusionPatternsDigest() {
+        var hasher = sha256().newHasher();
+        scanExclusionPatterns().stream()
+                .sorted()
+                .forEach(pattern -> hasher.putInt(pattern.length()).putString(pattern, UTF_8));
+        return hasher.hash();
     }
 }
@@ -0,0 +1,24 @@
+package net.yudichev.googlephotosupload.core;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import net.yudichev.jiotty.common.lang.PackagePrivateImmutablesStyle;
+import org.immutables.value.Value;
+
+import java.util.List;
+import java.util.Map;
+
+@Value.Immutable
+@PackagePrivateImmutablesStyle
+@JsonSerialize
+@JsonDeserialize
+interface BaseRootDirs {
+    @Value.Parameter
+    Map<String, String> rootDirById();
+
+    /**
+     * Locations each root was uploaded from before, most recent first, whose upload state has not been fully moved to
+     * the current location yet.
+     */
+    Map<String, List<String>> previousRootDirsById();
+}
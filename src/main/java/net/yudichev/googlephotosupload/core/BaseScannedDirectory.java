@@ -0,0 +1,17 @@
+package net.yudichev.googlephotosupload.core;
+
+import net.yudichev.jiotty.common.lang.PackagePrivateImmutablesStyle;
+import org.immutables.value.Value;
+
+import java.nio.file.Path;
+import java.util.List;
+
+@Value.Immutable
+@PackagePrivateImmutablesStyle
+interface BaseScannedDirectory {
+    @Value.Parameter
+    Path path();
+
+    @Value.Parameter
+    List<LocalFile> files();
+}
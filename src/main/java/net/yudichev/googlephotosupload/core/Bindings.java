@@ -17,4 +17,10 @@ final class Bindings {
     @Retention(RUNTIME)
     @interface Backpressured {
     }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    @interface SettingsRootDir {
+    }
 }
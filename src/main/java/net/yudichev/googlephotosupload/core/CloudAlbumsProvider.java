@@ -3,9 +3,20 @@ package net.yudichev.googlephotosupload.core;
 import net.yudichev.jiotty.connector.google.photos.GooglePhotosAlbum;
 
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.LongConsumer;
 
 interface CloudAlbumsProvider {
-    CompletableFuture<Map<String, List<GooglePhotosAlbum>>> listCloudAlbums();
+    /**
+     * Starts reloading all albums in cloud in background. Until it is done, albums are looked up in the catalogue saved by
+     * the previous run.
+     */
+    void refresh();
+
+    /**
+     * @return the albums in cloud with the given title, empty if there are none
+     */
+    CompletableFuture<List<GooglePhotosAlbum>> albumsWithTitle(String title, LongConsumer backoffEventConsumer);
+
+    void onAlbumCreated(GooglePhotosAlbum album);
 }
@@ -1,6 +1,8 @@
 package net.yudichev.googlephotosupload.core;
 
+import com.google.common.collect.ImmutableList;
 import net.yudichev.jiotty.common.inject.BaseLifecycleComponent;
+import net.yudichev.jiotty.common.varstore.VarStore;
 import net.yudichev.jiotty.connector.google.photos.GooglePhotosAlbum;
 import net.yudichev.jiotty.connector.google.photos.GooglePhotosClient;
 import org.slf4j.Logger;
@@ -11,56 +13,206 @@ import javax.inject.Provider;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static java.util.stream.Collectors.groupingBy;
-import static java.util.stream.Collectors.toList;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.stream.Collectors.*;
 import static net.yudichev.googlephotosupload.core.Bindings.Backpressured;
+import static net.yudichev.jiotty.common.lang.CompletableFutures.toFutureOfList;
+import static net.yudichev.jiotty.common.lang.Locks.inLock;
 
+/**
+ * Loading all albums takes minutes for large libraries, so the catalogue of albums is saved in the {@link VarStore} and
+ * reused by the next run while the albums are reloaded in background. Albums found in the catalogue are checked one by
+ * one before being used, as they may have been changed or deleted since; a title not found in the catalogue, or whose
+ * albums fail the check, waits for the reload, as its album may have been created elsewhere.
+ */
 final class CloudAlbumsProviderImpl extends BaseLifecycleComponent implements CloudAlbumsProvider {
     private static final Logger logger = LoggerFactory.getLogger(CloudAlbumsProviderImpl.class);
+    private static final String VAR_STORE_KEY = "albumCatalogue";
+
     private final CloudOperationHelper cloudOperationHelper;
     private final GooglePhotosClient googlePhotosClient;
     private final Provider<ExecutorService> executorServiceProvider;
     private final ProgressStatusFactory progressStatusFactory;
     private final ResourceBundle resourceBundle;
+    private final VarStore varStore;
+    private final Lock lock = new ReentrantLock();
+    /**
+     * Albums created while a reload is in progress, which it may have missed.
+     */
+    private final Map<String, GooglePhotosAlbum> createdAlbumsById = new LinkedHashMap<>();
 
     private volatile ExecutorService executorService;
+    private Map<String, List<CachedAlbum>> catalogueByTitle = new HashMap<>();
+    private boolean catalogueChanged;
+    private CompletableFuture<Void> refreshFuture;
+    private boolean refreshing;
+    private Map<String, List<GooglePhotosAlbum>> refreshedAlbumsByTitle;
 
     @Inject
     CloudAlbumsProviderImpl(CloudOperationHelper cloudOperationHelper,
                             GooglePhotosClient googlePhotosClient,
                             @SuppressWarnings("BoundedWildcard") @Backpressured Provider<ExecutorService> executorServiceProvider,
                             ProgressStatusFactory progressStatusFactory,
-                            ResourceBundle resourceBundle) {
+                            ResourceBundle resourceBundle,
+                            VarStore varStore) {
         this.cloudOperationHelper = checkNotNull(cloudOperationHelper);
         this.googlePhotosClient = checkNotNull(googlePhotosClient);
         this.executorServiceProvider = executorServiceProvider;
         this.progressStatusFactory = checkNotNull(progressStatusFactory);
         this.resourceBundle = checkNotNull(resourceBundle);
+        this.varStore = checkNotNull(varStore);
     }
 
     @Override
-    public CompletableFuture<Map<String, List<GooglePhotosAlbum>>> listCloudAlbums() {
+    public void refresh() {
         checkStarted();
-        logger.info("Loading albums in cloud (may take several minutes)...");
+        inLock(lock, this::startRefresh);
+    }
+
+    @Override
+    public CompletableFuture<List<GooglePhotosAlbum>> albumsWithTitle(String title, LongConsumer backoffEventConsumer) {
+        checkStarted();
+        var refreshedAlbums = inLock(lock, () -> Optional.ofNullable(refreshedAlbumsByTitle)
+                .map(albumsByTitle -> ImmutableList.copyOf(albumsByTitle.getOrDefault(title, List.of()))));
+        if (refreshedAlbums.isPresent()) {
+            return completedFuture(refreshedAlbums.get());
+        }
+        var cachedAlbums = inLock(lock, () -> {
+            // a reload that failed is started again by the next lookup
+            if (refreshFuture == null || refreshFuture.isCompletedExceptionally()) {
+                startRefresh();
+            }
+            return ImmutableList.copyOf(catalogueByTitle.getOrDefault(title, List.of()));
+        });
+        if (cachedAlbums.isEmpty()) {
+            return afterRefresh(title, backoffEventConsumer);
+        }
+        return cachedAlbums.stream()
+                .map(cachedAlbum -> cloudOperationHelper.withBackOffAndRetry(
+                        "get album " + cachedAlbum.id(),
+                        ApiQuotaGroup.ALBUM,
+                        () -> googlePhotosClient.getAlbum(cachedAlbum.id(), executorService),
+                        backoffEventConsumer))
+                .collect(toFutureOfList())
+                .handle((albums, e) -> {
+                    if (e == null && albums.stream().allMatch(album -> album.getTitle().equals(title))) {
+                        return completedFuture(albums);
+                    }
+                    logger.info("Saved album catalogue is out of date for [{}], waiting for albums in cloud to load", title);
+                    return afterRefresh(title, backoffEventConsumer);
+                })
+                .thenCompose(Function.identity());
+    }
+
+    @Override
+    public void onAlbumCreated(GooglePhotosAlbum album) {
+        inLock(lock, () -> {
+            if (refreshedAlbumsByTitle != null) {
+                refreshedAlbumsByTitle.computeIfAbsent(album.getTitle(), title -> new ArrayList<>()).add(album);
+            }
+            if (refreshing) {
+                createdAlbumsById.put(album.getId(), album);
+            }
+            catalogueByTitle.computeIfAbsent(album.getTitle(), title -> new ArrayList<>()).add(toCachedAlbum(album));
+            catalogueChanged = true;
+        });
+    }
+
+    @Override
+    protected void doStart() {
+        executorService = executorServiceProvider.get();
+        inLock(lock, () -> {
+            catalogueByTitle = varStore.readValue(AlbumCatalogue.class, VAR_STORE_KEY)
+                    .map(catalogue -> catalogue.albums().stream()
+                            .collect(groupingBy(CachedAlbum::title, HashMap::new, Collectors.<CachedAlbum, List<CachedAlbum>>toCollection(ArrayList::new))))
+                    .orElseGet(HashMap::new);
+            logger.info("{} album title(s) in saved album catalogue", catalogueByTitle.size());
+            catalogueChanged = false;
+            refreshFuture = null;
+            refreshing = false;
+            refreshedAlbumsByTitle = null;
+            createdAlbumsById.clear();
+        });
+    }
+
+    @Override
+    protected void doStop() {
+        inLock(lock, () -> {
+            if (catalogueChanged) {
+                saveCatalogue();
+            }
+        });
+    }
+
+    private CompletableFuture<List<GooglePhotosAlbum>> afterRefresh(String title, LongConsumer backoffEventConsumer) {
+        return inLock(lock, () -> refreshFuture).thenCompose(ignored -> albumsWithTitle(title, backoffEventConsumer));
+    }
+
+    private void startRefresh() {
+        if (refreshing) {
+            return;
+        }
+        refreshing = true;
+        createdAlbumsById.clear();
+        logger.info("Loading albums in cloud in background (may take several minutes)...");
         var progressStatus = progressStatusFactory.create(resourceBundle.getString("cloudAlbumsProviderProgressTitle"), Optional.empty());
-        return cloudOperationHelper.withBackOffAndRetry(
+        refreshFuture = cloudOperationHelper.withBackOffAndRetry(
                 "get all albums",
+                ApiQuotaGroup.LISTING,
                 () -> googlePhotosClient.listAlbums(progressStatus::updateSuccess, executorService),
                 progressStatus::onBackoffDelay)
-                .<Map<String, List<GooglePhotosAlbum>>>thenApply(albumsInCloud -> {
-                    logger.info("... loaded {} album(s) in cloud", albumsInCloud.size());
-                    return albumsInCloud.stream()
-                            .collect(groupingBy(GooglePhotosAlbum::getTitle,
-                                    () -> new HashMap<>(albumsInCloud.size()),
-                                    toList()));
+                .whenComplete((ignored, e) -> {
+                    progressStatus.close(e == null);
+                    if (e != null) {
+                        logger.warn("Failed to load albums in cloud", e);
+                        inLock(lock, () -> {
+                            refreshing = false;
+                        });
+                    }
                 })
-                .whenComplete((ignored, e) -> progressStatus.close(e == null));
+                .thenAccept(this::onRefreshed);
     }
 
-    @Override
-    protected void doStart() {
-        executorService = executorServiceProvider.get();
+    private void onRefreshed(List<GooglePhotosAlbum> albumsInCloud) {
+        logger.info("... loaded {} album(s) in cloud", albumsInCloud.size());
+        inLock(lock, () -> {
+            Map<String, List<GooglePhotosAlbum>> albumsByTitle = albumsInCloud.stream()
+                    .collect(groupingBy(GooglePhotosAlbum::getTitle,
+                            () -> new HashMap<>(albumsInCloud.size()),
+                            Collectors.<GooglePhotosAlbum, List<GooglePhotosAlbum>>toCollection(ArrayList::new)));
+            var albumIdsInCloud = albumsInCloud.stream().map(GooglePhotosAlbum::getId).collect(toSet());
+            createdAlbumsById.values().stream()
+                    .filter(album -> !albumIdsInCloud.contains(album.getId()))
+                    .forEach(album -> albumsByTitle.computeIfAbsent(album.getTitle(), title -> new ArrayList<>()).add(album));
+            createdAlbumsById.clear();
+            refreshing = false;
+            refreshedAlbumsByTitle = albumsByTitle;
+            catalogueByTitle = albumsByTitle.entrySet().stream()
+                    .collect(toMap(Map.Entry::getKey,
+                            entry -> entry.getValue().stream()
+                                    .map(CloudAlbumsProviderImpl::toCachedAlbum)
+                                    .collect(Collectors.<CachedAlbum, List<CachedAlbum>>toCollection(ArrayList::new)),
+                            (albums1, albums2) -> albums1,
+                            HashMap::new));
+            saveCatalogue();
+        });
+    }
+
+    private void saveCatalogue() {
+        varStore.saveValue(VAR_STORE_KEY, AlbumCatalogue.of(catalogueByTitle.values().stream()
+                .flatMap(Collection::stream)
+                .collect(toList())));
+        catalogueChanged = false;
+    }
+
+    private static CachedAlbum toCachedAlbum(GooglePhotosAlbum album) {
+        return CachedAlbum.of(album.getId(), album.getTitle(), album.getMediaItemCount(), album.getAlbumUrl());
     }
 }
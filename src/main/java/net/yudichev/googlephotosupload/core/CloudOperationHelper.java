@@ -5,5 +5,14 @@ import java.util.function.LongConsumer;
 import java.util.function.Supplier;
 
 interface CloudOperationHelper {
-    <T> CompletableFuture<T> withBackOffAndRetry(String operationName, Supplier<CompletableFuture<T>> action, LongConsumer backoffEventConsumer);
+    /**
+     * Every attempt is admitted by the {@link QuotaGate}, rate limited in the specified quota group, and then run with a
+     * {@link TaskAdmission} permit; a paged or batched action takes a single token per attempt, and only its first
+     * attempt counts against the daily budget. A retryable failure other than a quota error only delays the retry of
+     * this operation.
+     */
+    <T> CompletableFuture<T> withBackOffAndRetry(String operationName,
+                                                 ApiQuotaGroup quotaGroup,
+                                                 Supplier<CompletableFuture<T>> action,
+                                                 LongConsumer backoffEventConsumer);
 }
@@ -1,46 +1,92 @@
 package net.yudichev.googlephotosupload.core;
 
+import com.google.api.client.util.BackOff;
+import com.google.common.base.Suppliers;
+import com.google.inject.BindingAnnotation;
 import net.yudichev.jiotty.common.lang.CompletableFutures;
 import net.yudichev.jiotty.common.lang.Either;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import javax.inject.Provider;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.LongConsumer;
 import java.util.function.Supplier;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.annotation.ElementType.*;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static java.util.concurrent.CompletableFuture.delayedExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 final class CloudOperationHelperImpl implements CloudOperationHelper {
     private static final Logger logger = LoggerFactory.getLogger(CloudOperationHelperImpl.class);
+    private final QuotaGate quotaGate;
     private final BackingOffRemoteApiExceptionHandler backOffHandler;
+    private final ApiRateLimiter apiRateLimiter;
+    private final TaskAdmission taskAdmission;
+    private final Provider<BackOff> backOffProvider;
 
     @Inject
-    CloudOperationHelperImpl(BackingOffRemoteApiExceptionHandler backOffHandler) {
+    CloudOperationHelperImpl(QuotaGate quotaGate,
+                             BackingOffRemoteApiExceptionHandler backOffHandler,
+                             ApiRateLimiter apiRateLimiter,
+                             TaskAdmission taskAdmission,
+                             @Dependency Provider<BackOff> backOffProvider) {
+        this.quotaGate = checkNotNull(quotaGate);
         this.backOffHandler = checkNotNull(backOffHandler);
+        this.apiRateLimiter = checkNotNull(apiRateLimiter);
+        this.taskAdmission = checkNotNull(taskAdmission);
+        this.backOffProvider = checkNotNull(backOffProvider);
     }
 
     @Override
-    public <T> CompletableFuture<T> withBackOffAndRetry(String operationName, Supplier<CompletableFuture<T>> action, LongConsumer backoffEventConsumer) {
-        return action.get()
-                .thenApply(value -> {
-                    backOffHandler.reset();
-                    return Either.<T, RetryableFailure>left(value);
-                })
-                .exceptionally(exception -> {
-                    var backoffDelayMs = backOffHandler.handle(operationName, exception);
-                    return Either.right(RetryableFailure.of(exception, backoffDelayMs));
-                })
+    public <T> CompletableFuture<T> withBackOffAndRetry(String operationName,
+                                                        ApiQuotaGroup quotaGroup,
+                                                        Supplier<CompletableFuture<T>> action,
+                                                        LongConsumer backoffEventConsumer) {
+        return withBackOffAndRetry(operationName, quotaGroup, action, backoffEventConsumer, Suppliers.memoize(backOffProvider::get), false);
+    }
+
+    private <T> CompletableFuture<T> withBackOffAndRetry(String operationName,
+                                                         ApiQuotaGroup quotaGroup,
+                                                         Supplier<CompletableFuture<T>> action,
+                                                         LongConsumer backoffEventConsumer,
+                                                         Supplier<BackOff> operationBackOff,
+                                                         boolean retry) {
+        return quotaGate.admit()
+                // composed on the rate limiter's future so that the gate hears of the call even if the action throws
+                .thenCompose(admission -> apiRateLimiter.acquire(quotaGroup, retry)
+                        // admitted last, so that the permit is only held while the action occupies the pool
+                        .thenCompose(ignored -> taskAdmission.withPermit(action))
+                        .handle((value, exception) -> {
+                            if (exception == null) {
+                                quotaGate.onNotThrottled(admission);
+                                return Either.<T, RetryableFailure>left(value);
+                            }
+                            var backoffDelayMs = backOffHandler.handle(operationName, exception, admission, operationBackOff);
+                            return Either.<T, RetryableFailure>right(RetryableFailure.of(exception, backoffDelayMs));
+                        }))
                 .thenCompose(eitherValueOrRetryableFailure -> eitherValueOrRetryableFailure.map(
                         CompletableFuture::completedFuture,
                         retryableFailure -> retryableFailure.backoffDelayMs()
                                 .map(backoffDelayMs -> {
-                                    logger.debug("Retrying operation '{}' with backoff {}ms", operationName, retryableFailure.backoffDelayMs());
+                                    logger.debug("Retrying operation '{}' with backoff {}ms", operationName, backoffDelayMs);
                                     backoffEventConsumer.accept(backoffDelayMs);
-                                    return withBackOffAndRetry(operationName, action, backoffEventConsumer);
+                                    // scheduled rather than waited for; if the gate is paused, it holds the retry further
+                                    return CompletableFuture.runAsync(() -> {}, delayedExecutor(backoffDelayMs, MILLISECONDS))
+                                            .thenCompose(ignored -> withBackOffAndRetry(operationName, quotaGroup, action, backoffEventConsumer, operationBackOff, true));
                                 })
                                 .orElseGet(() -> CompletableFutures.failure(retryableFailure.exception()))
                 ));
     }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    @interface Dependency {
+    }
 }
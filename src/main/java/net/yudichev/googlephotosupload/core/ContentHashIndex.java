@@ -0,0 +1,26 @@
+package net.yudichev.googlephotosupload.core;
+
+import net.yudichev.jiotty.common.lang.Closeable;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+interface ContentHashIndex extends Closeable {
+    /**
+     * @return hash of the file content, only computed if no file with the same fingerprint has been hashed before
+     */
+    CompletableFuture<String> hash(LocalFile file, Executor executor);
+
+    Optional<String> mediaIdOf(String contentHash);
+
+    void putMediaId(String contentHash, String mediaId);
+
+    /**
+     * Forgets the media items, but not the hashes of files, which stay valid regardless of what has been uploaded.
+     */
+    void clearMediaIds();
+
+    @Override
+    void close();
+}
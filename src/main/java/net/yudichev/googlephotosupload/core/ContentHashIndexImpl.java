@@ -0,0 +1,112 @@
+package net.yudichev.googlephotosupload.core;
+
+import com.google.common.hash.HashFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.LongStream;
+
+import static com.google.common.hash.Hashing.sha256;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+import static net.yudichev.googlephotosupload.core.Bindings.SettingsRootDir;
+import static net.yudichev.jiotty.common.lang.Locks.inLock;
+import static net.yudichev.jiotty.common.lang.MoreThrowables.asUnchecked;
+import static net.yudichev.jiotty.common.lang.MoreThrowables.getAsUnchecked;
+
+/**
+ * Hashes are SHA-256 of the file size followed by the SHA-256 of each of its {@value #CHUNK_SIZE} byte chunks, which
+ * are memory-mapped and hashed in parallel. They are cached by file fingerprint and mapped to media items in two
+ * {@link MappedItemStateStore}s.
+ */
+final class ContentHashIndexImpl implements ContentHashIndex {
+    private static final Logger logger = LoggerFactory.getLogger(ContentHashIndexImpl.class);
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final HashFunction HASH_FUNCTION = sha256();
+
+    private final Lock lock = new ReentrantLock();
+    private final MappedItemStateStore contentHashByFingerprint;
+    private final MappedItemStateStore mediaIdByContentHash;
+
+    @Inject
+    ContentHashIndexImpl(@SettingsRootDir Path settingsRootDir) {
+        asUnchecked(() -> Files.createDirectories(settingsRootDir));
+        contentHashByFingerprint = new MappedItemStateStore(
+                settingsRootDir.resolve("contentHashes.index"), settingsRootDir.resolve("contentHashes.data"));
+        mediaIdByContentHash = new MappedItemStateStore(
+                settingsRootDir.resolve("mediaIdsByContentHash.index"), settingsRootDir.resolve("mediaIdsByContentHash.data"));
+    }
+
+    @Override
+    public CompletableFuture<String> hash(LocalFile file, Executor executor) {
+        var fingerprintKey = fingerprintKey(file);
+        return inLock(lock, () -> contentHashByFingerprint.get(fingerprintKey))
+                .map(contentHash -> completedFuture(new String(contentHash, UTF_8)))
+                .orElseGet(() -> supplyAsync(() -> {
+                    var contentHash = computeHash(file.path());
+                    logger.debug("Hashed {}: {}", file.path(), contentHash);
+                    inLock(lock, () -> contentHashByFingerprint.put(fingerprintKey, contentHash.getBytes(UTF_8)));
+                    return contentHash;
+                }, executor));
+    }
+
+    @Override
+    public Optional<String> mediaIdOf(String contentHash) {
+        return inLock(lock, () -> mediaIdByContentHash.get(contentHash).map(mediaId -> new String(mediaId, UTF_8)));
+    }
+
+    @Override
+    public void putMediaId(String contentHash, String mediaId) {
+        inLock(lock, () -> mediaIdByContentHash.put(contentHash, mediaId.getBytes(UTF_8)));
+    }
+
+    @Override
+    public void clearMediaIds() {
+        inLock(lock, mediaIdByContentHash::clear);
+    }
+
+    @Override
+    public void close() {
+        inLock(lock, () -> {
+            contentHashByFingerprint.close();
+            mediaIdByContentHash.close();
+        });
+    }
+
+    /**
+     * Without a file key, which not every file system has, the path stands in for it.
+     */
+    private static String fingerprintKey(LocalFile file) {
+        var fingerprint = file.fingerprint();
+        return fingerprint.fileKey().orElseGet(() -> file.path().toString()) + '|' + fingerprint.size() + '|' + fingerprint.lastModified();
+    }
+
+    private static String computeHash(Path file) {
+        return getAsUnchecked(() -> {
+            try (var channel = FileChannel.open(file, READ)) {
+                var size = channel.size();
+                var hasher = HASH_FUNCTION.newHasher().putLong(size);
+                LongStream.range(0, (size + CHUNK_SIZE - 1) / CHUNK_SIZE)
+                        .parallel()
+                        .mapToObj(chunk -> {
+                            var position = chunk * CHUNK_SIZE;
+                            return HASH_FUNCTION.hashBytes(getAsUnchecked(() -> channel.map(READ_ONLY, position, Math.min(CHUNK_SIZE, size - position))));
+                        })
+                        .forEachOrdered(chunkHash -> hasher.putBytes(chunkHash.asBytes()));
+                return hasher.hash().toString();
+            }
+        });
+    }
+}
@@ -15,8 +15,10 @@ import java.util.function.Consumer;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.io.Resources.getResource;
+import static net.yudichev.googlephotosupload.core.AppGlobals.APP_SETTINGS_DIR;
 import static net.yudichev.googlephotosupload.core.AppGlobals.APP_SETTINGS_DIR_NAME;
 import static net.yudichev.googlephotosupload.core.AppGlobals.APP_TITLE;
+import static net.yudichev.googlephotosupload.core.Bindings.SettingsRootDir;
 
 public final class DependenciesModule extends AbstractModule {
     private final Consumer<GoogleApiAuthSettings.Builder> googleApiSettingsCustomiser;
@@ -34,6 +36,7 @@ public final class DependenciesModule extends AbstractModule {
         install(new TimeModule());
         install(new ExecutorModule());
         install(new VarStoreModule(APP_SETTINGS_DIR_NAME));
+        bind(Path.class).annotatedWith(SettingsRootDir.class).toInstance(APP_SETTINGS_DIR);
 
         var authDataStoreRootDir = Paths.get(System.getProperty("user.home")).resolve("." + APP_SETTINGS_DIR_NAME).resolve("auth");
         bind(Restarter.class).to(RestarterImpl.class);
@@ -0,0 +1,20 @@
+package net.yudichev.googlephotosupload.core;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Optional;
+
+interface DirectoryScanCache {
+    /**
+     * @return contents of the directory as last scanned, if it has not been modified since and the scan used the same
+     * exclusion patterns
+     */
+    Optional<DirectoryContents> get(Path directory, Instant lastModified, Preferences preferences);
+
+    void put(Path directory, DirectoryContents directoryContents, Preferences preferences);
+
+    /**
+     * Discards all cached contents, so that the next scan lists every directory again.
+     */
+    void clear();
+}
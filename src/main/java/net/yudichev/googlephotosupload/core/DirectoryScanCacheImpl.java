@@ -0,0 +1,231 @@
+package net.yudichev.googlephotosupload.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.inject.BindingAnnotation;
+import net.yudichev.jiotty.common.inject.BaseLifecycleComponent;
+import net.yudichev.jiotty.common.time.CurrentDateTimeProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.annotation.ElementType.*;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static net.yudichev.googlephotosupload.core.Bindings.SettingsRootDir;
+import static net.yudichev.jiotty.common.lang.Locks.inLock;
+import static net.yudichev.jiotty.common.lang.MoreThrowables.asUnchecked;
+
+/**
+ * Keeps the contents of every scanned directory in a {@link MappedItemStateStore}, keyed by directory path. A
+ * directory's modification time only changes when entries are added, removed or renamed in it, so the cached
+ * fingerprints of its files may be out of date; the walker only checks them against the files themselves if asked to.
+ * <p>
+ * Once superseded records outnumber the live ones, the live records of directories that still exist are copied into a
+ * new pair of files on stop, which replace the current ones on the next start, before they are mapped.
+ */
+final class DirectoryScanCacheImpl extends BaseLifecycleComponent implements DirectoryScanCache {
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryScanCacheImpl.class);
+    private static final int VERSION = 1;
+    /**
+     * A directory modified this recently may be modified again within the same timestamp granularity, which would go
+     * unnoticed, so it is not cached.
+     */
+    private static final Duration MODIFICATION_TIME_RESOLUTION = Duration.ofSeconds(2);
+    private static final int MIN_SUPERSEDED_RECORDS_BEFORE_COMPACTION = 10_000;
+    private static final String INDEX_FILE_NAME = "scanCache.index";
+    private static final String DATA_FILE_NAME = "scanCache.data";
+    private static final String COMPACTED_FILE_NAME_SUFFIX = ".compacted";
+    private static final String COMPACTING_FILE_NAME_SUFFIX = ".compacting";
+
+    private final Path settingsRootDir;
+    private final boolean fullRescan;
+    private final CurrentDateTimeProvider currentDateTimeProvider;
+    private final Lock lock = new ReentrantLock();
+    private MappedItemStateStore store;
+
+    @Inject
+    DirectoryScanCacheImpl(@SettingsRootDir Path settingsRootDir,
+                           @FullRescan boolean fullRescan,
+                           CurrentDateTimeProvider currentDateTimeProvider) {
+        this.settingsRootDir = checkNotNull(settingsRootDir);
+        this.fullRescan = fullRescan;
+        this.currentDateTimeProvider = checkNotNull(currentDateTimeProvider);
+    }
+
+    @Override
+    public Optional<DirectoryContents> get(Path directory, Instant lastModified, Preferences preferences) {
+        checkStarted();
+        return inLock(lock, () -> store.get(directory.toString()))
+                .flatMap(value -> decode(directory, value, preferences))
+                .filter(directoryContents -> directoryContents.lastModified().equals(lastModified));
+    }
+
+    @Override
+    public void put(Path directory, DirectoryContents directoryContents, Preferences preferences) {
+        checkStarted();
+        if (directoryContents.lastModified().isAfter(currentDateTimeProvider.currentInstant().minus(MODIFICATION_TIME_RESOLUTION))) {
+            return;
+        }
+        var value = encode(directory, directoryContents, preferences);
+        inLock(lock, () -> store.put(directory.toString(), value));
+    }
+
+    @Override
+    public void clear() {
+        checkStarted();
+        inLock(lock, this::discardAll);
+    }
+
+    @Override
+    protected void doStart() {
+        inLock(lock, () -> {
+            asUnchecked(() -> {
+                Files.createDirectories(settingsRootDir);
+                replaceWithCompactedFiles();
+            });
+            store = new MappedItemStateStore(settingsRootDir.resolve(INDEX_FILE_NAME), settingsRootDir.resolve(DATA_FILE_NAME));
+            if (fullRescan) {
+                discardAll();
+            }
+        });
+    }
+
+    @Override
+    protected void doStop() {
+        inLock(lock, () -> {
+            if (store.supersededRecordCount() > Math.max(MIN_SUPERSEDED_RECORDS_BEFORE_COMPACTION, store.size())) {
+                asUnchecked(this::compact);
+            }
+            store.close();
+        });
+    }
+
+    private void discardAll() {
+        logger.info("Full rescan requested, discarding {} cached directory scan(s)", store.size());
+        store.clear();
+    }
+
+    private void compact() throws IOException {
+        var compactingIndexFile = settingsRootDir.resolve(INDEX_FILE_NAME + COMPACTING_FILE_NAME_SUFFIX);
+        var compactingDataFile = settingsRootDir.resolve(DATA_FILE_NAME + COMPACTING_FILE_NAME_SUFFIX);
+        // left over if the process died while compacting before
+        Files.deleteIfExists(compactingIndexFile);
+        Files.deleteIfExists(compactingDataFile);
+        var prunedDirectoryCount = new int[1];
+        try (var compactedStore = new MappedItemStateStore(compactingIndexFile, compactingDataFile)) {
+            store.forEach((directory, value) -> {
+                if (Files.isDirectory(Paths.get(directory))) {
+                    compactedStore.put(directory, value);
+                } else {
+                    prunedDirectoryCount[0]++;
+                }
+            });
+        }
+        logger.info("Compacted directory scan cache: {} superseded record(s) and {} directories no longer present dropped",
+                store.supersededRecordCount(), prunedDirectoryCount[0]);
+        // the index is moved last, so that its presence means that both files are complete
+        Files.move(compactingDataFile, settingsRootDir.resolve(DATA_FILE_NAME + COMPACTED_FILE_NAME_SUFFIX), REPLACE_EXISTING);
+        Files.move(compactingIndexFile, settingsRootDir.resolve(INDEX_FILE_NAME + COMPACTED_FILE_NAME_SUFFIX), REPLACE_EXISTING);
+    }
+
+    /**
+     * The files of a store cannot be replaced while they are mapped, so the files compacted on stop are swapped in here.
+     */
+    private void replaceWithCompactedFiles() throws IOException {
+        var compactedIndexFile = settingsRootDir.resolve(INDEX_FILE_NAME + COMPACTED_FILE_NAME_SUFFIX);
+        var compactedDataFile = settingsRootDir.resolve(DATA_FILE_NAME + COMPACTED_FILE_NAME_SUFFIX);
+        if (Files.exists(compactedIndexFile)) {
+            // the data file may have been moved already by a start that died before moving the index
+            if (Files.exists(compactedDataFile)) {
+                Files.move(compactedDataFile, settingsRootDir.resolve(DATA_FILE_NAME), REPLACE_EXISTING);
+            }
+            Files.move(compactedIndexFile, settingsRootDir.resolve(INDEX_FILE_NAME), REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(compactedDataFile);
+        }
+    }
+
+    private static byte[] encode(Path directory, DirectoryContents directoryContents, Preferences preferences) {
+        var out = ByteStreams.newDataOutput();
+        out.writeByte(VERSION);
+        out.write(preferences.scanExclusionPatternsDigest().asBytes());
+        writeInstant(out, directoryContents.lastModified());
+        out.writeInt(directoryContents.subdirectories().size());
+        directoryContents.subdirectories().forEach(subdirectory -> out.writeUTF(directory.relativize(subdirectory).toString()));
+        out.writeInt(directoryContents.files().size());
+        directoryContents.files().forEach(file -> {
+            out.writeUTF(directory.relativize(file.path()).toString());
+            var fingerprint = file.fingerprint();
+            out.writeLong(fingerprint.size());
+            writeInstant(out, fingerprint.lastModified());
+            out.writeBoolean(fingerprint.fileKey().isPresent());
+            fingerprint.fileKey().ifPresent(out::writeUTF);
+        });
+        return out.toByteArray();
+    }
+
+    private static Optional<DirectoryContents> decode(Path directory, byte[] value, Preferences preferences) {
+        var in = ByteStreams.newDataInput(value);
+        if (in.readByte() != VERSION) {
+            return Optional.empty();
+        }
+        var exclusionPatternsDigest = preferences.scanExclusionPatternsDigest();
+        var savedExclusionPatternsDigest = new byte[exclusionPatternsDigest.bits() / Byte.SIZE];
+        in.readFully(savedExclusionPatternsDigest);
+        if (!exclusionPatternsDigest.equals(HashCode.fromBytes(savedExclusionPatternsDigest))) {
+            return Optional.empty();
+        }
+        var lastModified = readInstant(in);
+        var subdirectoryCount = in.readInt();
+        ImmutableList.Builder<Path> subdirectoriesBuilder = ImmutableList.builderWithExpectedSize(subdirectoryCount);
+        for (var i = 0; i < subdirectoryCount; i++) {
+            subdirectoriesBuilder.add(directory.resolve(in.readUTF()));
+        }
+        var fileCount = in.readInt();
+        ImmutableList.Builder<LocalFile> filesBuilder = ImmutableList.builderWithExpectedSize(fileCount);
+        for (var i = 0; i < fileCount; i++) {
+            var file = directory.resolve(in.readUTF());
+            var fingerprintBuilder = FileFingerprint.builder()
+                    .setSize(in.readLong())
+                    .setLastModified(readInstant(in));
+            if (in.readBoolean()) {
+                fingerprintBuilder.setFileKey(in.readUTF());
+            }
+            filesBuilder.add(LocalFile.of(file, fingerprintBuilder.build()));
+        }
+        return Optional.of(DirectoryContents.of(lastModified, subdirectoriesBuilder.build(), filesBuilder.build()));
+    }
+
+    private static void writeInstant(ByteArrayDataOutput out, Instant instant) {
+        out.writeLong(instant.getEpochSecond());
+        out.writeInt(instant.getNano());
+    }
+
+    private static Instant readInstant(ByteArrayDataInput in) {
+        var epochSecond = in.readLong();
+        return Instant.ofEpochSecond(epochSecond, in.readInt());
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    @interface FullRescan {
+    }
+}
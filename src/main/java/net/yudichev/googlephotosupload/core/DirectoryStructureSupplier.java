@@ -1,9 +1,25 @@
 package net.yudichev.googlephotosupload.core;
 
 import java.nio.file.Path;
-import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 interface DirectoryStructureSupplier {
-    CompletableFuture<List<AlbumDirectory>> listAlbumDirectories(Path rootDir);
+    /**
+     * Passes each album directory to the handler as soon as the scan has found it, while the scan carries on. The handler
+     * may block to hold the scan back.
+     *
+     * @return the number of album directories, once the scan is complete
+     */
+    CompletableFuture<Integer> listAlbumDirectories(Path rootDir, Consumer<AlbumDirectory> albumDirectoryHandler);
+
+    /**
+     * Like {@link #listAlbumDirectories(Path, Consumer)}, but only for the given paths created or modified under the root
+     * directory: each directory among them is passed with its whole subtree, and each other directory only with those of
+     * its files that are among them, read afresh.
+     *
+     * @return the number of album directories, once all of them are passed to the handler
+     */
+    CompletableFuture<Integer> listChangedAlbumDirectories(Path rootDir, Set<Path> changedPaths, Consumer<AlbumDirectory> albumDirectoryHandler);
 }
@@ -1,6 +1,5 @@
 package net.yudichev.googlephotosupload.core;
 
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Streams;
 import net.yudichev.jiotty.common.lang.PackagePrivateImmutablesStyle;
 import org.immutables.value.Value;
@@ -8,17 +7,24 @@ import org.immutables.value.Value.Immutable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.util.stream.Collectors.groupingBy;
 
 final class DirectoryStructureSupplierImpl implements DirectoryStructureSupplier {
     private static final Logger logger = LoggerFactory.getLogger(DirectoryStructureSupplierImpl.class);
@@ -49,24 +55,69 @@ final class DirectoryStructureSupplierImpl implements DirectoryStructureSupplier
     }
 
     @Override
-    public CompletableFuture<List<AlbumDirectory>> listAlbumDirectories(Path rootDir) {
+    public CompletableFuture<Integer> listAlbumDirectories(Path rootDir, Consumer<AlbumDirectory> albumDirectoryHandler) {
         checkArgument(Files.isDirectory(rootDir), "Path is not a directory: %s", rootDir);
         var progressStatus = progressStatusFactory.create(resourceBundle.getString("directoryStructureSupplierProgressTitle"), Optional.empty());
         var rootNameCount = rootDir.getNameCount();
         return CompletableFuture.supplyAsync(() -> {
-            logger.info("Building album list from the file system...");
-            ImmutableList.Builder<AlbumDirectory> listBuilder = ImmutableList.builder();
-            filesystemManager.walkDirectories(rootDir, path -> {
-                listBuilder.add(AlbumDirectory.of(path, toAlbumTitle(path, rootNameCount)));
+            logger.info("Scanning the file system for album directories...");
+            var albumDirectoryCount = new AtomicInteger();
+            filesystemManager.walkDirectories(rootDir, scannedDirectory -> {
+                var path = scannedDirectory.path();
+                albumDirectoryHandler.accept(AlbumDirectory.of(path, toAlbumTitle(path, rootNameCount), scannedDirectory.files()));
+                albumDirectoryCount.incrementAndGet();
                 progressStatus.incrementSuccess();
             });
-            List<AlbumDirectory> directoriesByAlbumTitle = listBuilder.build();
-            logger.info("... done, {} directories found that will be used as albums", directoriesByAlbumTitle.size());
+            logger.info("... done, {} directories found that will be used as albums", albumDirectoryCount.get());
             progressStatus.closeSuccessfully();
-            return directoriesByAlbumTitle;
+            return albumDirectoryCount.get();
         });
     }
 
+    @Override
+    public CompletableFuture<Integer> listChangedAlbumDirectories(Path rootDir, Set<Path> changedPaths, Consumer<AlbumDirectory> albumDirectoryHandler) {
+        var rootNameCount = rootDir.getNameCount();
+        return CompletableFuture.supplyAsync(() -> {
+            var albumDirectoryCount = new AtomicInteger();
+            Set<Path> changedDirectories = changedPaths.stream()
+                    .filter(path -> Files.isDirectory(path, NOFOLLOW_LINKS))
+                    .collect(toImmutableSet());
+            // a nested directory is walked along with its changed ancestor
+            changedDirectories.stream()
+                    .filter(directory -> !isUnderAnyOf(directory.getParent(), changedDirectories))
+                    .forEach(directory -> filesystemManager.walkDirectories(directory, scannedDirectory -> {
+                        var path = scannedDirectory.path();
+                        // a file modified in place does not change its directory's modification time, so it may have been listed from cache
+                        List<LocalFile> files = scannedDirectory.files().stream()
+                                .map(file -> changedPaths.contains(file.path()) ? filesystemManager.readFile(file.path()) : Optional.of(file))
+                                .flatMap(Optional::stream)
+                                .collect(toImmutableList());
+                        albumDirectoryHandler.accept(AlbumDirectory.of(path, toAlbumTitle(path, rootNameCount), files));
+                        albumDirectoryCount.incrementAndGet();
+                    }));
+            changedPaths.stream()
+                    .filter(path -> !changedDirectories.contains(path) && !isUnderAnyOf(path.getParent(), changedDirectories))
+                    .map(filesystemManager::readFile)
+                    .flatMap(Optional::stream)
+                    .collect(groupingBy(file -> file.path().getParent()))
+                    .forEach((directory, files) -> {
+                        albumDirectoryHandler.accept(AlbumDirectory.of(directory, toAlbumTitle(directory, rootNameCount), files));
+                        albumDirectoryCount.incrementAndGet();
+                    });
+            logger.info("{} directories with changes found", albumDirectoryCount.get());
+            return albumDirectoryCount.get();
+        });
+    }
+
+    private static boolean isUnderAnyOf(@Nullable Path path, Set<Path> directories) {
+        for (var ancestor = path; ancestor != null; ancestor = ancestor.getParent()) {
+            if (directories.contains(ancestor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Immutable
     @PackagePrivateImmutablesStyle
     interface BaseAlbumDirectory {
@@ -75,5 +126,8 @@ final class DirectoryStructureSupplierImpl implements DirectoryStructureSupplier
 
         @Value.Parameter
         Optional<String> albumTitle();
+
+        @Value.Parameter
+        List<LocalFile> files();
     }
 }
\ No newline at end of file
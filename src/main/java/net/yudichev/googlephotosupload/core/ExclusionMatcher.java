@@ -0,0 +1,270 @@
+package net.yudichev.googlephotosupload.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Matches file names against a set of regular expressions compiled once. Patterns made of literal characters, {@code .},
+ * character sets such as {@code [Pp]} and groups of literal alternatives such as {@code (txt|exe)}, optionally starting
+ * or ending with {@code .*}, are matched character by character from whichever end is fixed, without allocating. The
+ * rest are combined into a single alternation, except for those that refer to their own groups by number or name, as
+ * combining renumbers the groups and may repeat the names, which are matched one by one. Names containing surrogate
+ * pairs, where a {@code .} matches a whole code point, are matched against all patterns combined.
+ */
+final class ExclusionMatcher {
+    private static final int MAX_EXPANDED_ALTERNATIVES = 64;
+    private static final String UNSUPPORTED_SYNTAX = "*+?{}^$|)]";
+
+    private final SimplePattern[] simplePatterns;
+    private final Optional<Pattern> combinedPattern;
+    private final Pattern[] separatePatterns;
+    private final Pattern allCombinablePatternsCombined;
+
+    ExclusionMatcher(Collection<String> patterns) {
+        List<SimplePattern> simplePatternList = new ArrayList<>();
+        List<String> otherPatterns = new ArrayList<>();
+        List<Pattern> separatePatternList = new ArrayList<>();
+        List<String> combinablePatterns = new ArrayList<>();
+        for (var pattern : patterns) {
+            if (refersToGroups(pattern)) {
+                separatePatternList.add(Pattern.compile(pattern));
+            } else {
+                combinablePatterns.add(pattern);
+                SimplePattern.parse(pattern).ifPresentOrElse(simplePatternList::addAll, () -> otherPatterns.add(pattern));
+            }
+        }
+        simplePatterns = simplePatternList.toArray(SimplePattern[]::new);
+        combinedPattern = otherPatterns.isEmpty() ? Optional.empty() : Optional.of(combine(otherPatterns));
+        separatePatterns = separatePatternList.toArray(Pattern[]::new);
+        allCombinablePatternsCombined = combine(combinablePatterns);
+    }
+
+    boolean matches(CharSequence fileName) {
+        if (containsSurrogates(fileName)) {
+            return allCombinablePatternsCombined.matcher(fileName).matches() || separatePatternsMatch(fileName);
+        }
+        for (var simplePattern : simplePatterns) {
+            if (simplePattern.matches(fileName)) {
+                return true;
+            }
+        }
+        return combinedPattern.isPresent() && combinedPattern.get().matcher(fileName).matches() || separatePatternsMatch(fileName);
+    }
+
+    private boolean separatePatternsMatch(CharSequence fileName) {
+        for (var separatePattern : separatePatterns) {
+            if (separatePattern.matcher(fileName).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the pattern has a back-reference, such as {@code \1} or {@code \k<name>}, or a named group, either
+     * of which would break if the pattern were combined with others; may also be true for a pattern that has neither
+     */
+    private static boolean refersToGroups(String pattern) {
+        for (var i = 0; i < pattern.length() - 1; i++) {
+            var c = pattern.charAt(i);
+            var next = pattern.charAt(i + 1);
+            if (c == '\\') {
+                if (next >= '1' && next <= '9' || next == 'k') {
+                    return true;
+                }
+                // escaped character
+                i++;
+            } else if (c == '(' && pattern.startsWith("?<", i + 1) && i + 3 < pattern.length() && Character.isLetter(pattern.charAt(i + 3))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Pattern combine(Collection<String> patterns) {
+        return Pattern.compile(patterns.isEmpty() ?
+                "(?!)" :
+                patterns.stream()
+                        .map(pattern -> "(?:" + pattern + ')')
+                        .collect(joining("|")));
+    }
+
+    private static boolean containsSurrogates(CharSequence fileName) {
+        for (var i = 0; i < fileName.length(); i++) {
+            if (Character.isSurrogate(fileName.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Fixed length sequence of characters, each matching a set of characters or any character but a line terminator, as
+     * {@code .} does, that is anchored at the start or the end of the name, or both.
+     */
+    private static final class SimplePattern {
+        private final char[][] elements;
+        private final boolean anyPrefix;
+        private final boolean anySuffix;
+
+        private SimplePattern(char[][] elements, boolean anyPrefix, boolean anySuffix) {
+            this.elements = elements;
+            this.anyPrefix = anyPrefix;
+            this.anySuffix = anySuffix;
+        }
+
+        /**
+         * @return one simple pattern per expanded alternative, or empty if the pattern uses any other syntax
+         */
+        static Optional<List<SimplePattern>> parse(String pattern) {
+            var start = 0;
+            var end = pattern.length();
+            var anyPrefix = pattern.startsWith(".*");
+            if (anyPrefix) {
+                start = 2;
+            }
+            var anySuffix = end - start >= 2 && pattern.endsWith(".*") && !isEscaped(pattern, end - 2);
+            if (anySuffix) {
+                end -= 2;
+            }
+            if (anyPrefix && anySuffix) {
+                return Optional.empty();
+            }
+
+            List<List<char[]>> alternatives = new ArrayList<>();
+            alternatives.add(new ArrayList<>());
+            var i = start;
+            while (i < end) {
+                var c = pattern.charAt(i);
+                if (c == '\\') {
+                    if (i + 1 >= end || Character.isLetterOrDigit(pattern.charAt(i + 1))) {
+                        return Optional.empty();
+                    }
+                    append(alternatives, new char[]{pattern.charAt(i + 1)});
+                    i += 2;
+                } else if (c == '.') {
+                    append(alternatives, null);
+                    i++;
+                } else if (c == '[') {
+                    var closingIndex = pattern.indexOf(']', i + 1);
+                    if (closingIndex < 0 || closingIndex >= end || closingIndex == i + 1) {
+                        return Optional.empty();
+                    }
+                    var options = pattern.substring(i + 1, closingIndex);
+                    if (options.chars().anyMatch(option -> "^-[\\&".indexOf(option) >= 0 || Character.isSurrogate((char) option))) {
+                        return Optional.empty();
+                    }
+                    append(alternatives, options.toCharArray());
+                    i = closingIndex + 1;
+                } else if (c == '(') {
+                    var closingIndex = pattern.indexOf(')', i + 1);
+                    if (closingIndex < 0 || closingIndex >= end) {
+                        return Optional.empty();
+                    }
+                    var groupAlternatives = pattern.substring(i + 1, closingIndex).split("\\|", -1);
+                    if (alternatives.size() * groupAlternatives.length > MAX_EXPANDED_ALTERNATIVES) {
+                        return Optional.empty();
+                    }
+                    List<List<char[]>> expandedAlternatives = new ArrayList<>();
+                    for (var groupAlternative : groupAlternatives) {
+                        var literal = parseLiteral(groupAlternative);
+                        if (literal.isEmpty()) {
+                            return Optional.empty();
+                        }
+                        for (var alternative : alternatives) {
+                            List<char[]> expandedAlternative = new ArrayList<>(alternative);
+                            literal.get().chars().forEach(literalChar -> expandedAlternative.add(new char[]{(char) literalChar}));
+                            expandedAlternatives.add(expandedAlternative);
+                        }
+                    }
+                    alternatives = expandedAlternatives;
+                    i = closingIndex + 1;
+                } else if (UNSUPPORTED_SYNTAX.indexOf(c) >= 0 || Character.isSurrogate(c)) {
+                    return Optional.empty();
+                } else {
+                    append(alternatives, new char[]{c});
+                    i++;
+                }
+            }
+
+            List<SimplePattern> simplePatterns = new ArrayList<>(alternatives.size());
+            for (var alternative : alternatives) {
+                simplePatterns.add(new SimplePattern(alternative.toArray(char[][]::new), anyPrefix, anySuffix));
+            }
+            return Optional.of(simplePatterns);
+        }
+
+        boolean matches(CharSequence name) {
+            var length = name.length();
+            if (anyPrefix || anySuffix ? length < elements.length : length != elements.length) {
+                return false;
+            }
+            var offset = anyPrefix ? length - elements.length : 0;
+            for (var i = 0; i < elements.length; i++) {
+                if (!elementMatches(elements[i], name.charAt(offset + i))) {
+                    return false;
+                }
+            }
+            // .* does not match line terminators either
+            var wildcardStart = anyPrefix ? 0 : elements.length;
+            var wildcardEnd = anyPrefix ? offset : length;
+            for (var i = wildcardStart; i < wildcardEnd; i++) {
+                if (isLineTerminator(name.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean elementMatches(char[] element, char c) {
+            if (element == null) {
+                return !isLineTerminator(c);
+            }
+            for (var option : element) {
+                if (option == c) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static void append(List<List<char[]>> alternatives, char[] element) {
+            alternatives.forEach(alternative -> alternative.add(element));
+        }
+
+        private static Optional<String> parseLiteral(String pattern) {
+            var literal = new StringBuilder(pattern.length());
+            for (var i = 0; i < pattern.length(); i++) {
+                var c = pattern.charAt(i);
+                if (c == '\\') {
+                    if (i + 1 >= pattern.length() || Character.isLetterOrDigit(pattern.charAt(i + 1))) {
+                        return Optional.empty();
+                    }
+                    literal.append(pattern.charAt(++i));
+                } else if (".[]()".indexOf(c) >= 0 || UNSUPPORTED_SYNTAX.indexOf(c) >= 0 || Character.isSurrogate(c)) {
+                    return Optional.empty();
+                } else {
+                    literal.append(c);
+                }
+            }
+            return Optional.of(literal.toString());
+        }
+
+        private static boolean isEscaped(String pattern, int index) {
+            var backslashCount = 0;
+            for (var i = index - 1; i >= 0 && pattern.charAt(i) == '\\'; i--) {
+                backslashCount++;
+            }
+            return backslashCount % 2 == 1;
+        }
+    }
+}
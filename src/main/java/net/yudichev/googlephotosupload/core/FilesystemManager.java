@@ -1,11 +1,20 @@
 package net.yudichev.googlephotosupload.core;
 
 import java.nio.file.Path;
-import java.util.List;
+import java.util.Optional;
 import java.util.function.Consumer;
 
 interface FilesystemManager {
-    void walkDirectories(Path rootDir, Consumer<Path> directoryHandler);
+    /**
+     * Reports each directory that has relevant files or relevant subdirectories, along with its relevant files, as soon
+     * as its subtree has been walked. The handler is called from the walking threads, one call at a time.
+     */
+    void walkDirectories(Path rootDir, Consumer<ScannedDirectory> directoryHandler);
 
-    List<Path> listFiles(Path directory);
+    /**
+     * Reads the file's current attributes, bypassing the results of previous scans.
+     *
+     * @return the file, or empty if it no longer exists or is not a relevant regular file
+     */
+    Optional<LocalFile> readFile(Path file);
 }
@@ -1,93 +1,285 @@
 package net.yudichev.googlephotosupload.core;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.BindingAnnotation;
+import net.yudichev.jiotty.common.lang.PackagePrivateImmutablesStyle;
+import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.ImmutableList.toImmutableList;
-import static java.nio.file.FileVisitResult.CONTINUE;
-import static java.nio.file.FileVisitResult.SKIP_SUBTREE;
-import static net.yudichev.jiotty.common.lang.MoreThrowables.asUnchecked;
+import static java.lang.annotation.ElementType.*;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.util.Comparator.comparing;
+import static net.yudichev.jiotty.common.lang.Locks.inLock;
 import static net.yudichev.jiotty.common.lang.MoreThrowables.getAsUnchecked;
 
 final class FilesystemManagerImpl implements FilesystemManager {
     private static final Logger logger = LoggerFactory.getLogger(FilesystemManagerImpl.class);
+    /**
+     * Directory reads are mostly spent waiting for metadata round-trips, so this is not tied to the number of cores. A
+     * library normally sits on a single device, so the bound is per walk.
+     */
+    private static final int MAX_CONCURRENT_DIRECTORY_READS = 16;
 
     private final PreferencesSupplier preferencesSupplier;
+    private final DirectoryScanCache directoryScanCache;
+    private final boolean recheckCachedFiles;
 
     @Inject
-    FilesystemManagerImpl(PreferencesSupplier preferencesSupplier) {
+    FilesystemManagerImpl(PreferencesSupplier preferencesSupplier,
+                          DirectoryScanCache directoryScanCache,
+                          @RecheckCachedFiles boolean recheckCachedFiles) {
         this.preferencesSupplier = checkNotNull(preferencesSupplier);
+        this.directoryScanCache = checkNotNull(directoryScanCache);
+        this.recheckCachedFiles = recheckCachedFiles;
     }
 
     @Override
-    public void walkDirectories(Path rootDir, Consumer<Path> directoryHandler) {
+    public void walkDirectories(Path rootDir, Consumer<ScannedDirectory> directoryHandler) {
         var preferences = preferencesSupplier.get();
-        asUnchecked(() -> Files.walkFileTree(rootDir, new SimpleFileVisitor<>() {
-            private final Deque<Integer> relevantItemCountStack = new ArrayDeque<>();
+        if (preferences.anyMatch(rootDir)) {
+            logger.debug("Skipping dir as it matches an ignore pattern: {}", rootDir);
+            return;
+        }
+        var handlerLock = new ReentrantLock();
+        Consumer<ScannedDirectory> serializedDirectoryHandler = scannedDirectory -> inLock(handlerLock, () -> directoryHandler.accept(scannedDirectory));
+        var pool = new ForkJoinPool(MAX_CONCURRENT_DIRECTORY_READS);
+        try {
+            pool.submit(new DirectoryWalkTask(rootDir, preferences, serializedDirectoryHandler, Optional.empty())).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted", e);
+        } catch (ExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                if (Thread.currentThread().isInterrupted()) {
-                    throw new RuntimeException("Interrupted");
-                }
-                if (preferences.noneMatch(file)) {
-                    relevantItemCountStack.push(relevantItemCountStack.pop() + 1);
+    @Override
+    public Optional<LocalFile> readFile(Path file) {
+        if (preferencesSupplier.get().anyMatch(file) || isMarkerFile(file)) {
+            return Optional.empty();
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class, NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            logger.debug("Skipping file as its attributes cannot be read: {}", file, e);
+            return Optional.empty();
+        }
+        return regularFileAttributes(file, attributes).map(fileAttributes -> LocalFile.of(file, fingerprint(fileAttributes)));
+    }
+
+    /**
+     * Symbolic links are followed to files, as they would be by a regular file check, but not to directories.
+     */
+    private static Optional<BasicFileAttributes> regularFileAttributes(Path file, BasicFileAttributes attributes) {
+        if (!attributes.isSymbolicLink()) {
+            return Optional.of(attributes).filter(BasicFileAttributes::isRegularFile);
+        }
+        try {
+            return Optional.of(Files.readAttributes(file, BasicFileAttributes.class)).filter(BasicFileAttributes::isRegularFile);
+        } catch (IOException e) {
+            logger.debug("Skipping link as its target attributes cannot be read: {}", file, e);
+            return Optional.empty();
+        }
+    }
+
+    private static FileFingerprint fingerprint(BasicFileAttributes attributes) {
+        return FileFingerprint.builder()
+                .setSize(attributes.size())
+                .setLastModified(attributes.lastModifiedTime().toInstant())
+                .setFileKey(Optional.ofNullable(attributes.fileKey()).map(Object::toString))
+                .build();
+    }
+
+    private static boolean isMarkerFile(Path file) {
+        return file.getFileName().toString().equals(RootDirRelocationResolverImpl.MARKER_FILE_NAME);
+    }
+
+    /**
+     * Lists a directory, unless its contents are cached and it has not been modified since, in which case its cached
+     * files are trusted as well, unless they are to be rechecked: a file edited in place does not modify its directory,
+     * and is picked up by watch mode instead. Forks a task for each of
+     * its subdirectories that does not match an ignore pattern. Once all of them are done, reports the directory if it is
+     * relevant, that is, if it has any non-ignorable files or relevant subdirectories.
+     *
+     * @return whether the directory is relevant
+     */
+    private final class DirectoryWalkTask extends RecursiveTask<Boolean> {
+        private final Path directory;
+        private final Preferences preferences;
+        private final Consumer<ScannedDirectory> directoryHandler;
+        private final Optional<Instant> knownLastModified;
+
+        DirectoryWalkTask(Path directory, Preferences preferences, Consumer<ScannedDirectory> directoryHandler, Optional<Instant> knownLastModified) {
+            this.directory = checkNotNull(directory);
+            this.preferences = checkNotNull(preferences);
+            this.directoryHandler = checkNotNull(directoryHandler);
+            this.knownLastModified = checkNotNull(knownLastModified);
+        }
+
+        @Override
+        protected Boolean compute() {
+            if (getPool().isShutdown()) {
+                throw new CancellationException("Interrupted");
+            }
+            // read while listing the parent directory, unless the parent's contents came from the cache
+            var lastModified = knownLastModified.orElseGet(() -> getAsUnchecked(() -> Files.getLastModifiedTime(directory, NOFOLLOW_LINKS)).toInstant());
+            Map<Path, Instant> subdirectoryLastModified = new HashMap<>();
+            var directoryContents = directoryScanCache.get(directory, lastModified, preferences)
+                    .flatMap(cachedContents -> recheckCachedFiles ? withCurrentFingerprints(cachedContents) : Optional.of(cachedContents))
+                    .orElseGet(() -> {
+                        var listedDirectoryContents = list(lastModified, subdirectoryLastModified);
+                        directoryScanCache.put(directory, listedDirectoryContents, preferences);
+                        return listedDirectoryContents;
+                    });
+
+            var relevantItemCount = directoryContents.files().size();
+            var subdirectoryTasks = directoryContents.subdirectories().stream()
+                    .map(subdirectory -> new DirectoryWalkTask(subdirectory,
+                            preferences,
+                            directoryHandler,
+                            Optional.ofNullable(subdirectoryLastModified.get(subdirectory))))
+                    .collect(toImmutableList());
+            for (var subdirectoryTask : invokeAll(subdirectoryTasks)) {
+                if (subdirectoryTask.join()) {
+                    // the subdirectory is relevant, so it contributes to this dir's relevant count
+                    relevantItemCount++;
                 }
-                return CONTINUE;
             }
+            if (relevantItemCount > 0) {
+                directoryHandler.accept(ScannedDirectory.of(directory, directoryContents.files()));
+                return true;
+            }
+            logger.debug("Skipping dir as it does not have any non-ignorable files: {}", directory);
+            return false;
+        }
 
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-                if (Thread.currentThread().isInterrupted()) {
-                    throw new RuntimeException("Interrupted");
+        /**
+         * Reads the fingerprint of each cached file again, relative to the open directory where possible, which still
+         * spares listing the directory and matching its entries against the ignore patterns, but costs as many attribute
+         * reads as there are files.
+         *
+         * @return the cached contents with the current fingerprints, or empty if any of the files cannot be read, in which
+         * case the directory is listed again
+         */
+        private Optional<DirectoryContents> withCurrentFingerprints(DirectoryContents cachedContents) {
+            ImmutableList.Builder<LocalFile> filesBuilder = ImmutableList.builderWithExpectedSize(cachedContents.files().size());
+            var changed = false;
+            try (var entries = Files.newDirectoryStream(directory)) {
+                for (var cachedFile : cachedContents.files()) {
+                    var fileAttributes = regularFileAttributes(cachedFile.path(), readAttributes(entries, cachedFile.path()));
+                    if (fileAttributes.isEmpty()) {
+                        return Optional.empty();
+                    }
+                    var fingerprint = fingerprint(fileAttributes.get());
+                    if (!fingerprint.equals(cachedFile.fingerprint())) {
+                        logger.debug("Modified since cached: {}", cachedFile.path());
+                        changed = true;
+                    }
+                    filesBuilder.add(LocalFile.of(cachedFile.path(), fingerprint));
                 }
-                if (preferences.anyMatch(dir)) {
-                    logger.debug("Skipping dir as it matches an ignore pattern: {}", dir);
-                    return SKIP_SUBTREE;
+            } catch (IOException e) {
+                logger.debug("Cached files of {} cannot be read, listing it again", directory, e);
+                return Optional.empty();
+            }
+            var directoryContents = DirectoryContents.of(cachedContents.lastModified(), cachedContents.subdirectories(), filesBuilder.build());
+            if (changed) {
+                directoryScanCache.put(directory, directoryContents, preferences);
+            }
+            return Optional.of(directoryContents);
+        }
+
+        private DirectoryContents list(Instant lastModified, Map<Path, Instant> subdirectoryLastModified) {
+            ImmutableList.Builder<Path> subdirectoriesBuilder = ImmutableList.builder();
+            ImmutableList.Builder<LocalFile> filesBuilder = ImmutableList.builder();
+            for (var entry : getAsUnchecked(() -> listSorted(directory, preferences))) {
+                var entryPath = entry.path();
+                var attributes = entry.attributes();
+                if (attributes.isDirectory()) {
+                    subdirectoriesBuilder.add(entryPath);
+                    subdirectoryLastModified.put(entryPath, attributes.lastModifiedTime().toInstant());
+                } else if (!isMarkerFile(entryPath)) {
+                    regularFileAttributes(entryPath, attributes)
+                            .ifPresent(fileAttributes -> filesBuilder.add(LocalFile.of(entryPath, fingerprint(fileAttributes))));
                 }
-                relevantItemCountStack.push(0);
-                return CONTINUE;
             }
+            return DirectoryContents.of(lastModified, subdirectoriesBuilder.build(), filesBuilder.build());
+        }
+    }
 
-            @Override
-            public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
-                if (relevantItemCountStack.pop() > 0) {
-                    if (!relevantItemCountStack.isEmpty()) {
-                        // this dir is relevant, so it contributes to the parent dir's relevant count
-                        relevantItemCountStack.push(relevantItemCountStack.pop() + 1);
-                    }
-                    directoryHandler.accept(dir);
+    /**
+     * Reads entry attributes relative to the open directory when the stream is a {@link SecureDirectoryStream}, rather
+     * than by resolving each entry's full path again, and does not read them at all for entries that match an ignore
+     * pattern.
+     */
+    private static List<DirectoryEntry> listSorted(Path directory, Preferences preferences) throws IOException {
+        try (var entries = Files.newDirectoryStream(directory)) {
+            List<DirectoryEntry> sortedEntries = new ArrayList<>();
+            for (var entry : entries) {
+                if (preferences.anyMatch(entry)) {
+                    logger.debug("Skipping entry as it matches an ignore pattern: {}", entry);
                 } else {
-                    logger.debug("Skipping dir as it does not have any non-ignorable files: {}", dir);
+                    sortedEntries.add(DirectoryEntry.of(entry, readAttributes(entries, entry)));
                 }
-                return CONTINUE;
             }
-        }));
+            sortedEntries.sort(comparing(DirectoryEntry::path));
+            return sortedEntries;
+        }
     }
 
-    @Override
-    public List<Path> listFiles(Path directory) {
-        var preferences = preferencesSupplier.get();
-        return getAsUnchecked(() -> {
-            try (var pathStream = Files.list(directory)) {
-                return pathStream
-                        .filter(Files::isRegularFile)
-                        .filter(preferences::noneMatch)
-                        .collect(toImmutableList());
-            }
-        });
+    private static BasicFileAttributes readAttributes(DirectoryStream<Path> directoryStream, Path entry) throws IOException {
+        if (directoryStream instanceof SecureDirectoryStream) {
+            return ((SecureDirectoryStream<Path>) directoryStream)
+                    .getFileAttributeView(entry.getFileName(), BasicFileAttributeView.class, NOFOLLOW_LINKS)
+                    .readAttributes();
+        }
+        return Files.readAttributes(entry, BasicFileAttributes.class, NOFOLLOW_LINKS);
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    @interface RecheckCachedFiles {
+    }
+
+    @Value.Immutable
+    @PackagePrivateImmutablesStyle
+    interface BaseDirectoryEntry {
+        @Value.Parameter
+        Path path();
+
+        @Value.Parameter
+        BasicFileAttributes attributes();
     }
 }
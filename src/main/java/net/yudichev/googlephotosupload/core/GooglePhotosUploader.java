@@ -2,14 +2,31 @@ package net.yudichev.googlephotosupload.core;
 
 import net.yudichev.jiotty.connector.google.photos.GooglePhotosAlbum;
 
-import java.nio.file.Path;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 
 interface GooglePhotosUploader {
-    CompletableFuture<Void> uploadDirectory(Path albumDirectoryPath, Optional<GooglePhotosAlbum> googlePhotosAlbum, ProgressStatus fileProgressStatus);
+    /**
+     * Starts uploading the files straight away; only creating their media items and adding them to the album waits for
+     * the album, so that a slow album reconciliation does not hold back the uploads. Items outside of an album are created
+     * as soon as their files are uploaded; items in an album are created once the whole directory is uploaded, in the
+     * order of their files' modification times, which the album then lists them in.
+     *
+     * @param albumFuture the album to upload the files to, or empty for the root directory
+     */
+    CompletableFuture<Void> uploadDirectory(List<LocalFile> files,
+                                            CompletableFuture<Optional<GooglePhotosAlbum>> albumFuture,
+                                            ProgressStatus fileProgressStatus);
 
     void doNotResume();
 
+    /**
+     * Called once a full upload of a root directory has completed without any file failing, so that every file under it
+     * has its state saved under its current path, and the state left under the locations the root directory was moved
+     * from can be dropped.
+     */
+    void onRootDirUploaded();
+
     int canResume();
 }
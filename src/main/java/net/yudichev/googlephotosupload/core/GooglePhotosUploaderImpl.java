@@ -1,7 +1,9 @@
 package net.yudichev.googlephotosupload.core;
 
-import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.rpc.Code;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import net.yudichev.jiotty.common.inject.BaseLifecycleComponent;
 import net.yudichev.jiotty.common.lang.CompletableFutures;
 import net.yudichev.jiotty.common.lang.ResultOrFailure;
@@ -9,6 +11,7 @@ import net.yudichev.jiotty.common.time.CurrentDateTimeProvider;
 import net.yudichev.jiotty.connector.google.photos.GoogleMediaItem;
 import net.yudichev.jiotty.connector.google.photos.GooglePhotosAlbum;
 import net.yudichev.jiotty.connector.google.photos.GooglePhotosClient;
+import net.yudichev.jiotty.connector.google.photos.MediaItemOrError;
 import net.yudichev.jiotty.connector.google.photos.NewMediaItem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,27 +20,36 @@ import javax.inject.Inject;
 import javax.inject.Provider;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Collection;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
 import java.util.stream.Stream;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.base.Throwables.getCausalChain;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableMap.toImmutableMap;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import static com.google.common.collect.Lists.partition;
 import static java.time.temporal.ChronoUnit.HOURS;
 import static java.util.Comparator.comparing;
 import static java.util.concurrent.CompletableFuture.completedFuture;
-import static java.util.concurrent.CompletableFuture.supplyAsync;
-import static java.util.stream.Collectors.toConcurrentMap;
 import static net.yudichev.googlephotosupload.core.Bindings.Backpressured;
 import static net.yudichev.jiotty.common.lang.CompletableFutures.toFutureOfList;
 import static net.yudichev.jiotty.common.lang.CompletableFutures.toFutureOfListChaining;
@@ -54,76 +66,141 @@ final class GooglePhotosUploaderImpl extends BaseLifecycleComponent implements G
     private final GooglePhotosClient googlePhotosClient;
     private final StateSaverFactory stateSaverFactory;
     private final UploadStateManager uploadStateManager;
+    private final RootDirRelocationResolver rootDirRelocationResolver;
+    private final Optional<ContentHashIndex> contentHashIndex;
     private final CurrentDateTimeProvider currentDateTimeProvider;
     private final CloudOperationHelper cloudOperationHelper;
+    private final MediaItemCreationBatcher mediaItemCreationBatcher;
+    private final UploadConcurrencyController uploadConcurrencyController;
+    private final TaskAdmission taskAdmission;
 
-    private final FilesystemManager filesystemManager;
     private final Provider<ExecutorService> executorServiceProvider;
-    private final BackingOffRemoteApiExceptionHandler backOffHandler;
     private final FatalUserCorrectableRemoteApiExceptionHandler fatalUserCorrectableHandler;
     private final Lock stateLock = new ReentrantLock();
+    private final Lock saveLock = new ReentrantLock();
+    private final Set<Path> dirtyPaths = ConcurrentHashMap.newKeySet();
+    private final Map<Path, String> contentHashByPath = new ConcurrentHashMap<>();
+    private final Set<Path> deduplicatedPaths = ConcurrentHashMap.newKeySet();
+    private final Set<String> nonWritableAlbumIds = ConcurrentHashMap.newKeySet();
 
     private StateSaver stateSaver;
     private ExecutorService executorService;
     private Map<Path, CompletableFuture<ItemState>> uploadedItemStateByPath;
-    private UploadState uploadState;
 
     @Inject
     GooglePhotosUploaderImpl(GooglePhotosClient googlePhotosClient,
-                             FilesystemManager filesystemManager,
                              @Backpressured Provider<ExecutorService> executorServiceProvider,
-                             BackingOffRemoteApiExceptionHandler backOffHandler,
                              FatalUserCorrectableRemoteApiExceptionHandler fatalUserCorrectableHandler,
                              StateSaverFactory stateSaverFactory,
                              UploadStateManager uploadStateManager,
+                             RootDirRelocationResolver rootDirRelocationResolver,
+                             Optional<ContentHashIndex> contentHashIndex,
                              CurrentDateTimeProvider currentDateTimeProvider,
-                             CloudOperationHelper cloudOperationHelper) {
-        this.filesystemManager = checkNotNull(filesystemManager);
+                             CloudOperationHelper cloudOperationHelper,
+                             MediaItemCreationBatcher mediaItemCreationBatcher,
+                             UploadConcurrencyController uploadConcurrencyController,
+                             TaskAdmission taskAdmission) {
         this.executorServiceProvider = checkNotNull(executorServiceProvider);
-        this.backOffHandler = checkNotNull(backOffHandler);
         this.fatalUserCorrectableHandler = checkNotNull(fatalUserCorrectableHandler);
         this.googlePhotosClient = checkNotNull(googlePhotosClient);
         this.stateSaverFactory = checkNotNull(stateSaverFactory);
         this.uploadStateManager = checkNotNull(uploadStateManager);
+        this.rootDirRelocationResolver = checkNotNull(rootDirRelocationResolver);
+        this.contentHashIndex = checkNotNull(contentHashIndex);
         this.currentDateTimeProvider = checkNotNull(currentDateTimeProvider);
         this.cloudOperationHelper = checkNotNull(cloudOperationHelper);
+        this.mediaItemCreationBatcher = checkNotNull(mediaItemCreationBatcher);
+        this.uploadConcurrencyController = checkNotNull(uploadConcurrencyController);
+        this.taskAdmission = checkNotNull(taskAdmission);
     }
 
     @Override
-    public CompletableFuture<Void> uploadDirectory(Path albumDirectoryPath, Optional<GooglePhotosAlbum> googlePhotosAlbum, ProgressStatus fileProgressStatus) {
+    public CompletableFuture<Void> uploadDirectory(List<LocalFile> files,
+                                                   CompletableFuture<Optional<GooglePhotosAlbum>> albumFuture,
+                                                   ProgressStatus fileProgressStatus) {
         checkStarted();
 
-        return supplyAsync(() -> filesystemManager.listFiles(albumDirectoryPath))
-                .thenCompose(paths -> paths.stream()
-                        .map(path -> createMediaData(path)
-                                .thenApply(itemState -> {
-                                    itemState.toFailure().ifPresentOrElse(
-                                            error -> fileProgressStatus.addFailure(KeyedError.of(path, error)),
-                                            fileProgressStatus::incrementSuccess);
-                                    return PathState.of(path, itemState);
-                                }))
+        // largest files start first so that they do not end up as a long tail
+        LongConsumer backoffEventConsumer = fileProgressStatus::onBackoffDelay;
+        Set<Throwable> handledCreationExceptions = ConcurrentHashMap.newKeySet();
+        Map<Path, CompletableFuture<PathState>> pathStateFutureByPath = new HashMap<>();
+        Map<Path, CompletableFuture<Optional<PathMediaItemOrError>>> createdItemFutureByPath = new HashMap<>();
+        Map<Path, Instant> lastModifiedByPath = new HashMap<>();
+        // decided once for the whole directory, as its items are created either as they are uploaded or all in order
+        var writableAlbumFuture = albumFuture.thenApply(googlePhotosAlbum -> googlePhotosAlbum.filter(album -> !nonWritableAlbumIds.contains(album.getId())));
+        files.stream()
+                .sorted(comparing((LocalFile localFile) -> localFile.fingerprint().size()).reversed())
+                .forEach(localFile -> {
+                    var pathStateFuture = createMediaData(localFile, backoffEventConsumer)
+                            .thenApply(itemState -> {
+                                itemState.toFailure().ifPresentOrElse(
+                                        error -> fileProgressStatus.addFailure(KeyedError.of(localFile.path(), error)),
+                                        fileProgressStatus::incrementSuccess);
+                                return PathState.of(localFile.path(), itemState);
+                            });
+                    pathStateFutureByPath.put(localFile.path(), pathStateFuture);
+                    lastModifiedByPath.put(localFile.path(), localFile.fingerprint().lastModified());
+                    // outside of an album, created as soon as uploaded, while the rest of the directory is still being uploaded
+                    createdItemFutureByPath.put(localFile.path(), pathStateFuture.thenCompose(pathState -> writableAlbumFuture.thenCompose(writableAlbum ->
+                            writableAlbum.isPresent() ?
+                                    completedFuture(Optional.empty()) :
+                                    albumFuture.thenCompose(googlePhotosAlbum -> createMediaItem(fileProgressStatus, pathState, localFile.fingerprint().lastModified(),
+                                            googlePhotosAlbum, backoffEventConsumer, handledCreationExceptions)))));
+                });
+        return files.stream()
+                .map(localFile -> pathStateFutureByPath.get(localFile.path()))
+                .collect(toFutureOfList())
+                .thenCompose(createMediaDataResults -> files.stream()
+                        .map(localFile -> createdItemFutureByPath.get(localFile.path()))
                         .collect(toFutureOfList())
-                        .thenCompose(createMediaDataResults -> partition(createMediaDataResults, GOOGLE_PHOTOS_API_BATCH_SIZE).stream()
-                                .collect(toFutureOfListChaining(pathStates -> createMediaItems(fileProgressStatus, pathStates)))
-                                .thenApply(lists -> lists.stream().flatMap(Collection::stream)))
-                        .thenCompose(pathMediaItemOrErrorStream -> addToAlbum(googlePhotosAlbum, pathMediaItemOrErrorStream, fileProgressStatus)));
+                        .thenCompose(createdItems -> writableAlbumFuture.thenCompose(writableAlbum -> {
+                            var deduplicatedPathStates = deduplicatedPathStates(createMediaDataResults);
+                            return writableAlbum
+                                    .map(album -> createInAlbumInOrder(album, createMediaDataResults, deduplicatedPathStates, lastModifiedByPath,
+                                            fileProgressStatus, backoffEventConsumer, handledCreationExceptions))
+                                    .orElseGet(() -> albumFuture.thenCompose(googlePhotosAlbum -> addToAlbum(googlePhotosAlbum,
+                                            createdItems.stream().flatMap(Optional::stream),
+                                            deduplicatedPathStates,
+                                            fileProgressStatus)));
+                        })));
     }
 
     @Override
     public void doNotResume() {
-        inLock(stateLock, () -> {
-            logger.info("Requested not to resume, forgetting {} previously uploaded item(s)", uploadedItemStateByPath.size());
-            uploadState = UploadState.builder().build();
-            uploadStateManager.save(uploadState);
+        inLock(stateLock, () -> inLock(saveLock, () -> {
+            logger.info("Requested not to resume, forgetting all previously uploaded items");
+            uploadStateManager.save(UploadState.builder().build());
             uploadedItemStateByPath.clear();
-        });
+            dirtyPaths.clear();
+            contentHashIndex.ifPresent(ContentHashIndex::clearMediaIds);
+            contentHashByPath.clear();
+            deduplicatedPaths.clear();
+        }));
+    }
+
+    @Override
+    public void onRootDirUploaded() {
+        inLock(stateLock, () -> inLock(saveLock, () -> {
+            var vacatedRootDirs = rootDirRelocationResolver.vacatedRootDirs();
+            if (!vacatedRootDirs.isEmpty()) {
+                saveState();
+                var itemStateByAbsolutePath = uploadStateManager.get().uploadedMediaItemIdByAbsolutePath();
+                var remainingItemStateByAbsolutePath = itemStateByAbsolutePath.entrySet().stream()
+                        .filter(entry -> vacatedRootDirs.stream().noneMatch(Paths.get(entry.getKey())::startsWith))
+                        .collect(toImmutableMap(Map.Entry::getKey, Map.Entry::getValue));
+                if (remainingItemStateByAbsolutePath.size() < itemStateByAbsolutePath.size()) {
+                    logger.info("Dropping {} item state(s) saved under {}",
+                            itemStateByAbsolutePath.size() - remainingItemStateByAbsolutePath.size(), vacatedRootDirs);
+                    uploadStateManager.save(UploadState.of(remainingItemStateByAbsolutePath));
+                }
+            }
+            rootDirRelocationResolver.forgetPreviousLocations();
+        }));
     }
 
     @Override
     public int canResume() {
-        return (int) uploadStateManager.get().uploadedMediaItemIdByAbsolutePath().values().stream()
-                .filter(itemState -> itemState.mediaId().isPresent())
-                .count();
+        return uploadStateManager.uploadedItemCount();
     }
 
     @Override
@@ -131,124 +208,285 @@ final class GooglePhotosUploaderImpl extends BaseLifecycleComponent implements G
         inLock(stateLock, () -> {
             executorService = executorServiceProvider.get();
             stateSaver = stateSaverFactory.create("uploaded-items", this::saveState);
-            uploadState = uploadStateManager.get();
-            uploadedItemStateByPath = uploadState.uploadedMediaItemIdByAbsolutePath().entrySet().stream()
-                    .collect(toConcurrentMap(
-                            entry -> Paths.get(entry.getKey()),
-                            entry -> completedFuture(entry.getValue())));
+            // persisted states are looked up lazily, so that only the items touched by this run are held on heap
+            uploadedItemStateByPath = new ConcurrentHashMap<>();
         });
     }
 
     @Override
     protected void doStop() {
-        inLock(stateLock, () -> stateSaver.close());
+        inLock(stateLock, () -> {
+            stateSaver.close();
+            // the last conflated save may still be in flight; flush synchronously so that nothing is left out of the snapshot
+            saveState();
+            uploadStateManager.close();
+            contentHashIndex.ifPresent(ContentHashIndex::close);
+        });
     }
 
     /**
-     * @return list of items that were successfully created, which may be less in size than the specified
-     * {@code createMediaDataResults}
+     * Creates the item straight in the album, or, if there is no permission to, as the album was not created by this
+     * application, outside of it; such albums are remembered, so that their items are created outside of them straight
+     * away.
+     *
+     * @param handledExceptions exceptions of failed creation requests already passed to the fatal error handler for
+     *                          this directory; items of the same request fail with the same exception
+     * @return the created item if it still needs to be added to the album, otherwise empty
      */
-    private CompletableFuture<List<PathMediaItemOrError>> createMediaItems(ProgressStatus fileProgressStatus,
-                                                                           List<PathState> createMediaDataResults) {
-        List<PathState> pendingPathStates = createMediaDataResults.stream()
-                .filter(pathState -> {
-                    var itemStateOptional = pathState.state().toSuccess();
-                    return itemStateOptional.isPresent() &&
-                            itemStateOptional.get().mediaId().isEmpty();
-                })
-                .collect(toImmutableList());
-        if (pendingPathStates.isEmpty()) {
-            return completedFuture(ImmutableList.of());
+    private CompletableFuture<Optional<PathMediaItemOrError>> createMediaItem(ProgressStatus fileProgressStatus,
+                                                                             PathState pathState,
+                                                                             Instant fileLastModified,
+                                                                             Optional<GooglePhotosAlbum> googlePhotosAlbum,
+                                                                             LongConsumer backoffEventConsumer,
+                                                                             Set<Throwable> handledExceptions) {
+        var pendingItemState = pendingItemState(pathState);
+        if (pendingItemState.isEmpty()) {
+            return completedFuture(Optional.empty());
         }
 
-        List<NewMediaItem> pendingNewMediaItems = pendingPathStates.stream()
-                .map(pathState -> NewMediaItem.of(pathState.state().toSuccess().get().uploadState().get().token(),
-                        Optional.of(pathState.path().getFileName().toString())))
-                .collect(toImmutableList());
-        return cloudOperationHelper.withBackOffAndRetry(
-                "create media items",
-                () -> googlePhotosClient.createMediaItems(Optional.empty(), pendingNewMediaItems, executorService),
-                fileProgressStatus::onBackoffDelay)
-                .<List<PathMediaItemOrError>>thenApply(mediaItemOrErrors -> {
-                    ImmutableList.Builder<PathMediaItemOrError> resultListBuilder = ImmutableList.builder();
-                    for (var i = 0; i < pendingPathStates.size(); i++) {
-                        var pathState = pendingPathStates.get(i);
-                        var mediaItemOrError = mediaItemOrErrors.get(i);
-                        mediaItemOrError.errorStatus().ifPresent(status -> fileProgressStatus.addFailure(
-                                KeyedError.of(pathState.path(), Code.forNumber(status.getCode()) + ": " + status.getMessage())));
-                        mediaItemOrError.item().ifPresent(item -> {
-                            uploadedItemStateByPath.compute(pathState.path(),
-                                    (path, itemStateFuture) -> checkNotNull(itemStateFuture).thenApply(itemState -> itemState.withMediaId(item.getId())));
-                            resultListBuilder.add(PathMediaItemOrError.of(pathState.path(), item));
-                        });
-                    }
-                    return resultListBuilder.build();
-                })
-                .exceptionally(throwable -> {
-                    if (fatalUserCorrectableHandler.handle("create media items", throwable)) {
-                        //noinspection Convert2MethodRef compiler fails for some reason
-                        pendingPathStates.stream()
-                                .map(PathState::path)
-                                .map(path -> KeyedError.of(path, humanReadableMessage(throwable)))
-                                .forEach(keyedError -> fileProgressStatus.addFailure(keyedError));
-                        return ImmutableList.of();
-                    } else {
-                        throw new RuntimeException(throwable);
+        var path = pathState.path();
+        var newMediaItem = NewMediaItem.of(pendingItemState.get().uploadState().get().token(), Optional.of(path.getFileName().toString()));
+        return googlePhotosAlbum
+                .filter(album -> !nonWritableAlbumIds.contains(album.getId()))
+                .map(album -> mediaItemCreationBatcher.create(Optional.of(album.getId()), newMediaItem, fileLastModified, backoffEventConsumer)
+                        .handle((mediaItemOrError, throwable) -> {
+                            if (throwable == null) {
+                                onCreated(fileProgressStatus, path, mediaItemOrError, Optional.of(album.getId()));
+                                return completedFuture(Optional.<PathMediaItemOrError>empty());
+                            }
+                            if (isPermissionError(throwable)) {
+                                if (nonWritableAlbumIds.add(album.getId())) {
+                                    logger.info("No permission to create media items in album {}, creating them outside of it", album.getTitle(), throwable);
+                                }
+                                return createMediaItemOutsideOfAlbum(fileProgressStatus, path, newMediaItem, fileLastModified, backoffEventConsumer, handledExceptions);
+                            }
+                            return completedFuture(onCreationFailed(fileProgressStatus, path, throwable, handledExceptions));
+                        })
+                        .thenCompose(Function.identity()))
+                .orElseGet(() -> createMediaItemOutsideOfAlbum(fileProgressStatus, path, newMediaItem, fileLastModified, backoffEventConsumer, handledExceptions));
+    }
+
+    /**
+     * Creates the items straight in the album, and adds the deduplicated ones to it, in the order of their files'
+     * modification times, one request after another, so that the album lists them in that order regardless of the order
+     * in which the files were uploaded. Items that cannot be created in the album are created outside of it and added to
+     * it last.
+     */
+    private CompletableFuture<Void> createInAlbumInOrder(GooglePhotosAlbum album,
+                                                         List<PathState> pathStates,
+                                                         List<PathState> deduplicatedPathStates,
+                                                         Map<Path, Instant> lastModifiedByPath,
+                                                         ProgressStatus fileProgressStatus,
+                                                         LongConsumer backoffEventConsumer,
+                                                         Set<Throwable> handledCreationExceptions) {
+        var deduplicatedPaths = deduplicatedPathStates.stream()
+                .map(PathState::path)
+                .collect(toImmutableSet());
+        // consecutive items of the same kind share requests
+        List<List<PathState>> runs = new ArrayList<>();
+        pathStates.stream()
+                .filter(pathState -> deduplicatedPaths.contains(pathState.path()) || pendingItemState(pathState).isPresent())
+                .sorted(comparing(pathState -> lastModifiedByPath.get(pathState.path())))
+                .forEach(pathState -> {
+                    var lastRun = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+                    if (lastRun == null || lastRun.size() == GOOGLE_PHOTOS_API_BATCH_SIZE ||
+                            deduplicatedPaths.contains(lastRun.get(0).path()) != deduplicatedPaths.contains(pathState.path())) {
+                        lastRun = new ArrayList<>();
+                        runs.add(lastRun);
                     }
+                    lastRun.add(pathState);
                 });
+        // only touched by one run at a time
+        List<PathMediaItemOrError> createdOutsideOfAlbum = new ArrayList<>();
+        CompletableFuture<Void> runsFuture = completedFuture(null);
+        for (var run : runs) {
+            runsFuture = runsFuture.thenCompose(ignored -> deduplicatedPaths.contains(run.get(0).path()) ?
+                    addToAlbum(Optional.of(album), Stream.empty(), run, fileProgressStatus) :
+                    run.stream()
+                            .map(pathState -> createMediaItem(fileProgressStatus, pathState, lastModifiedByPath.get(pathState.path()), Optional.of(album),
+                                    backoffEventConsumer, handledCreationExceptions))
+                            .collect(toFutureOfList())
+                            .thenAccept(createdItems -> createdItems.forEach(createdItem -> createdItem.ifPresent(createdOutsideOfAlbum::add))));
+        }
+        return runsFuture.thenCompose(ignored -> createdOutsideOfAlbum.isEmpty() ?
+                CompletableFutures.completedFuture() :
+                addToAlbum(Optional.of(album), createdOutsideOfAlbum.stream(), List.of(), fileProgressStatus));
+    }
+
+    private CompletableFuture<Optional<PathMediaItemOrError>> createMediaItemOutsideOfAlbum(ProgressStatus fileProgressStatus,
+                                                                                           Path path,
+                                                                                           NewMediaItem newMediaItem,
+                                                                                           Instant fileLastModified,
+                                                                                           LongConsumer backoffEventConsumer,
+                                                                                           Set<Throwable> handledExceptions) {
+        return mediaItemCreationBatcher.create(Optional.empty(), newMediaItem, fileLastModified, backoffEventConsumer)
+                .handle((mediaItemOrError, throwable) -> throwable == null ?
+                        onCreated(fileProgressStatus, path, mediaItemOrError, Optional.empty())
+                                .map(item -> PathMediaItemOrError.of(path, item)) :
+                        onCreationFailed(fileProgressStatus, path, throwable, handledExceptions));
+    }
+
+    /**
+     * @return the state of the uploaded file whose media item is yet to be created, empty if there is no such item
+     */
+    private static Optional<ItemState> pendingItemState(PathState pathState) {
+        return pathState.state().toSuccess()
+                .filter(itemState -> itemState.mediaId().isEmpty());
+    }
+
+    private Optional<PathMediaItemOrError> onCreationFailed(ProgressStatus fileProgressStatus,
+                                                            Path path,
+                                                            Throwable throwable,
+                                                            Set<Throwable> handledExceptions) {
+        if (handledExceptions.add(throwable) && !fatalUserCorrectableHandler.handle("create media items", throwable)) {
+            throw new RuntimeException(throwable);
+        }
+        fileProgressStatus.addFailure(KeyedError.of(path, humanReadableMessage(throwable)));
+        return Optional.empty();
     }
 
-    private CompletableFuture<ResultOrFailure<ItemState>> createMediaData(Path file) {
+    /**
+     * Only albums created by this application can have items added to them; the API reports other albums with an
+     * invalid argument error.
+     */
+    private static boolean isPermissionError(Throwable throwable) {
+        return getCausalChain(throwable).stream()
+                .filter(StatusRuntimeException.class::isInstance)
+                .map(e -> ((StatusRuntimeException) e).getStatus())
+                .anyMatch(status -> status.getCode() == Status.Code.PERMISSION_DENIED ||
+                        status.getCode() == Status.Code.INVALID_ARGUMENT &&
+                                status.getDescription() != null &&
+                                status.getDescription().toLowerCase(Locale.ROOT).contains("permission"));
+    }
+
+    private Optional<GoogleMediaItem> onCreated(ProgressStatus fileProgressStatus, Path path, MediaItemOrError mediaItemOrError, Optional<String> albumId) {
+        mediaItemOrError.errorStatus().ifPresent(status -> fileProgressStatus.addFailure(
+                KeyedError.of(path, Code.forNumber(status.getCode()) + ": " + status.getMessage())));
+        mediaItemOrError.item().ifPresent(item -> {
+            uploadedItemStateByPath.compute(path, (thePath, itemStateFuture) -> checkNotNull(itemStateFuture)
+                    .thenApply(itemState -> itemState.withMediaId(item.getId()).withAlbumId(albumId)));
+            dirtyPaths.add(path);
+            contentHashIndex.ifPresent(index -> Optional.ofNullable(contentHashByPath.remove(path))
+                    .ifPresent(contentHash -> index.putMediaId(contentHash, item.getId())));
+            stateSaver.save();
+        });
+        return mediaItemOrError.item();
+    }
+
+    private CompletableFuture<ResultOrFailure<ItemState>> createMediaData(LocalFile localFile, LongConsumer backoffEventConsumer) {
         checkStarted();
-        return inLock(stateLock, () -> uploadedItemStateByPath.compute(file,
-                (theFile, currentFuture) -> {
-                    if (currentFuture == null || currentFuture.isCompletedExceptionally()) {
-                        logger.info("Scheduling upload of {}", file);
-                        currentFuture = doCreateMediaData(theFile);
-                    } else {
-                        var itemState = currentFuture.getNow(null);
-                        if (itemState != null) {
-                            currentFuture = itemState.uploadState()
-                                    .filter(uploadMediaItemState -> {
-                                        if (itemState.mediaId().isPresent()) {
-                                            return true;
-                                        }
-                                        return uploadTokenNotExpired(file, uploadMediaItemState);
-                                    })
-                                    .map(uploadMediaItemState -> {
-                                        logger.info("Already uploaded, skipping: {}", file);
-                                        return completedFuture(itemState);
-                                    })
-                                    .orElseGet(() -> {
-                                        logger.info("Uploaded, but upload token expired, re-uploading: {}", file);
-                                        return doCreateMediaData(theFile);
-                                    });
+        var file = localFile.path();
+        var fingerprint = localFile.fingerprint();
+        return inLock(stateLock, () -> {
+            // marked dirty only once the new future is in the map, so that saveState() never consumes the mark and saves the old state
+            var stateToBeSaved = new AtomicBoolean();
+            var uploadScheduled = new AtomicBoolean();
+            var itemStateFuture = uploadedItemStateByPath.compute(file,
+                    (theFile, currentFuture) -> {
+                        if (currentFuture == null) {
+                            var persistedItemState = uploadStateManager.getItemState(theFile.toString());
+                            if (persistedItemState.isEmpty()) {
+                                persistedItemState = lookUpItemStateSavedBeforeRootDirMoved(theFile);
+                                // re-saved under the new path; the state under the previous locations is dropped by onRootDirUploaded()
+                                stateToBeSaved.set(persistedItemState.isPresent());
+                            }
+                            currentFuture = persistedItemState
+                                    .map(CompletableFuture::completedFuture)
+                                    .orElse(null);
+                        }
+                        if (currentFuture == null || currentFuture.isCompletedExceptionally()) {
+                            logger.info("Scheduling upload of {}", file);
+                            currentFuture = doCreateMediaData(localFile, backoffEventConsumer);
+                            uploadScheduled.set(true);
                         } else {
-                            logger.error("Unexpected future state for {}: {}", file, currentFuture);
+                            var itemState = currentFuture.getNow(null);
+                            if (itemState != null) {
+                                if (changedSinceUploaded(itemState, fingerprint)) {
+                                    logger.info("Changed since uploaded, re-uploading: {}", file);
+                                    currentFuture = doCreateMediaData(localFile, backoffEventConsumer);
+                                    uploadScheduled.set(true);
+                                } else if (itemState.mediaId().isPresent() ||
+                                        itemState.uploadState().filter(uploadMediaItemState -> uploadTokenNotExpired(file, uploadMediaItemState)).isPresent()) {
+                                    // a media item may have no upload state if it was deduplicated against another file's one
+                                    logger.info("Already uploaded, skipping: {}", file);
+                                    if (!itemState.fingerprint().equals(Optional.of(fingerprint))) {
+                                        itemState = itemState.withFingerprint(fingerprint);
+                                        stateToBeSaved.set(true);
+                                    }
+                                    currentFuture = completedFuture(itemState);
+                                } else {
+                                    logger.info("Uploaded, but upload token expired, re-uploading: {}", file);
+                                    currentFuture = doCreateMediaData(localFile, backoffEventConsumer);
+                                    uploadScheduled.set(true);
+                                }
+                            } else {
+                                logger.error("Unexpected future state for {}: {}", file, currentFuture);
+                            }
                         }
-                    }
-                    return currentFuture;
-                })
-                .thenApply(itemState -> {
-                    stateSaver.save();
-                    backOffHandler.reset();
-                    return success(itemState);
-                })
-                .exceptionallyCompose(exception -> {
-                    var operationName = "uploading file " + file;
-                    if (fatalUserCorrectableHandler.handle(operationName, exception)) {
-                        return completedFuture(failure(humanReadableMessage(exception)));
-                    } else if (backOffHandler.handle(operationName, exception).isPresent()) {
-                        logger.debug("Retrying upload of {}", file);
-                        return createMediaData(file);
-                    } else {
-                        throw new RuntimeException(exception);
-                    }
-                }));
+                        return currentFuture;
+                    });
+            if (stateToBeSaved.get()) {
+                dirtyPaths.add(file);
+            }
+            if (uploadScheduled.get()) {
+                // registered on the stored future, so that saveState() never consumes the mark while the state is still pending
+                itemStateFuture.thenRun(() -> dirtyPaths.add(file));
+            }
+            return itemStateFuture
+                    .thenApply(itemState -> {
+                        stateSaver.save();
+                        return success(itemState);
+                    })
+                    .exceptionally(exception -> {
+                        var operationName = "uploading file " + file;
+                        if (fatalUserCorrectableHandler.handle(operationName, exception)) {
+                            return failure(humanReadableMessage(exception));
+                        } else {
+                            throw new RuntimeException(exception);
+                        }
+                    });
+        });
+    }
+
+    private Optional<ItemState> lookUpItemStateSavedBeforeRootDirMoved(Path file) {
+        return rootDirRelocationResolver.previousLocations(file).stream()
+                .flatMap(previousLocation -> uploadStateManager.getItemState(previousLocation.toString()).stream())
+                .findFirst()
+                .map(itemState -> {
+                    logger.debug("Found state of {} saved under its location before the root directory was moved", file);
+                    // file keys are specific to the file system the file was on, so they are not comparable after a move
+                    return itemState.fingerprint()
+                            .map(fingerprint -> itemState.withFingerprint(fingerprint.withFileKey(Optional.empty())))
+                            .orElse(itemState);
+                });
+    }
+
+    /**
+     * A file whose state was saved without a fingerprint, or with no file key, is considered unchanged: there is nothing
+     * to tell otherwise.
+     */
+    private static boolean changedSinceUploaded(ItemState itemState, FileFingerprint fingerprint) {
+        return itemState.fingerprint()
+                .filter(savedFingerprint -> savedFingerprint.size() != fingerprint.size() ||
+                        !savedFingerprint.lastModified().equals(fingerprint.lastModified()) ||
+                        savedFingerprint.fileKey().isPresent() && fingerprint.fileKey().isPresent() &&
+                                !savedFingerprint.fileKey().equals(fingerprint.fileKey()))
+                .isPresent();
+    }
+
+    private List<PathState> deduplicatedPathStates(List<PathState> pathStates) {
+        return pathStates.stream()
+                .filter(pathState -> deduplicatedPaths.remove(pathState.path()))
+                .collect(toImmutableList());
     }
 
+    /**
+     * @param deduplicatedPathStates states of the files that were not uploaded as their content matched an existing media
+     *                               item, which still needs to be added to this directory's album
+     */
     private CompletionStage<Void> addToAlbum(Optional<GooglePhotosAlbum> googlePhotosAlbum,
                                              Stream<PathMediaItemOrError> pathMediaItemOrErrorStream,
+                                             List<PathState> deduplicatedPathStates,
                                              ProgressStatus fileProgressStatus) {
         return googlePhotosAlbum
                 .map(album -> {
@@ -263,16 +501,22 @@ final class GooglePhotosUploaderImpl extends BaseLifecycleComponent implements G
                             .map(PathMediaItemOrError::mediaItem)
                             .sorted(comparing(GoogleMediaItem::getCreationTime))
                             .collect(toImmutableList());
+                    List<String> deduplicatedMediaItemIds = deduplicatedPathStates.stream()
+                            .map(pathState -> pathState.state().toSuccess().flatMap(ItemState::mediaId).get())
+                            .collect(toImmutableList());
                     return cloudOperationHelper.withBackOffAndRetry("add items to album",
+                            ApiQuotaGroup.ALBUM,
                             () -> partition(mediaItemsToAddToAlbum, GOOGLE_PHOTOS_API_BATCH_SIZE).stream()
                                     .collect(toFutureOfListChaining(mediaItems -> album.addMediaItems(mediaItems, executorService)))
+                                    .thenCompose(ignored -> partition(deduplicatedMediaItemIds, GOOGLE_PHOTOS_API_BATCH_SIZE).stream()
+                                            .collect(toFutureOfListChaining(mediaItemIds -> album.addMediaItemsByIds(mediaItemIds, executorService))))
                                     .<Void>thenApply(ignored -> null),
                             fileProgressStatus::onBackoffDelay)
                             .exceptionallyCompose(exception -> {
                                 var operationName = "adding items to album " + album.getTitle();
                                 if (fatalUserCorrectableHandler.handle(operationName, exception)) {
-                                    pathMediaItemOrErrors.stream()
-                                            .map(PathMediaItemOrError::path)
+                                    Stream.concat(pathMediaItemOrErrors.stream().map(PathMediaItemOrError::path),
+                                            deduplicatedPathStates.stream().map(PathState::path))
                                             .forEach(path -> fileProgressStatus.addFailure(KeyedError.of(path, humanReadableMessage(exception))));
                                     return CompletableFutures.completedFuture();
                                 } else {
@@ -292,26 +536,67 @@ final class GooglePhotosUploaderImpl extends BaseLifecycleComponent implements G
         return notExpired;
     }
 
-    private CompletableFuture<ItemState> doCreateMediaData(Path file) {
-        return googlePhotosClient.uploadMediaData(file, executorService)
+    private CompletableFuture<ItemState> doCreateMediaData(LocalFile localFile, LongConsumer backoffEventConsumer) {
+        var file = localFile.path();
+        return contentHashIndex
+                .map(index -> taskAdmission.withPermit(() -> index.hash(localFile, executorService))
+                        .thenCompose(contentHash -> index.mediaIdOf(contentHash)
+                                .map(mediaId -> {
+                                    logger.info("Same content is already uploaded as media item {}, not uploading {}", mediaId, file);
+                                    deduplicatedPaths.add(file);
+                                    return completedFuture(ItemState.builder()
+                                            .setMediaId(mediaId)
+                                            .setFingerprint(localFile.fingerprint())
+                                            .build());
+                                })
+                                .orElseGet(() -> {
+                                    contentHashByPath.put(file, contentHash);
+                                    return uploadMediaData(localFile, backoffEventConsumer);
+                                })))
+                .orElseGet(() -> uploadMediaData(localFile, backoffEventConsumer));
+    }
+
+    private CompletableFuture<ItemState> uploadMediaData(LocalFile localFile, LongConsumer backoffEventConsumer) {
+        var file = localFile.path();
+        return cloudOperationHelper.withBackOffAndRetry("upload file " + file,
+                ApiQuotaGroup.UPLOAD,
+                () -> {
+                    var startNanos = System.nanoTime();
+                    return googlePhotosClient.uploadMediaData(file, executorService)
+                            .thenApply(uploadToken -> {
+                                uploadConcurrencyController.onUploadSucceeded(localFile.fingerprint().size(),
+                                        Duration.ofNanos(System.nanoTime() - startNanos));
+                                return uploadToken;
+                            });
+                },
+                backoffEventConsumer)
                 .thenApply(uploadToken -> {
                     logger.info("Uploaded file {}, upload token {}", file, uploadToken);
                     return ItemState.builder()
                             .setUploadState(UploadMediaItemState.of(uploadToken, currentDateTimeProvider.currentInstant()))
+                            .setFingerprint(localFile.fingerprint())
                             .build();
                 });
     }
 
     private void saveState() {
-        var newUploadState = UploadState.of(
-                uploadedItemStateByPath.entrySet().stream()
-                        .filter(entry -> entry.getValue().isDone() && !entry.getValue().isCompletedExceptionally())
-                        .collect(toImmutableMap(
-                                entry -> entry.getKey().toString(),
-                                entry -> entry.getValue().getNow(null))));
-        if (!newUploadState.equals(uploadState)) {
-            uploadState = newUploadState;
-            uploadStateManager.save(uploadState);
-        }
+        inLock(saveLock, () -> {
+            ImmutableMap.Builder<String, ItemState> changedItemStatesBuilder = ImmutableMap.builder();
+            List<Path> notYetRecordedPaths = new ArrayList<>();
+            for (var iterator = dirtyPaths.iterator(); iterator.hasNext(); ) {
+                var path = iterator.next();
+                // removing before reading the state: if it changes again after this point, the path is re-marked dirty
+                iterator.remove();
+                var itemStateFuture = uploadedItemStateByPath.get(path);
+                if (itemStateFuture == null) {
+                    // marked while its state was being looked up, which is recorded in the map right after
+                    notYetRecordedPaths.add(path);
+                } else if (itemStateFuture.isDone() && !itemStateFuture.isCompletedExceptionally()) {
+                    changedItemStatesBuilder.put(path.toString(), itemStateFuture.getNow(null));
+                }
+            }
+            dirtyPaths.addAll(notYetRecordedPaths);
+            uploadStateManager.saveItemStates(changedItemStatesBuilder.build());
+        });
     }
 }
\ No newline at end of file
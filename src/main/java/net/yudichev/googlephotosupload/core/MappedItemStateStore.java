@@ -0,0 +1,322 @@
+package net.yudichev.googlephotosupload.core;
+
+import com.google.common.hash.Hashing;
+import net.yudichev.jiotty.common.lang.Closeable;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
+import static net.yudichev.jiotty.common.lang.MoreThrowables.asUnchecked;
+import static net.yudichev.jiotty.common.lang.MoreThrowables.getAsUnchecked;
+
+/**
+ * Key/value store of byte arrays keyed by strings, kept in two memory-mapped files: an append-only data file with the
+ * records and an open addressing hash index pointing at the latest record for each key. Only the pages touched by a
+ * lookup are brought in, so the heap usage does not depend on the number of keys.
+ * <p>
+ * Superseded records are not reclaimed until {@link #clear()}, or until the live records are copied into a new store
+ * with {@link #copyTo(MappedItemStateStore)}. The index can always be rebuilt from the data file, which is what happens
+ * when it grows, or if the process died while it was being rebuilt.
+ * <p>
+ * Not thread safe.
+ */
+final class MappedItemStateStore implements Closeable {
+    private static final int MAGIC = 0x4A505553;
+    private static final int VERSION = 2;
+
+    private static final int HEADER_MAGIC_POSITION = 0;
+    private static final int HEADER_VERSION_POSITION = 4;
+    private static final int HEADER_CAPACITY_POSITION = 8;
+    private static final int HEADER_SIZE_POSITION = 12;
+    private static final int HEADER_DATA_END_POSITION = 16;
+    private static final int HEADER_CONSISTENT_POSITION = 24;
+    private static final int HEADER_RECORD_COUNT_POSITION = 32;
+    private static final int HEADER_COUNTER_POSITION = 40;
+    private static final int HEADER_SIZE = 64;
+
+    private static final int SLOT_SIZE = 16;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final int MAX_CAPACITY = 1 << 26;
+    private static final long REGION_SIZE = 64L * 1024 * 1024;
+
+    private final FileChannel indexChannel;
+    private final FileChannel dataChannel;
+    private final List<MappedByteBuffer> dataRegions = new ArrayList<>();
+    private MappedByteBuffer index;
+    private int capacity;
+    private int size;
+    private long dataEnd;
+    private long recordCount;
+
+    MappedItemStateStore(Path indexFile, Path dataFile) {
+        indexChannel = getAsUnchecked(() -> FileChannel.open(indexFile, CREATE, READ, WRITE));
+        dataChannel = getAsUnchecked(() -> FileChannel.open(dataFile, CREATE, READ, WRITE));
+        if (getAsUnchecked(indexChannel::size) < HEADER_SIZE) {
+            mapIndex(INITIAL_CAPACITY);
+            writeHeader();
+        } else {
+            index = getAsUnchecked(() -> indexChannel.map(READ_WRITE, 0, indexChannel.size()));
+            checkState(index.getInt(HEADER_MAGIC_POSITION) == MAGIC && index.getInt(HEADER_VERSION_POSITION) == VERSION,
+                    "Unsupported upload state index format in %s", indexFile);
+            capacity = index.getInt(HEADER_CAPACITY_POSITION);
+            size = index.getInt(HEADER_SIZE_POSITION);
+            dataEnd = index.getLong(HEADER_DATA_END_POSITION);
+            if (index.getInt(HEADER_CONSISTENT_POSITION) == 0) {
+                rebuildIndex();
+            } else {
+                recordCount = index.getLong(HEADER_RECORD_COUNT_POSITION);
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of records in the data file superseded by later records for the same keys
+     */
+    long supersededRecordCount() {
+        return recordCount - size;
+    }
+
+    /**
+     * A number kept in the index on behalf of the caller, so that a figure derived from all values does not need to be
+     * computed by reading them all.
+     *
+     * @return the number last set, or -1 if it has not been set
+     */
+    long counter() {
+        return index.getLong(HEADER_COUNTER_POSITION);
+    }
+
+    void setCounter(long counter) {
+        index.putLong(HEADER_COUNTER_POSITION, counter);
+    }
+
+    Optional<byte[]> get(String key) {
+        var keyBytes = key.getBytes(UTF_8);
+        var reference = index.getLong(slotPosition(findSlot(keyBytes, hash(keyBytes))) + 8);
+        return reference == 0 ? Optional.empty() : Optional.of(readValue(reference - 1));
+    }
+
+    void put(String key, byte[] value) {
+        var keyBytes = key.getBytes(UTF_8);
+        var offset = append(keyBytes, value);
+        if (index(keyBytes, offset)) {
+            setConsistent(false);
+            rebuildIndex();
+        }
+    }
+
+    void forEach(BiConsumer<String, byte[]> action) {
+        for (var slot = 0; slot < capacity; slot++) {
+            var reference = index.getLong(slotPosition(slot) + 8);
+            if (reference != 0) {
+                var record = recordAt(reference - 1);
+                var keyBytes = new byte[record.getInt()];
+                record.get(keyBytes);
+                var value = new byte[record.getInt()];
+                record.get(value);
+                action.accept(new String(keyBytes, UTF_8), value);
+            }
+        }
+    }
+
+    /**
+     * Puts the latest value of each key and the counter into the given store, leaving superseded records behind.
+     */
+    void copyTo(MappedItemStateStore target) {
+        forEach(target::put);
+        target.setCounter(counter());
+    }
+
+    void clear() {
+        mapIndex(INITIAL_CAPACITY);
+        dataEnd = 0;
+        recordCount = 0;
+        writeHeader();
+    }
+
+    void force() {
+        index.force();
+        dataRegions.forEach(MappedByteBuffer::force);
+    }
+
+    @Override
+    public void close() {
+        force();
+        asUnchecked(() -> {
+            indexChannel.close();
+            dataChannel.close();
+        });
+    }
+
+    /**
+     * @return whether the index needs to grow
+     */
+    private boolean index(byte[] keyBytes, long offset) {
+        var hash = hash(keyBytes);
+        var slotPosition = slotPosition(findSlot(keyBytes, hash));
+        var newKey = index.getLong(slotPosition + 8) == 0;
+        index.putLong(slotPosition, hash);
+        index.putLong(slotPosition + 8, offset + 1);
+        if (newKey) {
+            size++;
+            index.putInt(HEADER_SIZE_POSITION, size);
+        }
+        return size * 2L > capacity;
+    }
+
+    private int findSlot(byte[] keyBytes, long hash) {
+        var mask = capacity - 1;
+        for (var slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+            var slotPosition = slotPosition(slot);
+            var reference = index.getLong(slotPosition + 8);
+            if (reference == 0 || index.getLong(slotPosition) == hash && keyEquals(reference - 1, keyBytes)) {
+                return slot;
+            }
+        }
+    }
+
+    private long append(byte[] keyBytes, byte[] value) {
+        var recordSize = 8L + keyBytes.length + value.length;
+        checkArgument(keyBytes.length > 0, "empty key");
+        checkArgument(recordSize <= REGION_SIZE, "record too large: %s bytes", recordSize);
+        var positionInRegion = dataEnd % REGION_SIZE;
+        if (positionInRegion + recordSize > REGION_SIZE) {
+            // records never span regions; a zero key length marks the rest of the region as padding
+            if (REGION_SIZE - positionInRegion >= 4) {
+                region(dataEnd).putInt((int) positionInRegion, 0);
+            }
+            dataEnd += REGION_SIZE - positionInRegion;
+        }
+        var offset = dataEnd;
+        recordAt(offset)
+                .putInt(keyBytes.length)
+                .put(keyBytes)
+                .putInt(value.length)
+                .put(value);
+        dataEnd = offset + recordSize;
+        recordCount++;
+        index.putLong(HEADER_DATA_END_POSITION, dataEnd);
+        index.putLong(HEADER_RECORD_COUNT_POSITION, recordCount);
+        return offset;
+    }
+
+    private void rebuildIndex() {
+        var newCapacity = size * 2L > capacity ? capacity * 2 : capacity;
+        while (!tryRebuildIndex(newCapacity)) {
+            newCapacity *= 2;
+        }
+        writeHeader();
+    }
+
+    /**
+     * @return {@code false} if the given capacity turned out to be insufficient
+     */
+    private boolean tryRebuildIndex(int newCapacity) {
+        checkState(newCapacity <= MAX_CAPACITY, "upload state index is full");
+        mapIndex(newCapacity);
+        recordCount = 0;
+        var offset = 0L;
+        while (offset < dataEnd) {
+            var positionInRegion = (int) (offset % REGION_SIZE);
+            var keyLength = REGION_SIZE - positionInRegion < 4 ? 0 : region(offset).getInt(positionInRegion);
+            if (keyLength == 0) {
+                offset += REGION_SIZE - positionInRegion;
+                continue;
+            }
+            var record = recordAt(offset);
+            var keyBytes = new byte[record.getInt()];
+            record.get(keyBytes);
+            var valueLength = record.getInt();
+            recordCount++;
+            if (index(keyBytes, offset)) {
+                return false;
+            }
+            offset += 8L + keyLength + valueLength;
+        }
+        return true;
+    }
+
+    private void mapIndex(int newCapacity) {
+        capacity = newCapacity;
+        size = 0;
+        // unlike the rest of the header, the counter is not derived from the data, so it is carried over
+        var counter = index == null ? -1 : counter();
+        index = getAsUnchecked(() -> indexChannel.map(READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * SLOT_SIZE));
+        for (var position = HEADER_SIZE; position < index.capacity(); position += 8) {
+            index.putLong(position, 0);
+        }
+        index.putInt(HEADER_MAGIC_POSITION, MAGIC);
+        index.putInt(HEADER_VERSION_POSITION, VERSION);
+        index.putInt(HEADER_CAPACITY_POSITION, capacity);
+        index.putInt(HEADER_SIZE_POSITION, 0);
+        setCounter(counter);
+    }
+
+    private void writeHeader() {
+        index.putInt(HEADER_CAPACITY_POSITION, capacity);
+        index.putInt(HEADER_SIZE_POSITION, size);
+        index.putLong(HEADER_DATA_END_POSITION, dataEnd);
+        index.putLong(HEADER_RECORD_COUNT_POSITION, recordCount);
+        setConsistent(true);
+    }
+
+    private void setConsistent(boolean consistent) {
+        index.putInt(HEADER_CONSISTENT_POSITION, consistent ? 1 : 0);
+    }
+
+    private boolean keyEquals(long offset, byte[] keyBytes) {
+        var record = recordAt(offset);
+        if (record.getInt() != keyBytes.length) {
+            return false;
+        }
+        var storedKeyBytes = new byte[keyBytes.length];
+        record.get(storedKeyBytes);
+        return Arrays.equals(storedKeyBytes, keyBytes);
+    }
+
+    private byte[] readValue(long offset) {
+        var record = recordAt(offset);
+        var keyLength = record.getInt();
+        record.position(record.position() + keyLength);
+        var value = new byte[record.getInt()];
+        record.get(value);
+        return value;
+    }
+
+    private ByteBuffer recordAt(long offset) {
+        return region(offset).duplicate().position((int) (offset % REGION_SIZE));
+    }
+
+    private MappedByteBuffer region(long offset) {
+        var regionIndex = (int) (offset / REGION_SIZE);
+        while (dataRegions.size() <= regionIndex) {
+            var regionStart = dataRegions.size() * REGION_SIZE;
+            dataRegions.add(getAsUnchecked(() -> dataChannel.map(READ_WRITE, regionStart, REGION_SIZE)));
+        }
+        return dataRegions.get(regionIndex);
+    }
+
+    private static int slotPosition(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static long hash(byte[] keyBytes) {
+        return Hashing.murmur3_128().hashBytes(keyBytes).asLong();
+    }
+}
@@ -0,0 +1,236 @@
+package net.yudichev.googlephotosupload.core;
+
+import com.google.common.collect.ImmutableMap;
+import net.yudichev.jiotty.common.async.ExecutorFactory;
+import net.yudichev.jiotty.common.varstore.VarStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static net.yudichev.googlephotosupload.core.Bindings.SettingsRootDir;
+import static net.yudichev.jiotty.common.lang.Locks.inLock;
+import static net.yudichev.jiotty.common.lang.MoreThrowables.asUnchecked;
+import static net.yudichev.jiotty.common.lang.MoreThrowables.getAsUnchecked;
+
+/**
+ * Keeps item states in a {@link MappedItemStateStore} instead of on heap. Until an import completes, imports the state
+ * previously saved by {@link UploadStateManagerImpl}; once it does, the store holds the current state, which
+ * {@link UploadStateManagerImpl} exports back into its own format if it is used again.
+ * <p>
+ * Once superseded records outnumber the live ones, the store is compacted on close: the live records are copied into
+ * the files of the next generation of the store, which then becomes current. The files of other generations are
+ * deleted, on start if they could not be deleted straight away, as they may be still mapped.
+ * <p>
+ * The number of uploaded items is kept in the store's counter, so that it is known without reading every item.
+ */
+final class MappedUploadStateManagerImpl implements UploadStateManager {
+    private static final Logger logger = LoggerFactory.getLogger(MappedUploadStateManagerImpl.class);
+    private static final String FILE_NAME_PREFIX = "photosUploader";
+    private static final Pattern STORE_FILE_NAME_PATTERN = Pattern.compile("photosUploader(?:\\.(\\d+))?\\.(?:index|data)");
+    private static final String GENERATION_FILE_NAME = "photosUploader.generation";
+    private static final String IMPORT_COMPLETE_FILE_NAME = "photosUploader.imported";
+    private static final int MIN_SUPERSEDED_RECORDS_BEFORE_COMPACTION = 100_000;
+
+    private final Lock lock = new ReentrantLock();
+    private final Path settingsRootDir;
+    private final Path generationFile;
+    private int generation;
+    private MappedItemStateStore store;
+
+    @Inject
+    MappedUploadStateManagerImpl(VarStore varStore,
+                                 ExecutorFactory executorFactory,
+                                 @SettingsRootDir Path settingsRootDir) {
+        this.settingsRootDir = settingsRootDir;
+        asUnchecked(() -> Files.createDirectories(settingsRootDir));
+        generationFile = settingsRootDir.resolve(GENERATION_FILE_NAME);
+        generation = Files.exists(generationFile) ?
+                Integer.parseInt(getAsUnchecked(() -> Files.readString(generationFile, UTF_8)).trim()) :
+                0;
+        deleteOtherGenerations();
+        store = openStore(generation);
+        if (store.counter() < 0) {
+            var uploadedItemCount = new long[1];
+            store.forEach((absolutePath, value) -> {
+                if (isUploaded(decode(value))) {
+                    uploadedItemCount[0]++;
+                }
+            });
+            store.setCounter(uploadedItemCount[0]);
+        }
+        var importCompleteFile = settingsRootDir.resolve(IMPORT_COMPLETE_FILE_NAME);
+        if (!Files.exists(importCompleteFile)) {
+            try (var heapUploadStateManager = new UploadStateManagerImpl(varStore, executorFactory, settingsRootDir)) {
+                var itemStateByAbsolutePath = heapUploadStateManager.get().uploadedMediaItemIdByAbsolutePath();
+                // left over by an earlier import that did not complete, or by a store that was discarded
+                store.clear();
+                store.setCounter(0);
+                itemStateByAbsolutePath.forEach(this::put);
+                store.force();
+                asUnchecked(() -> Files.createFile(importCompleteFile));
+                logger.info("Imported {} item state(s) into the memory-mapped store", itemStateByAbsolutePath.size());
+            }
+        }
+    }
+
+    /**
+     * @return whether the store in the specified directory holds the current state, rather than the state saved by
+     * {@link UploadStateManagerImpl}
+     */
+    static boolean holdsCurrentState(Path settingsRootDir) {
+        return Files.exists(settingsRootDir.resolve(IMPORT_COMPLETE_FILE_NAME));
+    }
+
+    /**
+     * Closes the store and deletes it, so that the state saved by {@link UploadStateManagerImpl} is imported again the
+     * next time the store is used.
+     */
+    void discard() {
+        inLock(lock, () -> {
+            store.close();
+            // once it is gone, whatever is left of the store is cleared by the next import
+            asUnchecked(() -> Files.delete(settingsRootDir.resolve(IMPORT_COMPLETE_FILE_NAME)));
+            try {
+                Files.deleteIfExists(generationFile);
+                Files.deleteIfExists(storeFile(generation, "index"));
+                Files.deleteIfExists(storeFile(generation, "data"));
+            } catch (IOException e) {
+                // may still be mapped
+                logger.debug("Could not delete the memory-mapped store yet", e);
+            }
+        });
+    }
+
+    @Override
+    public UploadState get() {
+        return inLock(lock, () -> {
+            ImmutableMap.Builder<String, ItemState> itemStateByAbsolutePathBuilder = ImmutableMap.builderWithExpectedSize(store.size());
+            store.forEach((absolutePath, value) -> itemStateByAbsolutePathBuilder.put(absolutePath, decode(value)));
+            return UploadState.of(itemStateByAbsolutePathBuilder.build());
+        });
+    }
+
+    @Override
+    public Optional<ItemState> getItemState(String absolutePath) {
+        return inLock(lock, () -> store.get(absolutePath).map(MappedUploadStateManagerImpl::decode));
+    }
+
+    @Override
+    public int uploadedItemCount() {
+        return inLock(lock, () -> (int) store.counter());
+    }
+
+    @Override
+    public void save(UploadState uploadState) {
+        inLock(lock, () -> {
+            store.clear();
+            store.setCounter(0);
+            saveItemStates(uploadState.uploadedMediaItemIdByAbsolutePath());
+        });
+    }
+
+    @Override
+    public void saveItemStates(Map<String, ItemState> itemStateByAbsolutePath) {
+        inLock(lock, () -> itemStateByAbsolutePath.forEach(this::put));
+    }
+
+    @Override
+    public void close() {
+        inLock(lock, () -> {
+            store.force();
+            if (store.supersededRecordCount() > Math.max(MIN_SUPERSEDED_RECORDS_BEFORE_COMPACTION, store.size())) {
+                compact();
+            }
+        });
+    }
+
+    private void put(String absolutePath, ItemState itemState) {
+        var wasUploaded = store.get(absolutePath).map(MappedUploadStateManagerImpl::decode).map(MappedUploadStateManagerImpl::isUploaded).orElse(false);
+        store.put(absolutePath, encode(itemState));
+        var uploaded = isUploaded(itemState);
+        if (uploaded != wasUploaded) {
+            store.setCounter(store.counter() + (uploaded ? 1 : -1));
+        }
+    }
+
+    private void compact() {
+        logger.info("Compacting upload state store: {} live and {} superseded record(s)", store.size(), store.supersededRecordCount());
+        var nextGeneration = generation + 1;
+        // left over if the process died while compacting before
+        deleteGeneration(nextGeneration);
+        try (var compactedStore = openStore(nextGeneration)) {
+            store.copyTo(compactedStore);
+        }
+        asUnchecked(() -> {
+            var newGenerationFile = generationFile.resolveSibling(GENERATION_FILE_NAME + ".new");
+            Files.writeString(newGenerationFile, Integer.toString(nextGeneration), UTF_8);
+            Files.move(newGenerationFile, generationFile, REPLACE_EXISTING, ATOMIC_MOVE);
+        });
+        store.close();
+        generation = nextGeneration;
+        store = openStore(generation);
+        deleteOtherGenerations();
+    }
+
+    private MappedItemStateStore openStore(int generation) {
+        return new MappedItemStateStore(storeFile(generation, "index"), storeFile(generation, "data"));
+    }
+
+    private void deleteGeneration(int generation) {
+        asUnchecked(() -> {
+            Files.deleteIfExists(storeFile(generation, "index"));
+            Files.deleteIfExists(storeFile(generation, "data"));
+        });
+    }
+
+    private void deleteOtherGenerations() {
+        asUnchecked(() -> {
+            try (var files = Files.newDirectoryStream(settingsRootDir, FILE_NAME_PREFIX + ".*")) {
+                for (var file : files) {
+                    var matcher = STORE_FILE_NAME_PATTERN.matcher(file.getFileName().toString());
+                    if (matcher.matches() && (matcher.group(1) == null ? 0 : Integer.parseInt(matcher.group(1))) != generation) {
+                        try {
+                            Files.delete(file);
+                        } catch (IOException e) {
+                            // may still be mapped; the next start will delete it
+                            logger.debug("Could not delete {} yet", file, e);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * The first generation keeps the file names used before there were generations.
+     */
+    private Path storeFile(int generation, String extension) {
+        return settingsRootDir.resolve(generation == 0 ?
+                FILE_NAME_PREFIX + '.' + extension :
+                FILE_NAME_PREFIX + '.' + generation + '.' + extension);
+    }
+
+    private static boolean isUploaded(ItemState itemState) {
+        return itemState.mediaId().isPresent();
+    }
+
+    private static byte[] encode(ItemState itemState) {
+        return UploadStateCodec.encodeItemState(itemState);
+    }
+
+    private static ItemState decode(byte[] value) {
+        return UploadStateCodec.decodeItemState(value);
+    }
+}
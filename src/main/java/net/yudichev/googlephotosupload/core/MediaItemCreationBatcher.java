@@ -0,0 +1,27 @@
+package net.yudichev.googlephotosupload.core;
+
+import net.yudichev.jiotty.connector.google.photos.MediaItemOrError;
+import net.yudichev.jiotty.connector.google.photos.NewMediaItem;
+
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongConsumer;
+
+interface MediaItemCreationBatcher {
+    /**
+     * Queues the item to be created in a single request with other items queued for the same album, or, if no album is
+     * specified, with all other items queued outside of any album. The request is sent once it is full or once the oldest
+     * item in it has waited for a short while. The items of a request are sent in the order of the modification times of
+     * their files, which stand in for the creation times of the items, not known until they are created, so that an album
+     * lists the items created in it in that order.
+     *
+     * @param albumId              ID of the album to create the item in
+     * @param fileLastModified     modification time of the item's file
+     * @param backoffEventConsumer notified of back-off delays while the request is retried
+     */
+    CompletableFuture<MediaItemOrError> create(Optional<String> albumId,
+                                               NewMediaItem newMediaItem,
+                                               Instant fileLastModified,
+                                               LongConsumer backoffEventConsumer);
+}
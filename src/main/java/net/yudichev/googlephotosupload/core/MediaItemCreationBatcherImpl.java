@@ -0,0 +1,154 @@
+package net.yudichev.googlephotosupload.core;
+
+import net.yudichev.jiotty.common.async.ExecutorFactory;
+import net.yudichev.jiotty.common.async.SchedulingExecutor;
+import net.yudichev.jiotty.common.inject.BaseLifecycleComponent;
+import net.yudichev.jiotty.common.lang.PackagePrivateImmutablesStyle;
+import net.yudichev.jiotty.connector.google.photos.GooglePhotosClient;
+import net.yudichev.jiotty.connector.google.photos.MediaItemOrError;
+import net.yudichev.jiotty.connector.google.photos.NewMediaItem;
+import org.immutables.value.Value;
+import org.immutables.value.Value.Immutable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.util.Comparator.comparing;
+import static net.yudichev.googlephotosupload.core.Bindings.Backpressured;
+import static net.yudichev.jiotty.common.lang.Locks.inLock;
+
+/**
+ * Most directories hold only a few files, so batching per directory would send mostly small requests; items created
+ * outside of any album are batched regardless of the directory they come from. Items created in an album are batched per
+ * album, as a request can only target one.
+ */
+final class MediaItemCreationBatcherImpl extends BaseLifecycleComponent implements MediaItemCreationBatcher {
+    private static final Logger logger = LoggerFactory.getLogger(MediaItemCreationBatcherImpl.class);
+    private static final int BATCH_SIZE = 50;
+    private static final Duration MAX_BATCH_DELAY = Duration.ofMillis(500);
+
+    private final GooglePhotosClient googlePhotosClient;
+    private final Provider<ExecutorService> executorServiceProvider;
+    private final CloudOperationHelper cloudOperationHelper;
+    private final ExecutorFactory executorFactory;
+    private final Lock lock = new ReentrantLock();
+    /**
+     * Pending batches are compared by identity, so that a delayed flush can tell whether its batch is still pending.
+     */
+    private final Map<Optional<String>, List<PendingItem>> pendingBatchByAlbumId = new HashMap<>();
+
+    private ExecutorService executorService;
+    private SchedulingExecutor schedulingExecutor;
+
+    @Inject
+    MediaItemCreationBatcherImpl(GooglePhotosClient googlePhotosClient,
+                                 @Backpressured Provider<ExecutorService> executorServiceProvider,
+                                 CloudOperationHelper cloudOperationHelper,
+                                 ExecutorFactory executorFactory) {
+        this.googlePhotosClient = checkNotNull(googlePhotosClient);
+        this.executorServiceProvider = checkNotNull(executorServiceProvider);
+        this.cloudOperationHelper = checkNotNull(cloudOperationHelper);
+        this.executorFactory = checkNotNull(executorFactory);
+    }
+
+    @Override
+    public CompletableFuture<MediaItemOrError> create(Optional<String> albumId,
+                                                      NewMediaItem newMediaItem,
+                                                      Instant fileLastModified,
+                                                      LongConsumer backoffEventConsumer) {
+        checkStarted();
+        var pendingItem = PendingItem.of(newMediaItem, fileLastModified, backoffEventConsumer, new CompletableFuture<>());
+        inLock(lock, () -> {
+            var batch = pendingBatchByAlbumId.computeIfAbsent(albumId, ignored -> new ArrayList<>());
+            batch.add(pendingItem);
+            if (batch.size() >= BATCH_SIZE) {
+                send(albumId, pendingBatchByAlbumId.remove(albumId));
+            } else if (batch.size() == 1) {
+                schedulingExecutor.schedule(MAX_BATCH_DELAY, () -> inLock(lock, () -> {
+                    // the batch may have been sent already as it got full
+                    if (pendingBatchByAlbumId.get(albumId) == batch) {
+                        send(albumId, pendingBatchByAlbumId.remove(albumId));
+                    }
+                }));
+            }
+        });
+        return pendingItem.mediaItemOrErrorFuture();
+    }
+
+    @Override
+    protected void doStart() {
+        inLock(lock, () -> {
+            executorService = executorServiceProvider.get();
+            schedulingExecutor = executorFactory.createSingleThreadedSchedulingExecutor("media-item-creation-batcher");
+        });
+    }
+
+    @Override
+    protected void doStop() {
+        inLock(lock, () -> {
+            pendingBatchByAlbumId.forEach(this::send);
+            pendingBatchByAlbumId.clear();
+            schedulingExecutor.close();
+        });
+    }
+
+    private void send(Optional<String> albumId, List<PendingItem> pendingItems) {
+        logger.debug("Creating a batch of {} media item(s) in album {}", pendingItems.size(), albumId);
+        List<PendingItem> batch = pendingItems.stream()
+                .sorted(comparing(PendingItem::fileLastModified))
+                .collect(toImmutableList());
+        List<NewMediaItem> newMediaItems = batch.stream()
+                .map(PendingItem::newMediaItem)
+                .collect(toImmutableList());
+        cloudOperationHelper.withBackOffAndRetry(
+                "create media items",
+                ApiQuotaGroup.CREATE_MEDIA_ITEMS,
+                () -> googlePhotosClient.createMediaItems(albumId, newMediaItems, executorService),
+                backoffDelayMs -> batch.stream()
+                        .map(PendingItem::backoffEventConsumer)
+                        .distinct()
+                        .forEach(backoffEventConsumer -> backoffEventConsumer.accept(backoffDelayMs)))
+                .whenComplete((mediaItemOrErrors, exception) -> {
+                    for (var i = 0; i < batch.size(); i++) {
+                        var mediaItemOrErrorFuture = batch.get(i).mediaItemOrErrorFuture();
+                        if (exception == null) {
+                            mediaItemOrErrorFuture.complete(mediaItemOrErrors.get(i));
+                        } else {
+                            mediaItemOrErrorFuture.completeExceptionally(exception);
+                        }
+                    }
+                });
+    }
+
+    @Immutable
+    @PackagePrivateImmutablesStyle
+    interface BasePendingItem {
+        @Value.Parameter
+        NewMediaItem newMediaItem();
+
+        @Value.Parameter
+        Instant fileLastModified();
+
+        @Value.Parameter
+        LongConsumer backoffEventConsumer();
+
+        @Value.Parameter
+        CompletableFuture<MediaItemOrError> mediaItemOrErrorFuture();
+    }
+}
@@ -5,6 +5,11 @@ public interface ProgressStatus {
 
     void incrementSuccessBy(int increment);
 
+    /**
+     * Sets the total count of a status that was created without one, once it becomes known.
+     */
+    void updateTotal(int totalCount);
+
     void onBackoffDelay(long backoffDelayMs);
 
     default void incrementSuccess() {
@@ -0,0 +1,44 @@
+package net.yudichev.googlephotosupload.core;
+
+import net.yudichev.jiotty.common.lang.PackagePrivateImmutablesStyle;
+import org.immutables.value.Value;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Shared by all remote API calls, so that the first throttling error pauses all of them instead of each call backing
+ * off on its own while the others keep sending requests that are bound to fail.
+ */
+interface QuotaGate {
+    /**
+     * @return future that completes once a call may be dispatched: immediately while the gate is open; otherwise after
+     * the pause, either as the single probe call or once the probe has succeeded
+     */
+    CompletableFuture<Admission> admit();
+
+    /**
+     * Reports that the admitted call completed without being throttled.
+     */
+    void onNotThrottled(Admission admission);
+
+    /**
+     * Reports that the admitted call was throttled. Only a call admitted since the gate was last paused pauses it again,
+     * with a longer interval; calls that were already in flight do not.
+     *
+     * @return time left until the gate resumes admitting calls, in milliseconds
+     */
+    long onThrottled(Admission admission);
+
+    @Value.Immutable
+    @PackagePrivateImmutablesStyle
+    interface BaseAdmission {
+        /**
+         * Number of times the gate was paused before the call was admitted.
+         */
+        @Value.Parameter
+        long generation();
+
+        @Value.Parameter
+        boolean probe();
+    }
+}
@@ -0,0 +1,128 @@
+package net.yudichev.googlephotosupload.core;
+
+import com.google.api.client.util.BackOff;
+import com.google.inject.BindingAnnotation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.lang.annotation.ElementType.*;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.CompletableFuture.delayedExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static net.yudichev.jiotty.common.lang.Locks.inLock;
+import static net.yudichev.jiotty.common.lang.MoreThrowables.asUnchecked;
+import static net.yudichev.jiotty.common.lang.MoreThrowables.getAsUnchecked;
+
+final class QuotaGateImpl implements QuotaGate {
+    private static final Logger logger = LoggerFactory.getLogger(QuotaGateImpl.class);
+
+    private final BackOff backOff;
+    private final Lock lock = new ReentrantLock();
+    private final Queue<CompletableFuture<Admission>> pendingAdmissions = new ArrayDeque<>();
+
+    private State state = State.OPEN;
+    private long generation;
+    private long resumeAtNanos;
+
+    @Inject
+    QuotaGateImpl(@Dependency BackOff backOff) {
+        this.backOff = checkNotNull(backOff);
+    }
+
+    @Override
+    public CompletableFuture<Admission> admit() {
+        return inLock(lock, () -> {
+            switch (state) {
+                case OPEN:
+                    return completedFuture(Admission.of(generation, false));
+                case AWAITING_PROBE:
+                    state = State.PROBING;
+                    return completedFuture(Admission.of(generation, true));
+                default:
+                    var pendingAdmission = new CompletableFuture<Admission>();
+                    pendingAdmissions.add(pendingAdmission);
+                    return pendingAdmission;
+            }
+        });
+    }
+
+    @Override
+    public void onNotThrottled(Admission admission) {
+        List<CompletableFuture<Admission>> admitted = new ArrayList<>();
+        var admittedGeneration = inLock(lock, () -> {
+            if (admission.probe() && admission.generation() == generation) {
+                logger.info("Probe call succeeded, resuming all calls");
+                state = State.OPEN;
+                asUnchecked(backOff::reset);
+                admitted.addAll(pendingAdmissions);
+                pendingAdmissions.clear();
+            }
+            return generation;
+        });
+        // completed outside of the lock, as completing them dispatches the calls
+        admitted.forEach(pendingAdmission -> pendingAdmission.complete(Admission.of(admittedGeneration, false)));
+    }
+
+    @Override
+    public long onThrottled(Admission admission) {
+        return inLock(lock, () -> {
+            if (admission.generation() == generation) {
+                generation++;
+                state = State.PAUSED;
+                long pauseMs = getAsUnchecked(backOff::nextBackOffMillis);
+                resumeAtNanos = System.nanoTime() + MILLISECONDS.toNanos(pauseMs);
+                logger.info("Throttled by the remote API, pausing all calls for {}ms", pauseMs);
+                CompletableFuture.runAsync(this::onPauseElapsed, delayedExecutor(pauseMs, MILLISECONDS));
+                return pauseMs;
+            }
+            // the call was dispatched before the gate was paused, so it tells nothing new
+            return Math.max(0, NANOSECONDS.toMillis(resumeAtNanos - System.nanoTime()));
+        });
+    }
+
+    private void onPauseElapsed() {
+        Optional<Runnable> probeDispatch = inLock(lock, () -> {
+            var pendingAdmission = pendingAdmissions.poll();
+            if (pendingAdmission == null) {
+                // the next call to be admitted becomes the probe
+                state = State.AWAITING_PROBE;
+                return Optional.empty();
+            }
+            state = State.PROBING;
+            var probeAdmission = Admission.of(generation, true);
+            return Optional.<Runnable>of(() -> pendingAdmission.complete(probeAdmission));
+        });
+        probeDispatch.ifPresent(dispatch -> {
+            logger.info("Pause elapsed, dispatching a probe call");
+            dispatch.run();
+        });
+    }
+
+    private enum State {
+        OPEN,
+        PAUSED,
+        AWAITING_PROBE,
+        PROBING
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    @interface Dependency {
+    }
+}
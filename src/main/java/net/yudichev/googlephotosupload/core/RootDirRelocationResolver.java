@@ -0,0 +1,29 @@
+package net.yudichev.googlephotosupload.core;
+
+import java.nio.file.Path;
+import java.util.List;
+
+interface RootDirRelocationResolver {
+    /**
+     * Identifies the root directory of the upload that is about to start and detects whether it has been moved or
+     * remounted since it was last uploaded from.
+     */
+    void register(Path rootDir);
+
+    /**
+     * @return the paths under which the state of the given file may have been saved before its root directory was moved,
+     * most recent first
+     */
+    List<Path> previousLocations(Path file);
+
+    /**
+     * @return the previous locations of the registered root directory that no root directory is at, or within, now, and
+     * that do not hold a copy of it, so that the state saved under them belongs to no other file
+     */
+    List<Path> vacatedRootDirs();
+
+    /**
+     * Called once the state of every file under the registered root directory has been saved under its current path.
+     */
+    void forgetPreviousLocations();
+}
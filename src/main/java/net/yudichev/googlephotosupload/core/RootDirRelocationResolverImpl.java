@@ -0,0 +1,182 @@
+package net.yudichev.googlephotosupload.core;
+
+import net.yudichev.jiotty.common.lang.PackagePrivateImmutablesStyle;
+import net.yudichev.jiotty.common.varstore.VarStore;
+import org.immutables.value.Value;
+import org.immutables.value.Value.Immutable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static net.yudichev.jiotty.common.lang.Locks.inLock;
+
+/**
+ * Identifies a root directory by a random ID kept in a marker file inside it and remembers where each root was last
+ * uploaded from. Upload state stays keyed by path; when a root turns up at a new location, the state of a file is found
+ * under its old path by swapping the root prefix, so nothing has to be rescanned or re-keyed up front.
+ * <p>
+ * The previous locations of a root are kept until a full upload from its current location completes, as only then has
+ * the state of every file been re-saved under its current path; a run that is interrupted, or a root that is moved
+ * again in the meantime, leaves the chain of previous locations in place. A root that is copied rather than moved
+ * shares the ID with the original, so a previous location that still holds the same marker is not considered vacated.
+ */
+final class RootDirRelocationResolverImpl implements RootDirRelocationResolver {
+    static final String MARKER_FILE_NAME = ".jiottyphotosuploader-root";
+
+    private static final Logger logger = LoggerFactory.getLogger(RootDirRelocationResolverImpl.class);
+    private static final String VAR_STORE_KEY = "rootDirs";
+
+    private final VarStore varStore;
+    private final Lock lock = new ReentrantLock();
+    private volatile Optional<RootDirRelocation> relocation = Optional.empty();
+
+    @Inject
+    RootDirRelocationResolverImpl(VarStore varStore) {
+        this.varStore = checkNotNull(varStore);
+    }
+
+    @Override
+    public void register(Path rootDir) {
+        relocation = readOrCreateRootId(rootDir).flatMap(rootId -> inLock(lock, () -> {
+            var rootDirs = readRootDirs();
+            var rootDirString = rootDir.toString();
+            var storedPreviousRootDirs = rootDirs.previousRootDirsById().getOrDefault(rootId, List.of());
+            List<String> previousRootDirs = new ArrayList<>(storedPreviousRootDirs.size() + 1);
+            Optional.ofNullable(rootDirs.rootDirById().get(rootId))
+                    .filter(lastRootDir -> !lastRootDir.equals(rootDirString))
+                    .ifPresent(previousRootDirs::add);
+            storedPreviousRootDirs.stream()
+                    // moved back to where it was before
+                    .filter(previousRootDir -> !previousRootDir.equals(rootDirString) && !previousRootDirs.contains(previousRootDir))
+                    .forEach(previousRootDirs::add);
+            if (!rootDirString.equals(rootDirs.rootDirById().get(rootId)) || !previousRootDirs.equals(storedPreviousRootDirs)) {
+                var rootDirById = new HashMap<>(rootDirs.rootDirById());
+                rootDirById.put(rootId, rootDirString);
+                var previousRootDirsById = new HashMap<>(rootDirs.previousRootDirsById());
+                if (previousRootDirs.isEmpty()) {
+                    previousRootDirsById.remove(rootId);
+                } else {
+                    previousRootDirsById.put(rootId, previousRootDirs);
+                }
+                saveRootDirs(rootDirById, previousRootDirsById);
+            }
+            if (previousRootDirs.isEmpty()) {
+                return Optional.<RootDirRelocation>empty();
+            }
+            logger.info("Root directory {} was previously uploaded from {}, will reuse the upload state saved for it", rootDir, previousRootDirs);
+            return Optional.of(RootDirRelocation.of(rootId, rootDir, previousRootDirs.stream()
+                    .map(Paths::get)
+                    .collect(toImmutableList())));
+        }));
+    }
+
+    @Override
+    public List<Path> previousLocations(Path file) {
+        return relocation
+                .filter(theRelocation -> file.startsWith(theRelocation.rootDir()))
+                .map(theRelocation -> {
+                    var relativePath = theRelocation.rootDir().relativize(file);
+                    return theRelocation.previousRootDirs().stream()
+                            .map(previousRootDir -> previousRootDir.resolve(relativePath))
+                            .collect(toImmutableList());
+                })
+                .orElse(List.of());
+    }
+
+    @Override
+    public List<Path> vacatedRootDirs() {
+        return relocation
+                .map(theRelocation -> {
+                    var currentRootDirs = inLock(lock, () -> readRootDirs().rootDirById().values().stream()
+                            .map(Paths::get)
+                            .collect(toImmutableList()));
+                    return theRelocation.previousRootDirs().stream()
+                            .filter(previousRootDir -> currentRootDirs.stream().noneMatch(currentRootDir ->
+                                    currentRootDir.startsWith(previousRootDir) || previousRootDir.startsWith(currentRootDir)))
+                            // copied rather than moved, so the original is still there
+                            .filter(previousRootDir -> !holdsMarker(previousRootDir, theRelocation.rootId()))
+                            .collect(toImmutableList());
+                })
+                .orElse(List.of());
+    }
+
+    @Override
+    public void forgetPreviousLocations() {
+        relocation.ifPresent(theRelocation -> inLock(lock, () -> {
+            logger.info("Upload state of root directory {} has been moved from {}, forgetting these locations",
+                    theRelocation.rootDir(), theRelocation.previousRootDirs());
+            var rootDirs = readRootDirs();
+            var previousRootDirsById = new HashMap<>(rootDirs.previousRootDirsById());
+            previousRootDirsById.remove(theRelocation.rootId());
+            saveRootDirs(rootDirs.rootDirById(), previousRootDirsById);
+            relocation = Optional.empty();
+        }));
+    }
+
+    private RootDirs readRootDirs() {
+        return varStore.readValue(RootDirs.class, VAR_STORE_KEY).orElseGet(() -> RootDirs.builder().build());
+    }
+
+    private void saveRootDirs(Map<String, String> rootDirById, Map<String, List<String>> previousRootDirsById) {
+        varStore.saveValue(VAR_STORE_KEY, RootDirs.builder()
+                .putAllRootDirById(rootDirById)
+                .putAllPreviousRootDirsById(previousRootDirsById)
+                .build());
+    }
+
+    private static boolean holdsMarker(Path dir, String rootId) {
+        var markerFile = dir.resolve(MARKER_FILE_NAME);
+        try {
+            return Files.exists(markerFile) && Files.readString(markerFile).trim().equals(rootId);
+        } catch (IOException e) {
+            logger.warn("Unable to read root marker file {}, assuming the root directory is still there", markerFile, e);
+            return true;
+        }
+    }
+
+    private static Optional<String> readOrCreateRootId(Path rootDir) {
+        var markerFile = rootDir.resolve(MARKER_FILE_NAME);
+        try {
+            if (Files.exists(markerFile)) {
+                return Optional.of(Files.readString(markerFile).trim());
+            }
+            var rootId = UUID.randomUUID().toString();
+            Files.writeString(markerFile, rootId);
+            return Optional.of(rootId);
+        } catch (IOException e) {
+            logger.warn("Unable to read or create root marker file {}, moving this root directory will not be detected", markerFile, e);
+            return Optional.empty();
+        }
+    }
+
+    @Immutable
+    @PackagePrivateImmutablesStyle
+    interface BaseRootDirRelocation {
+        @Value.Parameter
+        String rootId();
+
+        @Value.Parameter
+        Path rootDir();
+
+        /**
+         * Most recent first.
+         */
+        @Value.Parameter
+        List<Path> previousRootDirs();
+    }
+}
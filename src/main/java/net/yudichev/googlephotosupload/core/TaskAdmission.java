@@ -0,0 +1,17 @@
+package net.yudichev.googlephotosupload.core;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Admission of work into the {@link Bindings.Backpressured} executor. The executor accepts any number of tasks, but work
+ * that submits its tasks with a permit occupies the pool for as long as it runs, so that new work is held back while
+ * the pool is busy, rather than queueing tasks without bound.
+ */
+interface TaskAdmission {
+    /**
+     * @param task submits its work to the executor; called once a permit is available
+     * @return the task's future, after which the permit is released
+     */
+    <T> CompletableFuture<T> withPermit(Supplier<CompletableFuture<T>> task);
+}
@@ -0,0 +1,28 @@
+package net.yudichev.googlephotosupload.core;
+
+/**
+ * Exposes the admission of tasks to the upload thread pool over JMX.
+ */
+public interface UploadAdmissionMXBean {
+    /**
+     * @return number of tasks waiting for a permit to enter the pool
+     */
+    int getQueueDepth();
+
+    int getAvailablePermits();
+
+    /**
+     * @return average time tasks that had to wait spent waiting for a permit
+     */
+    double getAverageWaitMillis();
+
+    /**
+     * @return number of tasks that could not be run as the pool was shut down
+     */
+    long getRejectionCount();
+
+    /**
+     * @return number of cloud operations and other work waiting for a permit to submit their tasks to the pool
+     */
+    int getAdmissionQueueDepth();
+}
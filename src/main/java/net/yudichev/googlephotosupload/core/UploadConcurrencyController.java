@@ -0,0 +1,24 @@
+package net.yudichev.googlephotosupload.core;
+
+import java.time.Duration;
+import java.util.function.IntConsumer;
+
+/**
+ * Decides how many uploads may be in flight: the limit is raised by one after every sampling interval in which
+ * throughput did not drop and latency stayed stable, and halved when the remote API throttles the calls.
+ */
+interface UploadConcurrencyController {
+    int limit();
+
+    /**
+     * Sets the listener to notify of every subsequent limit change.
+     */
+    void setLimitListener(IntConsumer limitListener);
+
+    /**
+     * @param duration time from when the upload was submitted until it completed, including time spent queued
+     */
+    void onUploadSucceeded(long sizeBytes, Duration duration);
+
+    void onThrottled();
+}
@@ -0,0 +1,196 @@
+package net.yudichev.googlephotosupload.core;
+
+import com.google.common.collect.ImmutableList;
+import net.yudichev.jiotty.common.inject.BaseLifecycleComponent;
+import net.yudichev.jiotty.common.lang.PackagePrivateImmutablesStyle;
+import net.yudichev.jiotty.common.time.CurrentDateTimeProvider;
+import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static net.yudichev.jiotty.common.lang.Locks.inLock;
+import static net.yudichev.jiotty.common.lang.MoreThrowables.getAsUnchecked;
+
+/**
+ * Uploads of larger files take longer, so latency is compared per byte uploaded. Throttling usually fails many calls at
+ * once, so the limit is halved at most once per sampling interval.
+ */
+final class UploadConcurrencyControllerImpl extends BaseLifecycleComponent implements UploadConcurrencyController, UploadConcurrencyMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(UploadConcurrencyControllerImpl.class);
+    private static final int INITIAL_LIMIT = Runtime.getRuntime().availableProcessors() * 2;
+    private static final int MIN_LIMIT = 1;
+    private static final int MAX_LIMIT = 64;
+    private static final Duration SAMPLING_INTERVAL = Duration.ofSeconds(10);
+    /**
+     * Once the link is saturated, throughput stays flat as the limit grows, so the limit is only raised on a real gain.
+     */
+    private static final double MIN_THROUGHPUT_GAIN = 0.05;
+    private static final double LATENCY_INCREASE_TOLERANCE = 0.2;
+    private static final int HISTORY_SIZE = 100;
+    private static final ObjectName OBJECT_NAME = getAsUnchecked(() -> new ObjectName("net.yudichev.googlephotosupload:type=UploadConcurrency"));
+
+    private final CurrentDateTimeProvider currentDateTimeProvider;
+    private final Lock lock = new ReentrantLock();
+    private final Lock listenerLock = new ReentrantLock();
+    private final Deque<String> limitHistory = new ArrayDeque<>(HISTORY_SIZE);
+
+    private int limit = INITIAL_LIMIT;
+    private IntConsumer limitListener = newLimit -> {};
+    private Instant sampleStart;
+    private long sampleBytes;
+    private long sampleLatencyNanos;
+    private Optional<Sample> previousSample = Optional.empty();
+    private Optional<Instant> lastDecrease = Optional.empty();
+
+    @Inject
+    UploadConcurrencyControllerImpl(CurrentDateTimeProvider currentDateTimeProvider) {
+        this.currentDateTimeProvider = checkNotNull(currentDateTimeProvider);
+        sampleStart = currentDateTimeProvider.currentInstant();
+    }
+
+    @Override
+    public int limit() {
+        return inLock(lock, () -> limit);
+    }
+
+    @Override
+    public void setLimitListener(IntConsumer limitListener) {
+        checkNotNull(limitListener);
+        inLock(lock, () -> {
+            this.limitListener = limitListener;
+        });
+    }
+
+    @Override
+    public void onUploadSucceeded(long sizeBytes, Duration duration) {
+        boolean limitChanged = inLock(lock, () -> {
+            sampleBytes += sizeBytes;
+            sampleLatencyNanos += duration.toNanos();
+            var now = currentDateTimeProvider.currentInstant();
+            var sampleDuration = Duration.between(sampleStart, now);
+            if (sampleDuration.compareTo(SAMPLING_INTERVAL) < 0) {
+                return false;
+            }
+            var sample = Sample.of(sampleBytes * 1000.0 / Math.max(1, sampleDuration.toMillis()),
+                    (double) sampleLatencyNanos / Math.max(1, sampleBytes));
+            var raise = limit < MAX_LIMIT && previousSample
+                    .filter(previous -> sample.throughputBytesPerSecond() > previous.throughputBytesPerSecond() * (1 + MIN_THROUGHPUT_GAIN) &&
+                            sample.latencyNanosPerByte() <= previous.latencyNanosPerByte() * (1 + LATENCY_INCREASE_TOLERANCE))
+                    .isPresent();
+            if (raise) {
+                changeLimit(limit + 1, now, String.format("throughput %.0f B/s", sample.throughputBytesPerSecond()));
+            }
+            previousSample = Optional.of(sample);
+            startSample(now);
+            return raise;
+        });
+        if (limitChanged) {
+            notifyLimitListener();
+        }
+    }
+
+    @Override
+    public void onThrottled() {
+        boolean limitChanged = inLock(lock, () -> {
+            var now = currentDateTimeProvider.currentInstant();
+            if (lastDecrease.filter(instant -> instant.plus(SAMPLING_INTERVAL).isAfter(now)).isEmpty() && limit > MIN_LIMIT) {
+                lastDecrease = Optional.of(now);
+                changeLimit(Math.max(MIN_LIMIT, limit / 2), now, "throttled");
+                // samples taken at the previous limit are not comparable
+                previousSample = Optional.empty();
+                startSample(now);
+                return true;
+            }
+            return false;
+        });
+        if (limitChanged) {
+            notifyLimitListener();
+        }
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        return limit();
+    }
+
+    @Override
+    public List<String> getConcurrencyLimitHistory() {
+        return inLock(lock, () -> ImmutableList.copyOf(limitHistory));
+    }
+
+    @Override
+    public double getThroughputBytesPerSecond() {
+        return inLock(lock, () -> previousSample.map(Sample::throughputBytesPerSecond).orElse(0.0));
+    }
+
+    @Override
+    protected void doStart() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, OBJECT_NAME);
+        } catch (JMException e) {
+            logger.warn("Failed to register upload concurrency MBean", e);
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(OBJECT_NAME);
+        } catch (JMException e) {
+            logger.warn("Failed to unregister upload concurrency MBean", e);
+        }
+    }
+
+    private void startSample(Instant now) {
+        sampleStart = now;
+        sampleBytes = 0;
+        sampleLatencyNanos = 0;
+    }
+
+    private void changeLimit(int newLimit, Instant now, String reason) {
+        logger.info("Changing upload concurrency limit from {} to {}: {}", limit, newLimit, reason);
+        if (limitHistory.size() == HISTORY_SIZE) {
+            limitHistory.removeFirst();
+        }
+        limitHistory.addLast(String.format("%s %d -> %d (%s)", now, limit, newLimit, reason));
+        limit = newLimit;
+    }
+
+    /**
+     * Called outside of the lock, as the listener resizes the pool and the admission semaphore, which may run waiting
+     * tasks that report back here. Notifications are serialized and pass the latest limit, so that a late one does not
+     * undo a later change.
+     */
+    private void notifyLimitListener() {
+        inLock(listenerLock, () -> {
+            var listenerAndLimit = inLock(lock, () -> Map.entry(limitListener, limit));
+            listenerAndLimit.getKey().accept(listenerAndLimit.getValue());
+        });
+    }
+
+    @Value.Immutable
+    @PackagePrivateImmutablesStyle
+    interface BaseSample {
+        @Value.Parameter
+        double throughputBytesPerSecond();
+
+        @Value.Parameter
+        double latencyNanosPerByte();
+    }
+}
@@ -0,0 +1,20 @@
+package net.yudichev.googlephotosupload.core;
+
+import java.util.List;
+
+/**
+ * Exposes the state of the {@link UploadConcurrencyController} over JMX.
+ */
+public interface UploadConcurrencyMXBean {
+    int getConcurrencyLimit();
+
+    /**
+     * @return most recent limit changes, oldest first
+     */
+    List<String> getConcurrencyLimitHistory();
+
+    /**
+     * @return throughput measured over the last complete sampling interval, or 0 if there was none
+     */
+    double getThroughputBytesPerSecond();
+}
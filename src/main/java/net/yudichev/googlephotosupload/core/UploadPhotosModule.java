@@ -2,8 +2,10 @@ package net.yudichev.googlephotosupload.core;
 
 import com.google.api.client.util.BackOff;
 import com.google.inject.assistedinject.FactoryModuleBuilder;
+import com.google.inject.multibindings.OptionalBinder;
 import net.yudichev.jiotty.common.inject.BaseLifecycleComponentModule;
 import net.yudichev.jiotty.common.inject.ExposedKeyModule;
+import net.yudichev.jiotty.common.lang.TypedBuilder;
 
 import javax.inject.Singleton;
 import java.util.concurrent.ExecutorService;
@@ -13,9 +15,31 @@ import static net.yudichev.googlephotosupload.core.Bindings.Backpressured;
 @SuppressWarnings("OverlyCoupledClass") // OK for module
 public final class UploadPhotosModule extends BaseLifecycleComponentModule implements ExposedKeyModule<Uploader> {
     private final int backOffInitialDelayMs;
+    private final boolean memoryMappedStateStore;
+    private final boolean contentDeduplication;
+    private final boolean fullRescan;
+    private final boolean recheckCachedFiles;
+    private final int maxActiveDirectories;
+    private final long dailyRequestBudget;
 
-    public UploadPhotosModule(int backOffInitialDelayMs) {
+    private UploadPhotosModule(int backOffInitialDelayMs,
+                               boolean memoryMappedStateStore,
+                               boolean contentDeduplication,
+                               boolean fullRescan,
+                               boolean recheckCachedFiles,
+                               int maxActiveDirectories,
+                               long dailyRequestBudget) {
         this.backOffInitialDelayMs = backOffInitialDelayMs;
+        this.memoryMappedStateStore = memoryMappedStateStore;
+        this.contentDeduplication = contentDeduplication;
+        this.fullRescan = fullRescan;
+        this.recheckCachedFiles = recheckCachedFiles;
+        this.maxActiveDirectories = maxActiveDirectories;
+        this.dailyRequestBudget = dailyRequestBudget;
+    }
+
+    public static Builder builder() {
+        return new Builder();
     }
 
     @Override
@@ -26,27 +50,97 @@ public final class UploadPhotosModule extends BaseLifecycleComponentModule imple
                 .implement(StateSaver.class, StateSaverImpl.class)
                 .build(StateSaverFactory.class));
 
-        bind(ExecutorService.class).annotatedWith(Backpressured.class)
-                .toProvider(boundLifecycleComponent(BackpressuredExecutorServiceProvider.class));
+        bind(UploadConcurrencyController.class).to(boundLifecycleComponent(UploadConcurrencyControllerImpl.class));
+        var backpressuredExecutorServiceProvider = boundLifecycleComponent(BackpressuredExecutorServiceProvider.class);
+        bind(ExecutorService.class).annotatedWith(Backpressured.class).toProvider(backpressuredExecutorServiceProvider);
+        bind(TaskAdmission.class).to(backpressuredExecutorServiceProvider);
 
         bind(DirectoryStructureSupplier.class).to(DirectoryStructureSupplierImpl.class);
 
         bindConstant().annotatedWith(BackOffProvider.InitialDelayMs.class).to(backOffInitialDelayMs);
-        bind(BackOff.class).annotatedWith(BackingOffRemoteApiExceptionHandlerImpl.Dependency.class).toProvider(BackOffProvider.class);
+        bind(BackOff.class).annotatedWith(QuotaGateImpl.Dependency.class).toProvider(BackOffProvider.class);
+        bind(BackOff.class).annotatedWith(CloudOperationHelperImpl.Dependency.class).toProvider(BackOffProvider.class);
+        bind(QuotaGate.class).to(QuotaGateImpl.class).in(Singleton.class);
         bind(BackingOffRemoteApiExceptionHandler.class).to(BackingOffRemoteApiExceptionHandlerImpl.class);
         bind(FatalUserCorrectableRemoteApiExceptionHandler.class).to(FatalUserCorrectableRemoteApiExceptionHandlerImpl.class);
 
+        bindConstant().annotatedWith(DirectoryScanCacheImpl.FullRescan.class).to(fullRescan);
+        bind(DirectoryScanCache.class).to(boundLifecycleComponent(DirectoryScanCacheImpl.class));
+        bindConstant().annotatedWith(FilesystemManagerImpl.RecheckCachedFiles.class).to(recheckCachedFiles);
         bind(FilesystemManager.class).to(FilesystemManagerImpl.class);
 
+        bindConstant().annotatedWith(ApiRateLimiterImpl.DailyRequestBudget.class).to(dailyRequestBudget);
+        bind(ApiRateLimiter.class).to(boundLifecycleComponent(ApiRateLimiterImpl.class));
         bind(CloudOperationHelper.class).to(CloudOperationHelperImpl.class);
         bind(CloudAlbumsProvider.class).to(boundLifecycleComponent(CloudAlbumsProviderImpl.class));
 
         bind(AlbumManager.class).to(boundLifecycleComponent(AlbumManagerImpl.class));
 
-        bind(UploadStateManager.class).to(UploadStateManagerImpl.class).in(Singleton.class);
+        bind(UploadStateManager.class)
+                .to(memoryMappedStateStore ? MappedUploadStateManagerImpl.class : UploadStateManagerImpl.class)
+                .in(Singleton.class);
+        var contentHashIndexBinder = OptionalBinder.newOptionalBinder(binder(), ContentHashIndex.class);
+        if (contentDeduplication) {
+            contentHashIndexBinder.setBinding().to(ContentHashIndexImpl.class).in(Singleton.class);
+        }
+        bind(RootDirRelocationResolver.class).to(RootDirRelocationResolverImpl.class).in(Singleton.class);
+        bind(MediaItemCreationBatcher.class).to(boundLifecycleComponent(MediaItemCreationBatcherImpl.class));
         bind(GooglePhotosUploader.class).to(boundLifecycleComponent(GooglePhotosUploaderImpl.class));
 
+        bindConstant().annotatedWith(UploaderImpl.MaxActiveDirectories.class).to(maxActiveDirectories);
         bind(getExposedKey()).to(UploaderImpl.class);
         expose(getExposedKey());
     }
+
+    public static final class Builder implements TypedBuilder<UploadPhotosModule> {
+        private int backOffInitialDelayMs = 1000;
+        private boolean memoryMappedStateStore;
+        private boolean contentDeduplication;
+        private boolean fullRescan;
+        private boolean recheckCachedFiles;
+        private int maxActiveDirectories = 32;
+        private long dailyRequestBudget;
+
+        public Builder withBackOffInitialDelayMs(int backOffInitialDelayMs) {
+            this.backOffInitialDelayMs = backOffInitialDelayMs;
+            return this;
+        }
+
+        public Builder withMemoryMappedStateStore(boolean memoryMappedStateStore) {
+            this.memoryMappedStateStore = memoryMappedStateStore;
+            return this;
+        }
+
+        public Builder withContentDeduplication(boolean contentDeduplication) {
+            this.contentDeduplication = contentDeduplication;
+            return this;
+        }
+
+        public Builder withFullRescan(boolean fullRescan) {
+            this.fullRescan = fullRescan;
+            return this;
+        }
+
+        public Builder withCachedFileRecheck(boolean recheckCachedFiles) {
+            this.recheckCachedFiles = recheckCachedFiles;
+            return this;
+        }
+
+        public Builder withMaxActiveDirectories(int maxActiveDirectories) {
+            this.maxActiveDirectories = maxActiveDirectories;
+            return this;
+        }
+
+        public Builder withDailyRequestBudget(long dailyRequestBudget) {
+            this.dailyRequestBudget = dailyRequestBudget;
+            return this;
+        }
+
+        @Override
+        public UploadPhotosModule build() {
+            return new UploadPhotosModule(backOffInitialDelayMs, memoryMappedStateStore, contentDeduplication, fullRescan, recheckCachedFiles,
+                    maxActiveDirectories,
+                    dailyRequestBudget);
+        }
+    }
 }
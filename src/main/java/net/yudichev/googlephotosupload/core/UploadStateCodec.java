@@ -0,0 +1,212 @@
+package net.yudichev.googlephotosupload.core;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Versioned binary encoding of {@link UploadState} and {@link ItemState}, several times more compact and faster to
+ * parse than JSON. In a whole state, paths are sorted and stored as the length of the prefix shared with the
+ * previous path plus the remaining suffix, and album IDs are stored once in a dictionary and referenced by index.
+ * Instants are stored as variable length integers.
+ */
+final class UploadStateCodec {
+    private static final int VERSION = 2;
+
+    private static final int FLAG_UPLOAD_STATE = 1;
+    private static final int FLAG_MEDIA_ID = 1 << 1;
+    private static final int FLAG_ALBUM_ID = 1 << 2;
+    private static final int FLAG_FINGERPRINT = 1 << 3;
+    private static final int FLAG_FILE_KEY = 1 << 4;
+
+    private UploadStateCodec() {
+    }
+
+    static byte[] encode(UploadState uploadState) {
+        var itemStateByAbsolutePath = uploadState.uploadedMediaItemIdByAbsolutePath();
+        List<String> albumIds = new ArrayList<>();
+        Map<String, Integer> albumIdIndexes = new HashMap<>();
+        itemStateByAbsolutePath.values().forEach(itemState -> itemState.albumId().ifPresent(albumId -> albumIdIndexes.computeIfAbsent(albumId, newAlbumId -> {
+            albumIds.add(newAlbumId);
+            return albumIds.size() - 1;
+        })));
+
+        var out = ByteStreams.newDataOutput();
+        out.writeByte(VERSION);
+        writeVarLong(out, albumIds.size());
+        albumIds.forEach(albumId -> writeString(out, albumId));
+
+        writeVarLong(out, itemStateByAbsolutePath.size());
+        var previousPath = new byte[0];
+        for (var absolutePath : itemStateByAbsolutePath.keySet().stream().sorted().toArray(String[]::new)) {
+            var path = absolutePath.getBytes(UTF_8);
+            var sharedPrefixLength = sharedPrefixLength(previousPath, path);
+            writeVarLong(out, sharedPrefixLength);
+            writeVarLong(out, path.length - sharedPrefixLength);
+            out.write(path, sharedPrefixLength, path.length - sharedPrefixLength);
+            writeItemState(out, itemStateByAbsolutePath.get(absolutePath), Optional.of(albumIdIndexes));
+            previousPath = path;
+        }
+        return out.toByteArray();
+    }
+
+    static UploadState decode(byte[] bytes) {
+        var in = ByteStreams.newDataInput(bytes);
+        readVersion(in);
+        var albumIdCount = (int) readVarLong(in);
+        List<String> albumIds = new ArrayList<>(albumIdCount);
+        for (var i = 0; i < albumIdCount; i++) {
+            albumIds.add(readString(in));
+        }
+
+        var itemCount = (int) readVarLong(in);
+        ImmutableMap.Builder<String, ItemState> itemStateByAbsolutePathBuilder = ImmutableMap.builderWithExpectedSize(itemCount);
+        var path = new byte[0];
+        for (var i = 0; i < itemCount; i++) {
+            var sharedPrefixLength = (int) readVarLong(in);
+            var suffixLength = (int) readVarLong(in);
+            var newPath = new byte[sharedPrefixLength + suffixLength];
+            System.arraycopy(path, 0, newPath, 0, sharedPrefixLength);
+            in.readFully(newPath, sharedPrefixLength, suffixLength);
+            path = newPath;
+            itemStateByAbsolutePathBuilder.put(new String(path, UTF_8), readItemState(in, Optional.of(albumIds)));
+        }
+        return UploadState.of(itemStateByAbsolutePathBuilder.build());
+    }
+
+    static byte[] encodeItemState(ItemState itemState) {
+        var out = ByteStreams.newDataOutput();
+        out.writeByte(VERSION);
+        writeItemState(out, itemState, Optional.empty());
+        return out.toByteArray();
+    }
+
+    static ItemState decodeItemState(byte[] bytes) {
+        var in = ByteStreams.newDataInput(bytes);
+        readVersion(in);
+        return readItemState(in, Optional.empty());
+    }
+
+    private static void writeItemState(ByteArrayDataOutput out, ItemState itemState, Optional<Map<String, Integer>> albumIdIndexes) {
+        out.writeByte((itemState.uploadState().isPresent() ? FLAG_UPLOAD_STATE : 0) |
+                (itemState.mediaId().isPresent() ? FLAG_MEDIA_ID : 0) |
+                (itemState.albumId().isPresent() ? FLAG_ALBUM_ID : 0) |
+                (itemState.fingerprint().isPresent() ? FLAG_FINGERPRINT : 0) |
+                (itemState.fingerprint().flatMap(FileFingerprint::fileKey).isPresent() ? FLAG_FILE_KEY : 0));
+        itemState.uploadState().ifPresent(uploadMediaItemState -> {
+            writeString(out, uploadMediaItemState.token());
+            writeInstant(out, uploadMediaItemState.uploadInstant());
+        });
+        itemState.mediaId().ifPresent(mediaId -> writeString(out, mediaId));
+        itemState.albumId().ifPresent(albumId -> albumIdIndexes.ifPresentOrElse(
+                indexes -> writeVarLong(out, indexes.get(albumId)),
+                () -> writeString(out, albumId)));
+        itemState.fingerprint().ifPresent(fingerprint -> {
+            writeVarLong(out, fingerprint.size());
+            writeInstant(out, fingerprint.lastModified());
+            fingerprint.fileKey().ifPresent(fileKey -> writeString(out, fileKey));
+        });
+    }
+
+    private static ItemState readItemState(ByteArrayDataInput in, Optional<List<String>> albumIds) {
+        var flags = in.readByte();
+        var builder = ItemState.builder();
+        if ((flags & FLAG_UPLOAD_STATE) != 0) {
+            var token = readString(in);
+            builder.setUploadState(UploadMediaItemState.of(token, readInstant(in)));
+        }
+        if ((flags & FLAG_MEDIA_ID) != 0) {
+            builder.setMediaId(readString(in));
+        }
+        if ((flags & FLAG_ALBUM_ID) != 0) {
+            builder.setAlbumId(albumIds
+                    .map(ids -> ids.get((int) readVarLong(in)))
+                    .orElseGet(() -> readString(in)));
+        }
+        if ((flags & FLAG_FINGERPRINT) != 0) {
+            var fingerprintBuilder = FileFingerprint.builder()
+                    .setSize(readVarLong(in))
+                    .setLastModified(readInstant(in));
+            if ((flags & FLAG_FILE_KEY) != 0) {
+                fingerprintBuilder.setFileKey(readString(in));
+            }
+            builder.setFingerprint(fingerprintBuilder.build());
+        }
+        return builder.build();
+    }
+
+    private static void readVersion(ByteArrayDataInput in) {
+        var version = in.readByte();
+        checkState(version == VERSION, "Unsupported upload state encoding version %s", version);
+    }
+
+    private static int sharedPrefixLength(byte[] first, byte[] second) {
+        var maxLength = Math.min(first.length, second.length);
+        var length = 0;
+        while (length < maxLength && first[length] == second[length]) {
+            length++;
+        }
+        return length;
+    }
+
+    private static void writeString(ByteArrayDataOutput out, String string) {
+        var bytes = string.getBytes(UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteArrayDataInput in) {
+        var bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeInstant(ByteArrayDataOutput out, Instant instant) {
+        writeVarLong(out, zigZagEncode(instant.getEpochSecond()));
+        writeVarLong(out, instant.getNano());
+    }
+
+    private static Instant readInstant(ByteArrayDataInput in) {
+        var epochSecond = zigZagDecode(readVarLong(in));
+        return Instant.ofEpochSecond(epochSecond, readVarLong(in));
+    }
+
+    private static void writeVarLong(ByteArrayDataOutput out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(ByteArrayDataInput in) {
+        var result = 0L;
+        for (var shift = 0; ; shift += 7) {
+            checkState(shift < 64, "Malformed variable length integer");
+            var b = in.readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+    }
+
+    private static long zigZagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
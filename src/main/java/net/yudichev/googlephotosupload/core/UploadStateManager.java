@@ -1,7 +1,37 @@
 package net.yudichev.googlephotosupload.core;
 
-interface UploadStateManager {
+import net.yudichev.jiotty.common.lang.Closeable;
+
+import java.util.Map;
+import java.util.Optional;
+
+interface UploadStateManager extends Closeable {
+    /**
+     * Materialises the whole state; cost is proportional to the size of the state.
+     */
     UploadState get();
 
+    Optional<ItemState> getItemState(String absolutePath);
+
+    /**
+     * @return the number of items created in the cloud; does not materialise the state
+     */
+    int uploadedItemCount();
+
+    /**
+     * Replaces the whole state; the journal is compacted as part of this operation.
+     */
     void save(UploadState uploadState);
+
+    /**
+     * Appends the changed item states to the journal; cost is proportional to the number of changes, not to the size
+     * of the whole state.
+     */
+    void saveItemStates(Map<String, ItemState> itemStateByAbsolutePath);
+
+    /**
+     * Compacts the journal into a snapshot and releases the journal file.
+     */
+    @Override
+    void close();
 }
@@ -1,36 +1,289 @@
 package net.yudichev.googlephotosupload.core;
 
+import com.google.common.collect.ImmutableMap;
+import net.yudichev.jiotty.common.async.ExecutorFactory;
+import net.yudichev.jiotty.common.async.SchedulingExecutor;
 import net.yudichev.jiotty.common.varstore.VarStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+import static net.yudichev.googlephotosupload.core.Bindings.SettingsRootDir;
 import static net.yudichev.jiotty.common.lang.Locks.inLock;
+import static net.yudichev.jiotty.common.lang.MoreThrowables.asUnchecked;
+import static net.yudichev.jiotty.common.lang.MoreThrowables.getAsUnchecked;
 
+/**
+ * Keeps the snapshot of the upload state in a file encoded with {@link UploadStateCodec} and every item state change
+ * since the last snapshot in an append-only journal file next to it. Once the journal grows larger than the snapshot
+ * itself, it is set aside and a new snapshot is written in background from a copy of the state, while changes go to a
+ * fresh journal; the journal set aside is deleted once the new snapshot is in place. On start and on close, the
+ * journals are folded into a new snapshot straight away.
+ * <p>
+ * A record written partially or corrupted, for example as the process died, ends the journal: the journal is truncated
+ * before it and the records following it are lost.
+ * <p>
+ * The state used to be stored as JSON in the {@link VarStore}; it is imported from there if there is no snapshot yet.
+ * If the {@link MappedUploadStateManagerImpl memory-mapped store} was used since the snapshot was written, the state is
+ * exported from there instead.
+ */
 final class UploadStateManagerImpl implements UploadStateManager {
+    private static final Logger logger = LoggerFactory.getLogger(UploadStateManagerImpl.class);
     private static final String VAR_STORE_KEY = "photosUploader";
+    private static final String SNAPSHOT_FILE_NAME = "photosUploader.state";
+    private static final String JOURNAL_FILE_NAME = "photosUploader.journal";
+    private static final String COMPACTED_JOURNAL_FILE_NAME = "photosUploader.journal.compacting";
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 10_000;
+
     private final VarStore varStore;
+    private final ExecutorFactory executorFactory;
+    private final Path snapshotFile;
+    private final Path journalFile;
+    private final Path compactedJournalFile;
     private final Lock lock = new ReentrantLock();
-    private volatile UploadState uploadState;
+    private final Map<String, ItemState> itemStateByAbsolutePath;
+    private DataOutputStream journalOutput;
+    private int journalRecordCount;
+    private boolean importedFromVarStore;
+    private SchedulingExecutor compactionExecutor;
+    private CompletableFuture<Void> compactionFuture = CompletableFuture.completedFuture(null);
 
     @Inject
-    UploadStateManagerImpl(VarStore varStore) {
+    UploadStateManagerImpl(VarStore varStore,
+                           ExecutorFactory executorFactory,
+                           @SettingsRootDir Path settingsRootDir) {
         this.varStore = checkNotNull(varStore);
-        uploadState = varStore.readValue(UploadState.class, VAR_STORE_KEY).orElseGet(() -> UploadState.builder().build());
+        this.executorFactory = checkNotNull(executorFactory);
+        snapshotFile = settingsRootDir.resolve(SNAPSHOT_FILE_NAME);
+        journalFile = settingsRootDir.resolve(JOURNAL_FILE_NAME);
+        compactedJournalFile = settingsRootDir.resolve(COMPACTED_JOURNAL_FILE_NAME);
+        itemStateByAbsolutePath = new HashMap<>(readSnapshot());
+        replayJournal();
+        if (MappedUploadStateManagerImpl.holdsCurrentState(settingsRootDir)) {
+            exportFromMappedStore(settingsRootDir);
+        }
     }
 
     @Override
     public UploadState get() {
-        return uploadState;
+        return inLock(lock, () -> UploadState.of(itemStateByAbsolutePath));
+    }
+
+    @Override
+    public Optional<ItemState> getItemState(String absolutePath) {
+        return inLock(lock, () -> Optional.ofNullable(itemStateByAbsolutePath.get(absolutePath)));
+    }
+
+    @Override
+    public int uploadedItemCount() {
+        return inLock(lock, () -> (int) itemStateByAbsolutePath.values().stream()
+                .filter(itemState -> itemState.mediaId().isPresent())
+                .count());
     }
 
     @Override
     public void save(UploadState uploadState) {
         inLock(lock, () -> {
-            this.uploadState = uploadState;
-            varStore.saveValue(VAR_STORE_KEY, uploadState);
+            itemStateByAbsolutePath.clear();
+            itemStateByAbsolutePath.putAll(uploadState.uploadedMediaItemIdByAbsolutePath());
+            compact();
+        });
+    }
+
+    @Override
+    public void saveItemStates(Map<String, ItemState> itemStateByAbsolutePath) {
+        if (itemStateByAbsolutePath.isEmpty()) {
+            return;
+        }
+        inLock(lock, () -> {
+            this.itemStateByAbsolutePath.putAll(itemStateByAbsolutePath);
+            asUnchecked(() -> {
+                if (journalOutput == null) {
+                    Files.createDirectories(journalFile.getParent());
+                    journalOutput = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(journalFile, CREATE, WRITE, APPEND)));
+                }
+                for (var entry : itemStateByAbsolutePath.entrySet()) {
+                    writeBytes(journalOutput, entry.getKey().getBytes(UTF_8));
+                    writeBytes(journalOutput, UploadStateCodec.encodeItemState(entry.getValue()));
+                }
+                journalOutput.flush();
+            });
+            journalRecordCount += itemStateByAbsolutePath.size();
+            if (journalRecordCount > Math.max(MIN_RECORDS_BEFORE_COMPACTION, this.itemStateByAbsolutePath.size()) && compactionFuture.isDone()) {
+                compactInBackground();
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        inLock(lock, () -> {
+            compact();
+            if (compactionExecutor != null) {
+                compactionExecutor.close();
+                compactionExecutor = null;
+            }
         });
     }
+
+    /**
+     * The memory-mapped store was used since the snapshot was written, so the state it holds supersedes the snapshot.
+     * It is discarded once the state is in a new snapshot.
+     */
+    private void exportFromMappedStore(Path settingsRootDir) {
+        var mappedUploadStateManager = new MappedUploadStateManagerImpl(varStore, executorFactory, settingsRootDir);
+        itemStateByAbsolutePath.clear();
+        itemStateByAbsolutePath.putAll(mappedUploadStateManager.get().uploadedMediaItemIdByAbsolutePath());
+        compact();
+        mappedUploadStateManager.discard();
+        logger.info("Exported {} item state(s) from the memory-mapped store", itemStateByAbsolutePath.size());
+    }
+
+    private Map<String, ItemState> readSnapshot() {
+        if (Files.exists(snapshotFile)) {
+            return UploadStateCodec.decode(getAsUnchecked(() -> Files.readAllBytes(snapshotFile))).uploadedMediaItemIdByAbsolutePath();
+        }
+        return varStore.readValue(UploadState.class, VAR_STORE_KEY)
+                .map(uploadState -> {
+                    logger.info("Importing {} item state(s) saved by a previous version", uploadState.uploadedMediaItemIdByAbsolutePath().size());
+                    importedFromVarStore = true;
+                    return uploadState.uploadedMediaItemIdByAbsolutePath();
+                })
+                .orElse(ImmutableMap.of());
+    }
+
+    private void replayJournal() {
+        if (!Files.exists(journalFile) && !Files.exists(compactedJournalFile) && !importedFromVarStore) {
+            return;
+        }
+        // the journal set aside by an unfinished compaction holds the older records
+        var replayedCount = replay(compactedJournalFile) + replay(journalFile);
+        logger.info("Replayed {} upload state journal record(s), {} item(s) in total", replayedCount, itemStateByAbsolutePath.size());
+        compact();
+    }
+
+    private int replay(Path file) {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        long fileSize = getAsUnchecked(() -> Files.size(file));
+        long replayedLength = 0;
+        var replayedCount = 0;
+        try (var journalInput = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (replayedLength < fileSize) {
+                var pathBytes = readBytes(journalInput, fileSize - replayedLength - Integer.BYTES);
+                var itemStateBytes = readBytes(journalInput, fileSize - replayedLength - 2 * Integer.BYTES - pathBytes.length);
+                itemStateByAbsolutePath.put(new String(pathBytes, UTF_8), UploadStateCodec.decodeItemState(itemStateBytes));
+                replayedLength += 2 * Integer.BYTES + pathBytes.length + itemStateBytes.length;
+                replayedCount++;
+            }
+        } catch (EOFException | RuntimeException e) {
+            // the last good record was followed by one written partially before the process died, or corrupted
+            logger.warn("Truncating upload state journal {} after {} good record(s) at {} of {} byte(s)",
+                    file, replayedCount, replayedLength, fileSize, e);
+            var goodLength = replayedLength;
+            asUnchecked(() -> {
+                try (var channel = FileChannel.open(file, WRITE)) {
+                    channel.truncate(goodLength);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return replayedCount;
+    }
+
+    /**
+     * Sets the journal aside and writes a snapshot of the state as of now in background; new records go to a new journal.
+     */
+    private void compactInBackground() {
+        if (Files.exists(compactedJournalFile)) {
+            // the previous background compaction failed, so its journal is still needed
+            compact();
+            return;
+        }
+        var uploadState = UploadState.of(itemStateByAbsolutePath);
+        asUnchecked(() -> {
+            closeJournal();
+            Files.move(journalFile, compactedJournalFile, ATOMIC_MOVE);
+        });
+        journalRecordCount = 0;
+        if (compactionExecutor == null) {
+            compactionExecutor = executorFactory.createSingleThreadedSchedulingExecutor("upload state compaction");
+        }
+        compactionFuture = CompletableFuture
+                .runAsync(() -> asUnchecked(() -> {
+                    writeSnapshot(uploadState);
+                    Files.delete(compactedJournalFile);
+                }), compactionExecutor::execute)
+                .exceptionally(e -> {
+                    logger.warn("Failed to compact upload state journal in background", e);
+                    return null;
+                });
+    }
+
+    private void compact() {
+        // the snapshot being written in background would overwrite the one written here
+        compactionFuture.join();
+        asUnchecked(() -> {
+            writeSnapshot(UploadState.of(itemStateByAbsolutePath));
+            closeJournal();
+            Files.deleteIfExists(journalFile);
+            Files.deleteIfExists(compactedJournalFile);
+        });
+        journalRecordCount = 0;
+        if (importedFromVarStore) {
+            // the snapshot supersedes the old copy, which only takes space in the VarStore now
+            varStore.saveValue(VAR_STORE_KEY, UploadState.builder().build());
+            importedFromVarStore = false;
+        }
+    }
+
+    private void writeSnapshot(UploadState uploadState) throws IOException {
+        Files.createDirectories(snapshotFile.getParent());
+        var newSnapshotFile = snapshotFile.resolveSibling(SNAPSHOT_FILE_NAME + ".new");
+        Files.write(newSnapshotFile, UploadStateCodec.encode(uploadState));
+        Files.move(newSnapshotFile, snapshotFile, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    private void closeJournal() throws IOException {
+        if (journalOutput != null) {
+            journalOutput.close();
+            journalOutput = null;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * @throws EOFException if the record's length is negative or goes beyond the end of the journal
+     */
+    private static byte[] readBytes(DataInputStream input, long maxLength) throws IOException {
+        var length = input.readInt();
+        if (length < 0 || length > maxLength) {
+            throw new EOFException("record length " + length + " is out of range, " + maxLength + " byte(s) left");
+        }
+        var bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
 }
@@ -1,10 +1,22 @@
 package net.yudichev.googlephotosupload.core;
 
 import java.nio.file.Path;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 
 public interface Uploader {
     CompletableFuture<Void> upload(Path rootDir, boolean resume);
 
+    /**
+     * Uploads files created or modified under the root directory, reusing the albums reconciled by the last
+     * {@link #upload(Path, boolean)}: files in each of the given paths that is a directory, and each of the given files.
+     */
+    CompletableFuture<Void> uploadChanges(Path rootDir, Set<Path> changedPaths);
+
     int numberOfUploadedItems();
+
+    /**
+     * Makes the next upload list every directory again, rather than reuse the contents cached by the previous scans.
+     */
+    void forgetScannedDirectories();
 }
@@ -1,16 +1,32 @@
 package net.yudichev.googlephotosupload.core;
 
+import com.google.inject.BindingAnnotation;
+import net.yudichev.jiotty.connector.google.photos.GooglePhotosAlbum;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static net.yudichev.jiotty.common.lang.CompletableFutures.toFutureOfList;
+import static java.lang.annotation.ElementType.*;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
 
 final class UploaderImpl implements Uploader {
     private static final Logger logger = LoggerFactory.getLogger(UploaderImpl.class);
@@ -20,6 +36,13 @@ final class UploaderImpl implements Uploader {
     private final CloudAlbumsProvider cloudAlbumsProvider;
     private final ProgressStatusFactory progressStatusFactory;
     private final ResourceBundle resourceBundle;
+    private final RootDirRelocationResolver rootDirRelocationResolver;
+    private final DirectoryScanCache directoryScanCache;
+    private final int maxActiveDirectories;
+    /**
+     * Kept between calls, so that changes uploaded after a full upload do not need to list and reconcile albums again.
+     */
+    private final Map<Optional<String>, CompletableFuture<Optional<GooglePhotosAlbum>>> albumFutureByTitle = new ConcurrentHashMap<>();
 
     @Inject
     UploaderImpl(GooglePhotosUploader googlePhotosUploader,
@@ -27,13 +50,20 @@ final class UploaderImpl implements Uploader {
                  AlbumManager albumManager,
                  CloudAlbumsProvider cloudAlbumsProvider,
                  ProgressStatusFactory progressStatusFactory,
-                 ResourceBundle resourceBundle) {
+                 ResourceBundle resourceBundle,
+                 RootDirRelocationResolver rootDirRelocationResolver,
+                 DirectoryScanCache directoryScanCache,
+                 @MaxActiveDirectories int maxActiveDirectories) {
         this.googlePhotosUploader = checkNotNull(googlePhotosUploader);
         this.directoryStructureSupplier = checkNotNull(directoryStructureSupplier);
         this.albumManager = checkNotNull(albumManager);
         this.cloudAlbumsProvider = checkNotNull(cloudAlbumsProvider);
         this.progressStatusFactory = checkNotNull(progressStatusFactory);
         this.resourceBundle = checkNotNull(resourceBundle);
+        this.rootDirRelocationResolver = checkNotNull(rootDirRelocationResolver);
+        this.directoryScanCache = checkNotNull(directoryScanCache);
+        checkArgument(maxActiveDirectories > 0, "maxActiveDirectories must be positive: %s", maxActiveDirectories);
+        this.maxActiveDirectories = maxActiveDirectories;
     }
 
     @Override
@@ -41,41 +71,205 @@ final class UploaderImpl implements Uploader {
         if (!resume) {
             googlePhotosUploader.doNotResume();
         }
-        var albumDirectoriesFuture = directoryStructureSupplier.listAlbumDirectories(rootDir);
-        var cloudAlbumsByTitleFuture = cloudAlbumsProvider.listCloudAlbums();
-        return albumDirectoriesFuture
-                .thenCompose(albumDirectories -> cloudAlbumsByTitleFuture
-                        .thenCompose(cloudAlbumsByTitle -> albumManager.listAlbumsByTitle(albumDirectories, cloudAlbumsByTitle)
-                                .thenCompose(albumsByTitle -> {
-                                    var directoryProgressStatus =
-                                            progressStatusFactory.create(
-                                                    resourceBundle.getString("uploaderDirectoryProgressTitle"),
-                                                    Optional.of(albumDirectories.size()));
-                                    var fileProgressStatus = progressStatusFactory.create(
-                                            resourceBundle.getString("uploaderFileProgressTitle"),
-                                            Optional.empty());
-                                    try {
-                                        return albumDirectories.stream()
-                                                .map(albumDirectory -> googlePhotosUploader.uploadDirectory(
-                                                        albumDirectory.path(),
-                                                        albumDirectory.albumTitle().map(albumsByTitle::get), fileProgressStatus)
-                                                        .thenRun(directoryProgressStatus::incrementSuccess))
-                                                .collect(toFutureOfList())
-                                                .whenComplete((ignored, e) -> {
-                                                    directoryProgressStatus.close(e == null);
-                                                    fileProgressStatus.close(e == null);
-                                                })
-                                                .thenAccept(list -> logger.info("All done without errors, files uploaded: {}", list.size()));
-                                    } catch (RuntimeException e) {
-                                        directoryProgressStatus.closeUnsuccessfully();
-                                        fileProgressStatus.closeUnsuccessfully();
-                                        throw e;
-                                    }
-                                })));
+        rootDirRelocationResolver.register(rootDir);
+        albumFutureByTitle.clear();
+        cloudAlbumsProvider.refresh();
+        var albumProgressStatus = progressStatusFactory.create(
+                resourceBundle.getString("albumManagerProgressStatusTitle"),
+                Optional.empty());
+        var directoryProgressStatus = progressStatusFactory.create(
+                resourceBundle.getString("uploaderDirectoryProgressTitle"),
+                Optional.empty());
+        var fileProgressStatus = new FailureRecordingProgressStatus(progressStatusFactory.create(
+                resourceBundle.getString("uploaderFileProgressTitle"),
+                Optional.empty()));
+        var directoryWindow = new DirectoryWindow(maxActiveDirectories);
+        try {
+            return directoryStructureSupplier.listAlbumDirectories(rootDir, albumDirectory -> directoryWindow.upload(() -> {
+                // the directory's upload completes only after its album is reconciled, so the album status is closed with it
+                return googlePhotosUploader.uploadDirectory(albumDirectory.files(), albumFor(albumDirectory, albumProgressStatus), fileProgressStatus)
+                        .thenRun(directoryProgressStatus::incrementSuccess);
+            }))
+                    .thenCompose(albumDirectoryCount -> {
+                        logger.info("Scan complete, waiting for {} directories to be processed", albumDirectoryCount);
+                        directoryProgressStatus.updateTotal(albumDirectoryCount);
+                        return directoryWindow.allUploaded();
+                    })
+                    .whenComplete((ignored, e) -> {
+                        albumProgressStatus.close(e == null);
+                        directoryProgressStatus.close(e == null);
+                        fileProgressStatus.close(e == null);
+                    })
+                    .thenAccept(uploadedDirectoryCount -> {
+                        if (fileProgressStatus.hasFailures()) {
+                            // the failed files may still need the state saved under the root directory's previous locations
+                            logger.info("All done, directories uploaded: {}, some files failed", uploadedDirectoryCount);
+                        } else {
+                            logger.info("All done without errors, directories uploaded: {}", uploadedDirectoryCount);
+                            googlePhotosUploader.onRootDirUploaded();
+                        }
+                    });
+        } catch (RuntimeException e) {
+            albumProgressStatus.closeUnsuccessfully();
+            directoryProgressStatus.closeUnsuccessfully();
+            fileProgressStatus.closeUnsuccessfully();
+            throw e;
+        }
+    }
+
+    private CompletableFuture<Optional<GooglePhotosAlbum>> albumFor(AlbumDirectory albumDirectory, ProgressStatus albumProgressStatus) {
+        // failed reconciliations are retried
+        return albumFutureByTitle.compute(albumDirectory.albumTitle(), (title, albumFuture) ->
+                albumFuture == null || albumFuture.isCompletedExceptionally() ?
+                        // hop off the scanning thread, so that the scan carries on while the directory is being processed
+                        CompletableFuture.supplyAsync(() -> albumManager.albumFor(albumDirectory, albumProgressStatus))
+                                .thenCompose(Function.identity()) :
+                        albumFuture);
+    }
+
+    @Override
+    public CompletableFuture<Void> uploadChanges(Path rootDir, Set<Path> changedPaths) {
+        var albumProgressStatus = progressStatusFactory.create(
+                resourceBundle.getString("albumManagerProgressStatusTitle"),
+                Optional.empty());
+        var fileProgressStatus = progressStatusFactory.create(
+                resourceBundle.getString("uploaderFileProgressTitle"),
+                Optional.empty());
+        var directoryWindow = new DirectoryWindow(maxActiveDirectories);
+        return directoryStructureSupplier.listChangedAlbumDirectories(rootDir, changedPaths, albumDirectory ->
+                directoryWindow.upload(() ->
+                        googlePhotosUploader.uploadDirectory(albumDirectory.files(), albumFor(albumDirectory, albumProgressStatus), fileProgressStatus)))
+                .thenCompose(albumDirectoryCount -> directoryWindow.allUploaded())
+                .whenComplete((ignored, e) -> {
+                    albumProgressStatus.close(e == null);
+                    fileProgressStatus.close(e == null);
+                })
+                .thenAccept(uploadedDirectoryCount -> logger.info("Changes in {} directories uploaded", uploadedDirectoryCount));
     }
 
     @Override
     public int numberOfUploadedItems() {
         return googlePhotosUploader.canResume();
     }
+
+    @Override
+    public void forgetScannedDirectories() {
+        directoryScanCache.clear();
+    }
+
+    /**
+     * Holds the scan back, by blocking its handler, until fewer than the given number of directories are being
+     * uploaded, so that the directories found by the scan do not pile up in memory waiting for their turn. Counts the
+     * directories instead of keeping a future for each of them.
+     */
+    private static final class DirectoryWindow {
+        private final Semaphore semaphore;
+        private final AtomicInteger uploadedDirectoryCount = new AtomicInteger();
+        /**
+         * Directories being uploaded, plus one for the scan until it is complete.
+         */
+        private final AtomicInteger pendingCount = new AtomicInteger(1);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final CompletableFuture<Integer> allUploadedFuture = new CompletableFuture<>();
+
+        DirectoryWindow(int maxActiveDirectories) {
+            semaphore = new Semaphore(maxActiveDirectories);
+        }
+
+        void upload(Supplier<CompletableFuture<Void>> directoryUpload) {
+            try {
+                semaphore.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted");
+            }
+            pendingCount.incrementAndGet();
+            CompletableFuture<Void> uploadFuture;
+            try {
+                uploadFuture = directoryUpload.get();
+            } catch (RuntimeException e) {
+                uploadFuture = CompletableFuture.failedFuture(e);
+            }
+            uploadFuture.whenComplete((ignored, e) -> {
+                semaphore.release();
+                if (e == null) {
+                    uploadedDirectoryCount.incrementAndGet();
+                } else {
+                    failure.compareAndSet(null, e);
+                }
+                onDone();
+            });
+        }
+
+        /**
+         * To be called once the scan is complete.
+         *
+         * @return the number of uploaded directories, once all of them are done; failed with the first failure, if any
+         */
+        CompletableFuture<Integer> allUploaded() {
+            onDone();
+            return allUploadedFuture;
+        }
+
+        private void onDone() {
+            if (pendingCount.decrementAndGet() == 0) {
+                var firstFailure = failure.get();
+                if (firstFailure == null) {
+                    allUploadedFuture.complete(uploadedDirectoryCount.get());
+                } else {
+                    allUploadedFuture.completeExceptionally(firstFailure);
+                }
+            }
+        }
+    }
+
+    private static final class FailureRecordingProgressStatus implements ProgressStatus {
+        private final ProgressStatus delegate;
+        private final AtomicBoolean failed = new AtomicBoolean();
+
+        FailureRecordingProgressStatus(ProgressStatus delegate) {
+            this.delegate = checkNotNull(delegate);
+        }
+
+        boolean hasFailures() {
+            return failed.get();
+        }
+
+        @Override
+        public void updateSuccess(int newValue) {
+            delegate.updateSuccess(newValue);
+        }
+
+        @Override
+        public void incrementSuccessBy(int increment) {
+            delegate.incrementSuccessBy(increment);
+        }
+
+        @Override
+        public void updateTotal(int totalCount) {
+            delegate.updateTotal(totalCount);
+        }
+
+        @Override
+        public void onBackoffDelay(long backoffDelayMs) {
+            delegate.onBackoffDelay(backoffDelayMs);
+        }
+
+        @Override
+        public void close(boolean success) {
+            delegate.close(success);
+        }
+
+        @Override
+        public void addFailure(KeyedError keyedError) {
+            failed.set(true);
+            delegate.addFailure(keyedError);
+        }
+    }
+
+    @BindingAnnotation
+    @Target({FIELD, PARAMETER, METHOD})
+    @Retention(RUNTIME)
+    @interface MaxActiveDirectories {
+    }
 }
@@ -26,6 +26,7 @@ public final class FolderSelectorControllerImpl implements FolderSelectorControl
     private final ResourceBundle resourceBundle;
     public VBox folderSelector;
     public CheckBox resumeCheckbox;
+    public CheckBox fullRescanCheckbox;
     public FlowPane resumePane;
     public Label alreadyUploadedLabel;
     private BiConsumer<Path, Boolean> folderSelectionListener;
@@ -92,6 +93,9 @@ public final class FolderSelectorControllerImpl implements FolderSelectorControl
     }
 
     private void notifyListener(File file) {
+        if (fullRescanCheckbox.isSelected()) {
+            uploader.forgetScannedDirectories();
+        }
         folderSelectionListener.accept(file.toPath(), resumeCheckbox.isSelected());
     }
 
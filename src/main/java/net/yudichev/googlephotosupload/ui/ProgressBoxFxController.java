@@ -32,6 +32,7 @@ public final class ProgressBoxFxController {
     public ImageView backoffInfoIcon;
     public GridPane topPane;
     private Optional<Integer> totalCount;
+    private int value;
     private SepiaToneEffectAnimatedNode animatedBackoffInfoIcon;
     private Tooltip backoffTooltip;
     private Dialog failuresDialog;
@@ -65,12 +66,20 @@ public final class ProgressBoxFxController {
 
     public void updateSuccess(int value) {
         runLater(() -> {
+            this.value = value;
             totalCount.ifPresent(count -> progressIndicator.setProgress((double) value / count));
             valueLabel.setText(Integer.toString(value));
             animatedBackoffInfoIcon.hide();
         });
     }
 
+    public void updateTotal(int totalCount) {
+        runLater(() -> {
+            this.totalCount = Optional.of(totalCount);
+            progressIndicator.setProgress(totalCount == 0 ? 1.0 : (double) value / totalCount);
+        });
+    }
+
     public void addFailures(Collection<KeyedError> failures) {
         runLater(() -> {
             if (failuresDialog == null) {
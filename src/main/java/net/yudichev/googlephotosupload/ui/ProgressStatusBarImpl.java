@@ -28,6 +28,11 @@ final class ProgressStatusBarImpl implements ProgressStatusBar {
         controller.updateSuccess(newValue);
     }
 
+    @Override
+    public void updateTotal(int totalCount) {
+        controller.updateTotal(totalCount);
+    }
+
     @Override
     public void addFailures(Collection<KeyedError> failures) {
         controller.addFailures(failures);
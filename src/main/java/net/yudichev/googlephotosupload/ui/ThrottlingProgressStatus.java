@@ -56,6 +56,12 @@ final class ThrottlingProgressStatus implements ProgressStatus {
         eventSink.accept(() -> delegate.updateSuccess(successCount.get()));
     }
 
+    @Override
+    public void updateTotal(int totalCount) {
+        ensureNotClosed();
+        eventSink.accept(() -> delegate.updateTotal(totalCount));
+    }
+
     @Override
     public void addFailure(KeyedError keyedError) {
         ensureNotClosed();
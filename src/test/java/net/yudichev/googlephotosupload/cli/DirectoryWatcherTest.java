@@ -0,0 +1,87 @@
+package net.yudichev.googlephotosupload.cli;
+
+import com.google.common.io.MoreFiles;
+import net.yudichev.googlephotosupload.core.Preferences;
+import net.yudichev.googlephotosupload.core.Uploader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static com.google.common.io.RecursiveDeleteOption.ALLOW_INSECURE;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class DirectoryWatcherTest {
+    @Mock
+    private Uploader uploader;
+    private Path root;
+    private DirectoryWatcher directoryWatcher;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        root = Files.createTempDirectory(getClass().getSimpleName());
+        Files.createDirectory(root.resolve("album"));
+        directoryWatcher = new DirectoryWatcher(uploader, () -> Preferences.builder().build(), Duration.ofSeconds(1));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        directoryWatcher.close();
+        MoreFiles.deleteRecursively(root, ALLOW_INSECURE);
+    }
+
+    @Test
+    void uploadsChangesOnceTheirDirectoryHasSettled() throws Exception {
+        when(uploader.uploadChanges(any(), any())).thenReturn(completedFuture(null));
+        directoryWatcher.watch(root, () -> completedFuture(null));
+
+        var photo = root.resolve("album").resolve("photo.jpg");
+        Files.write(photo, new byte[]{0});
+        Files.write(photo, new byte[]{0, 1});
+
+        verify(uploader, after(200).never()).uploadChanges(any(), any());
+        verify(uploader, timeout(20_000)).uploadChanges(eq(root), argThat((Set<Path> paths) -> paths.contains(photo)));
+        // the series of events is uploaded as a single batch
+        verify(uploader, after(2_000).times(1)).uploadChanges(any(), any());
+    }
+
+    @Test
+    void uploadsFilesInDirectoriesCreatedWhileWatching() throws Exception {
+        when(uploader.uploadChanges(any(), any())).thenReturn(completedFuture(null));
+        directoryWatcher.watch(root, () -> completedFuture(null));
+
+        var newAlbum = Files.createDirectory(root.resolve("new-album"));
+        verify(uploader, timeout(20_000)).uploadChanges(eq(root), argThat((Set<Path> paths) -> paths.contains(newAlbum)));
+
+        var photo = newAlbum.resolve("photo.jpg");
+        Files.write(photo, new byte[]{0});
+        verify(uploader, timeout(20_000)).uploadChanges(eq(root), argThat((Set<Path> paths) -> paths.contains(photo)));
+    }
+
+    @Test
+    void doesNotUploadChangesUntilInitialUploadSucceeds() throws Exception {
+        directoryWatcher.watch(root, CompletableFuture::new);
+
+        Files.write(root.resolve("album").resolve("photo.jpg"), new byte[]{0});
+
+        verify(uploader, after(3_000).never()).uploadChanges(any(), any());
+    }
+}
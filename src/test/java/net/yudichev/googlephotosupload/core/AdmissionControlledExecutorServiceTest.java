@@ -0,0 +1,77 @@
+package net.yudichev.googlephotosupload.core;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+class AdmissionControlledExecutorServiceTest {
+    private ExecutorService delegate;
+    private AdmissionControlledExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        delegate = Executors.newSingleThreadExecutor();
+        executor = new AdmissionControlledExecutorService(delegate, 1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        delegate.shutdownNow();
+    }
+
+    @Test
+    void holdsWorkBackUntilAdmittedWorkCompletes() {
+        var admittedWork = new CompletableFuture<Void>();
+        executor.withPermit(() -> admittedWork);
+        var started = new AtomicBoolean();
+
+        executor.withPermit(() -> {
+            started.set(true);
+            return CompletableFuture.completedFuture(null);
+        });
+        assertThat(started.get(), is(false));
+        assertThat(executor.getAdmissionQueueDepth(), is(1));
+
+        admittedWork.complete(null);
+
+        assertThat(started.get(), is(true));
+    }
+
+    @Test
+    void releasesPermitOfFailedWork() {
+        executor.withPermit(() -> CompletableFuture.failedFuture(new RuntimeException("failed")));
+        executor.withPermit(() -> {
+            throw new IllegalStateException("thrown");
+        });
+
+        assertThat(executor.withPermit(() -> CompletableFuture.completedFuture(null)).isDone(), is(true));
+    }
+
+    @Test
+    void raisingPermitsAdmitsWaitingWork() {
+        executor.withPermit(CompletableFuture::new);
+        var admission = executor.withPermit(() -> CompletableFuture.completedFuture(null));
+
+        executor.setPermits(2);
+
+        assertThat(admission.isDone(), is(true));
+    }
+
+    @Test
+    void letsWaitingWorkThroughOnceShutDown() {
+        executor.withPermit(CompletableFuture::new);
+        var admission = executor.withPermit(() -> CompletableFuture.completedFuture(null));
+
+        executor.shutdownNow();
+
+        assertThat(admission.isDone(), is(true));
+    }
+}
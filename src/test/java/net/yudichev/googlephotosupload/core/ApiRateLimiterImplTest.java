@@ -0,0 +1,124 @@
+package net.yudichev.googlephotosupload.core;
+
+import net.yudichev.jiotty.common.time.CurrentDateTimeProvider;
+import net.yudichev.jiotty.common.varstore.VarStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.Optional;
+
+import static net.yudichev.googlephotosupload.core.ApiQuotaGroup.CREATE_MEDIA_ITEMS;
+import static net.yudichev.googlephotosupload.core.ApiQuotaGroup.UPLOAD;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ApiRateLimiterImplTest {
+    private static final Instant START_OF_QUOTA_DAY = LocalDateTime.of(2020, 1, 1, 0, 0).atZone(ZoneId.of("America/Los_Angeles")).toInstant();
+
+    @Mock
+    private VarStore varStore;
+    @Mock
+    private StateSaverFactory stateSaverFactory;
+    @Mock
+    private StateSaver stateSaver;
+    private Instant currentInstant;
+    private ApiRateLimiterImpl rateLimiter;
+
+    @BeforeEach
+    void setUp() {
+        currentInstant = START_OF_QUOTA_DAY;
+        when(stateSaverFactory.create(anyString(), any())).thenReturn(stateSaver);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (rateLimiter != null) {
+            rateLimiter.stop();
+        }
+    }
+
+    @Test
+    void doesNotLimitDailyRequestsWithoutBudget() {
+        start(0);
+
+        assertThat(acquireAll(CREATE_MEDIA_ITEMS, 10), is(true));
+    }
+
+    @Test
+    void doesNotRateLimitUploads() {
+        start(10);
+
+        assertThat(acquireAll(UPLOAD, 1000), is(true));
+    }
+
+    @Test
+    void spreadsRemainingBudgetOverRestOfDay() {
+        // an hour before the reset, the group's share of 6 calls allows one call every 10 minutes
+        currentInstant = START_OF_QUOTA_DAY.plusSeconds(23 * 3600);
+        start(10);
+
+        assertThat(rateLimiter.acquire(CREATE_MEDIA_ITEMS, false).isDone(), is(true));
+        assertThat(rateLimiter.acquire(CREATE_MEDIA_ITEMS, false).isDone(), is(false));
+    }
+
+    @Test
+    void countsNeitherRetriesNorUploads() {
+        start(10_000_000);
+
+        assertThat(acquireAll(CREATE_MEDIA_ITEMS, 5), is(true));
+        rateLimiter.acquire(CREATE_MEDIA_ITEMS, true);
+        rateLimiter.acquire(UPLOAD, false);
+        rateLimiter.stop();
+        rateLimiter = null;
+
+        verify(varStore).saveValue("apiQuotaUsage", ApiQuotaUsage.of("2020-01-01", Map.of(CREATE_MEDIA_ITEMS, 5L)));
+    }
+
+    @Test
+    void waitsForResetOnceGroupShareIsUsedUp() {
+        when(varStore.readValue(ApiQuotaUsage.class, "apiQuotaUsage"))
+                .thenReturn(Optional.of(ApiQuotaUsage.of("2020-01-01", Map.of(CREATE_MEDIA_ITEMS, 5_999_999L))));
+        start(10_000_000);
+
+        assertThat(rateLimiter.acquire(CREATE_MEDIA_ITEMS, false).isDone(), is(true));
+        assertThat(rateLimiter.acquire(CREATE_MEDIA_ITEMS, false).isDone(), is(false));
+        assertThat(rateLimiter.acquire(ApiQuotaGroup.ALBUM, false).isDone(), is(true));
+    }
+
+    private void start(long dailyRequestBudget) {
+        rateLimiter = new ApiRateLimiterImpl(varStore, new CurrentDateTimeProvider() {
+            @Override
+            public LocalDateTime currentDateTime() {
+                return LocalDateTime.ofInstant(currentInstant(), ZoneOffset.UTC);
+            }
+
+            @Override
+            public Instant currentInstant() {
+                return currentInstant;
+            }
+        }, stateSaverFactory, dailyRequestBudget);
+        rateLimiter.start();
+    }
+
+    private boolean acquireAll(ApiQuotaGroup group, int count) {
+        var allDone = true;
+        for (int i = 0; i < count; i++) {
+            allDone &= rateLimiter.acquire(group, false).isDone();
+        }
+        return allDone;
+    }
+}
@@ -0,0 +1,60 @@
+package net.yudichev.googlephotosupload.core;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+class AsyncSemaphoreTest {
+    private AsyncSemaphore semaphore;
+
+    @BeforeEach
+    void setUp() {
+        semaphore = new AsyncSemaphore(2);
+    }
+
+    @Test
+    void waitersGetReleasedPermitsInOrder() {
+        assertThat(semaphore.acquire().isDone(), is(true));
+        assertThat(semaphore.acquire().isDone(), is(true));
+        var firstWaiter = semaphore.acquire();
+        var secondWaiter = semaphore.acquire();
+        assertThat(firstWaiter.isDone(), is(false));
+        assertThat(semaphore.queueDepth(), is(2));
+
+        semaphore.release();
+        assertThat(firstWaiter.isDone(), is(true));
+        assertThat(secondWaiter.isDone(), is(false));
+
+        semaphore.release();
+        assertThat(secondWaiter.isDone(), is(true));
+        assertThat(semaphore.queueDepth(), is(0));
+    }
+
+    @Test
+    void raisingPermitsAdmitsWaiters() {
+        semaphore.acquire();
+        semaphore.acquire();
+        var waiter = semaphore.acquire();
+
+        semaphore.setPermits(3);
+
+        assertThat(waiter.isDone(), is(true));
+    }
+
+    @Test
+    void loweringPermitsHoldsWaitersUntilEnoughAreReleased() {
+        semaphore.acquire();
+        semaphore.acquire();
+        semaphore.setPermits(1);
+        var waiter = semaphore.acquire();
+
+        semaphore.release();
+        assertThat(waiter.isDone(), is(false));
+
+        semaphore.release();
+        assertThat(waiter.isDone(), is(true));
+        assertThat(semaphore.availablePermits(), is(0));
+    }
+}
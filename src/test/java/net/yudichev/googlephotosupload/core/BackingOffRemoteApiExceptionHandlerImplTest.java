@@ -0,0 +1,59 @@
+package net.yudichev.googlephotosupload.core;
+
+import com.google.api.client.util.BackOff;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.DeadlineExceededException;
+import com.google.api.gax.rpc.ResourceExhaustedException;
+import io.grpc.Status;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class BackingOffRemoteApiExceptionHandlerImplTest {
+    @Mock
+    private UploadConcurrencyController uploadConcurrencyController;
+    private BackOff operationBackOff;
+    private QuotaGate quotaGate;
+    private BackingOffRemoteApiExceptionHandlerImpl handler;
+
+    @BeforeEach
+    void setUp() {
+        var backOffProvider = new BackOffProvider(60_000);
+        operationBackOff = backOffProvider.get();
+        quotaGate = new QuotaGateImpl(backOffProvider.get());
+        handler = new BackingOffRemoteApiExceptionHandlerImpl(quotaGate, uploadConcurrencyController);
+    }
+
+    @Test
+    void transientErrorDelaysOnlyItsOwnOperation() {
+        var admission = quotaGate.admit().getNow(null);
+
+        var backOffMs = handler.handle("op", new DeadlineExceededException(
+                new RuntimeException("deadline"), GrpcStatusCode.of(Status.Code.DEADLINE_EXCEEDED), true), admission, () -> operationBackOff);
+
+        assertThat(backOffMs.isPresent(), is(true));
+        assertThat(quotaGate.admit().isDone(), is(true));
+    }
+
+    @Test
+    void quotaErrorPausesAllCalls() {
+        var admission = quotaGate.admit().getNow(null);
+
+        var backOffMs = handler.handle("op", new ResourceExhaustedException(
+                new RuntimeException("exhausted"), GrpcStatusCode.of(Status.Code.RESOURCE_EXHAUSTED), true), admission, () -> operationBackOff);
+
+        assertThat(backOffMs.isPresent(), is(true));
+        CompletableFuture<Admission> nextAdmission = quotaGate.admit();
+        assertThat(nextAdmission.isDone(), is(false));
+        verify(uploadConcurrencyController).onThrottled();
+    }
+}
@@ -0,0 +1,143 @@
+package net.yudichev.googlephotosupload.core;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import net.yudichev.jiotty.common.varstore.VarStore;
+import net.yudichev.jiotty.connector.google.photos.GooglePhotosAlbum;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static net.yudichev.googlephotosupload.core.ResourceBundleModule.RESOURCE_BUNDLE;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class CloudAlbumsProviderImplTest {
+    private static final String VAR_STORE_KEY = "albumCatalogue";
+    private static final LongConsumer NO_BACKOFF_CONSUMER = backoffDelayMs -> {};
+
+    @Mock
+    private VarStore varStore;
+    @Captor
+    private ArgumentCaptor<AlbumCatalogue> catalogueCaptor;
+    private RecordingGooglePhotosClient googlePhotosClient;
+    private CompletableFuture<Void> listAlbumsRelease;
+    private CloudAlbumsProviderImpl provider;
+
+    @BeforeEach
+    void setUp() {
+        googlePhotosClient = new RecordingGooglePhotosClient();
+        listAlbumsRelease = new CompletableFuture<>();
+        googlePhotosClient.holdListAlbumsUntil(listAlbumsRelease);
+        ExecutorService executorService = MoreExecutors.newDirectExecutorService();
+        provider = new CloudAlbumsProviderImpl(new CloudOperationHelper() {
+            @Override
+            public <T> CompletableFuture<T> withBackOffAndRetry(String operationName,
+                                                               ApiQuotaGroup quotaGroup,
+                                                               Supplier<CompletableFuture<T>> action,
+                                                               LongConsumer backoffEventConsumer) {
+                return action.get();
+            }
+        }, googlePhotosClient, () -> executorService, new RecordingProgressStatusFactory(), RESOURCE_BUNDLE, varStore);
+    }
+
+    @AfterEach
+    void tearDown() {
+        provider.stop();
+    }
+
+    @Test
+    void usesSavedAlbumWithoutWaitingForReload() {
+        var album = createAlbumInCloud("album");
+        whenCatalogueSaved(CachedAlbum.of(album.getId(), "album", 0, album.getAlbumUrl()));
+        provider.start();
+
+        var albums = provider.albumsWithTitle("album", NO_BACKOFF_CONSUMER);
+
+        assertThat(albums.getNow(null), contains(album));
+    }
+
+    @Test
+    void waitsForReloadIfSavedAlbumWasRenamed() {
+        var album = createAlbumInCloud("new title");
+        whenCatalogueSaved(CachedAlbum.of(album.getId(), "old title", 0, album.getAlbumUrl()));
+        provider.start();
+
+        var albums = provider.albumsWithTitle("old title", NO_BACKOFF_CONSUMER);
+        assertThat(albums.isDone(), is(false));
+        listAlbumsRelease.complete(null);
+
+        assertThat(albums.getNow(null), is(empty()));
+        assertThat(provider.albumsWithTitle("new title", NO_BACKOFF_CONSUMER).getNow(null), contains(album));
+        verify(varStore).saveValue(eq(VAR_STORE_KEY), catalogueCaptor.capture());
+        assertThat(catalogueCaptor.getValue().albums(), hasItem(CachedAlbum.of(album.getId(), "new title", 0, album.getAlbumUrl())));
+    }
+
+    @Test
+    void waitsForReloadIfSavedAlbumWasDeleted() {
+        whenCatalogueSaved(CachedAlbum.of("deleted-album-id", "album", 0, "http://photos.com/deleted-album-id"));
+        provider.start();
+
+        var albums = provider.albumsWithTitle("album", NO_BACKOFF_CONSUMER);
+        assertThat(albums.isDone(), is(false));
+        listAlbumsRelease.complete(null);
+
+        assertThat(albums.getNow(null), is(empty()));
+    }
+
+    @Test
+    void startsFailedReloadAgainOnNextLookup() {
+        provider.start();
+        var albumsOnFailedReload = provider.albumsWithTitle("album", NO_BACKOFF_CONSUMER);
+        listAlbumsRelease.completeExceptionally(new RuntimeException("listing failed"));
+        assertThat(albumsOnFailedReload.isCompletedExceptionally(), is(true));
+
+        var album = createAlbumInCloud("album");
+        googlePhotosClient.holdListAlbumsUntil(completedFuture(null));
+
+        assertThat(provider.albumsWithTitle("album", NO_BACKOFF_CONSUMER).getNow(null), contains(album));
+    }
+
+    @Test
+    void keepsAlbumCreatedWhileReloadWasInProgress() {
+        provider.start();
+        provider.refresh();
+        // created in another client, so that the reload does not see it
+        var album = new RecordingGooglePhotosClient().createAlbum("created", directExecutor()).join();
+        provider.onAlbumCreated(album);
+
+        listAlbumsRelease.complete(null);
+
+        assertThat(provider.albumsWithTitle("created", NO_BACKOFF_CONSUMER).getNow(null), contains(album));
+        verify(varStore).saveValue(eq(VAR_STORE_KEY), catalogueCaptor.capture());
+        assertThat(catalogueCaptor.getValue().albums(), hasItem(CachedAlbum.of(album.getId(), "created", 0, album.getAlbumUrl())));
+    }
+
+    private GooglePhotosAlbum createAlbumInCloud(String title) {
+        return googlePhotosClient.createAlbum(title, directExecutor()).join();
+    }
+
+    private void whenCatalogueSaved(CachedAlbum cachedAlbum) {
+        when(varStore.readValue(AlbumCatalogue.class, VAR_STORE_KEY)).thenReturn(Optional.of(AlbumCatalogue.of(List.of(cachedAlbum))));
+    }
+}
@@ -0,0 +1,53 @@
+package net.yudichev.googlephotosupload.core;
+
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+/**
+ * Compares {@link ExclusionMatcher} with matching every exclusion pattern as a separate regular expression, which is
+ * how file names used to be checked during a scan.
+ */
+final class ExclusionMatcherBenchmark {
+    private static final int NAME_COUNT = 1_000_000;
+    private static final int ITERATIONS = 5;
+
+    public static void main(String[] args) {
+        var names = new String[NAME_COUNT];
+        for (var i = 0; i < NAME_COUNT; i++) {
+            names[i] = switch (i % 100) {
+                case 0 -> "Thumbs.db";
+                case 1 -> ".DS_Store";
+                case 2 -> "notes " + i + ".txt";
+                case 3 -> ".picasa.ini";
+                default -> i % 2 == 0 ? "IMG_" + i + ".JPG" : "VID_" + i + ".mp4";
+            };
+        }
+        Set<String> patterns = Preferences.builder().build().scanExclusionPatterns();
+
+        List<Pattern> regularExpressions = patterns.stream().map(Pattern::compile).collect(toImmutableList());
+        measure("regular expressions", names,
+                name -> regularExpressions.stream().anyMatch(pattern -> pattern.matcher(name).matches()));
+        var exclusionMatcher = new ExclusionMatcher(patterns);
+        measure("exclusion matcher", names, exclusionMatcher::matches);
+    }
+
+    private static void measure(String name, String[] fileNames, Predicate<String> matcher) {
+        var matchCount = 0;
+        var bestNanos = Long.MAX_VALUE;
+        for (var i = 0; i < ITERATIONS; i++) {
+            matchCount = 0;
+            var start = System.nanoTime();
+            for (var fileName : fileNames) {
+                if (matcher.test(fileName)) {
+                    matchCount++;
+                }
+            }
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+        System.out.printf("%s: %,d ms, %,d ns per name, %,d matches%n", name, bestNanos / 1_000_000, bestNanos / fileNames.length, matchCount);
+    }
+}
@@ -0,0 +1,50 @@
+package net.yudichev.googlephotosupload.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+final class ExclusionMatcherTest {
+    private static final List<String> NAMES = List.of(
+            "", ".", "..", ".DS_Store", "DS_Store", "DS_Stores", "xDS_Store",
+            "Thumbs.db", "Thumbs_db", "thumbs.db", "Thumbs.db.jpg",
+            ".picasaoriginals", "picasaoriginals", "Picasa.ini", "picasa.INI", ".picasa.ini", "Picasa.ini.bak",
+            "notes.txt", "setup.exe", "index.htm", "index.html", "txt", ".txt", "a.TXT",
+            "desktop.ini", "desktop_ini", "IMG_0001.JPG", "movie.mp4",
+            "line\nbreak.txt", "\n.txt", "Thumbs\ndb", "a .txt",
+            "😀.txt", "Thumbs😀db", "😀",
+            "aa.jpg", "ab.jpg", "aa", "bb", "cc", "\\1", "😀😀");
+
+    @Test
+    void matchesLikeRegularExpressionsWithDefaultPatterns() {
+        assertMatchesLikeRegularExpressions(Preferences.builder().build().scanExclusionPatterns());
+    }
+
+    @Test
+    void matchesLikeRegularExpressionsWithOtherPatterns() {
+        assertMatchesLikeRegularExpressions(Set.of("IMG_\\d+\\.JPG", "movie.*", "(?i)thumbs\\.db", "[a-z].*\\.ini", "\\.\\.*"));
+    }
+
+    @Test
+    void matchesLikeRegularExpressionsWithPatternsReferringToTheirGroups() {
+        assertMatchesLikeRegularExpressions(Set.of("(a)\\1.*", "(?<x>b)\\k<x>", "(?<x>c)c", "(.)\\1", "\\\\1", "movie.*"));
+    }
+
+    @Test
+    void matchesNothingWithoutPatterns() {
+        assertMatchesLikeRegularExpressions(Set.of());
+    }
+
+    private static void assertMatchesLikeRegularExpressions(Set<String> patterns) {
+        var matcher = new ExclusionMatcher(patterns);
+        for (var name : NAMES) {
+            var expected = patterns.stream().anyMatch(pattern -> Pattern.compile(pattern).matcher(name).matches());
+            assertThat(name, matcher.matches(name), equalTo(expected));
+        }
+    }
+}
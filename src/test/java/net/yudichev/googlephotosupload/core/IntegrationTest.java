@@ -1,13 +1,10 @@
 package net.yudichev.googlephotosupload.core;
 
-import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.google.common.collect.ImmutableList;
 import com.google.inject.Guice;
 import net.yudichev.googlephotosupload.core.RecordingGooglePhotosClient.Album;
 import net.yudichev.jiotty.common.app.Application;
 import net.yudichev.jiotty.common.async.ExecutorModule;
-import net.yudichev.jiotty.common.lang.Json;
-import net.yudichev.jiotty.common.lang.PackagePrivateImmutablesStyle;
 import net.yudichev.jiotty.common.varstore.VarStore;
 import net.yudichev.jiotty.common.varstore.VarStoreModule;
 import net.yudichev.jiotty.connector.google.photos.GoogleMediaItem;
@@ -17,7 +14,6 @@ import org.apache.commons.cli.DefaultParser;
 import org.hamcrest.CustomTypeSafeMatcher;
 import org.hamcrest.FeatureMatcher;
 import org.hamcrest.Matcher;
-import org.immutables.value.Value.Immutable;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -29,13 +25,18 @@ import java.io.IOException;
 import java.net.URL;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.security.SecureRandom;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
 import java.util.stream.IntStream;
 
 import static com.google.common.collect.ImmutableList.of;
@@ -48,6 +49,7 @@ import static java.time.Instant.now;
 import static java.util.stream.Collectors.toList;
 import static net.yudichev.googlephotosupload.cli.CliOptions.OPTIONS;
 import static net.yudichev.googlephotosupload.core.IntegrationTestUploadStarter.getLastFailure;
+import static net.yudichev.googlephotosupload.core.IntegrationTestUploadStarter.uploadChangesInNextRun;
 import static net.yudichev.googlephotosupload.core.OptionalMatchers.emptyOptional;
 import static net.yudichev.googlephotosupload.core.OptionalMatchers.optionalWithValue;
 import static net.yudichev.jiotty.common.lang.MoreThrowables.asUnchecked;
@@ -139,6 +141,92 @@ final class IntegrationTest {
         assertNoRecordedProgressErrors();
     }
 
+    @Test
+    void retriesCallsFailingWithTransientErrors() throws Exception {
+        googlePhotosClient.enableUnavailableExceptions();
+
+        doUploadTest();
+
+        getLastFailure().ifPresent(Assertions::fail);
+        assertNoRecordedProgressErrors();
+    }
+
+    @Test
+    void countsRequestsOtherThanUploadsAgainstDailyBudgetWithoutRetries() throws Exception {
+        googlePhotosClient.enableResourceExhaustedExceptions();
+
+        doExecuteUpload(builder -> builder.withDailyRequestBudget(10_000_000));
+
+        getLastFailure().ifPresent(Assertions::fail);
+        assertNoRecordedProgressErrors();
+        doVerifyGoogleClientState();
+        var varStore = Guice.createInjector(new VarStoreModule(varStoreAppName)).getInstance(VarStore.class);
+        var quotaUsage = varStore.readValue(ApiQuotaUsage.class, "apiQuotaUsage").orElseThrow();
+        // one request per album, each failing twice before succeeding
+        assertThat(quotaUsage.requestCountByGroup(), hasEntry(ApiQuotaGroup.CREATE_MEDIA_ITEMS, 3L));
+        assertThat(quotaUsage.requestCountByGroup(), not(hasKey(ApiQuotaGroup.UPLOAD)));
+    }
+
+    @Test
+    void uploadsAllDirectoriesWithOneActiveAtATime() throws Exception {
+        doExecuteUpload(builder -> builder.withMaxActiveDirectories(1));
+
+        getLastFailure().ifPresent(Assertions::fail);
+        assertNoRecordedProgressErrors();
+        doVerifyGoogleClientState();
+    }
+
+    @Test
+    void uploadsOnlyChangedPathsInTheirAlbums() throws Exception {
+        doUploadTest();
+        getLastFailure().ifPresent(Assertions::fail);
+
+        var newOuterAlbumPhoto = Files.write(outerAlbumPhoto.resolveSibling("new-outer-album-photo.jpg"), new byte[]{3});
+        var newAlbumDir = Files.createDirectory(root.resolve("new-album"));
+        var newAlbumPhoto = Files.write(newAlbumDir.resolve("new-album-photo.jpg"), new byte[]{4});
+        uploadChangesInNextRun(Set.of(newOuterAlbumPhoto, newAlbumDir));
+        doExecuteUpload();
+
+        getLastFailure().ifPresent(Assertions::fail);
+        assertNoRecordedProgressErrors();
+        assertThat(googlePhotosClient.getAllItems(), hasItems(
+                allOf(itemForFile(newOuterAlbumPhoto), itemInAlbumWithId(equalTo("outer-album"))),
+                allOf(itemForFile(newAlbumPhoto), itemInAlbumWithId(equalTo("new-album")))));
+        googlePhotosClient.getAllItems().forEach(item -> assertThat(item.getUploadCount(), is(1)));
+    }
+
+    @Test
+    void addsAlreadyUploadedContentToAlbumInsteadOfUploadingItAgain() throws Exception {
+        doExecuteUpload(builder -> builder.withContentDeduplication(true));
+        getLastFailure().ifPresent(Assertions::fail);
+
+        var copiesAlbumDir = Files.createDirectory(root.resolve("copies-album"));
+        var copyOfOuterAlbumPhoto = Files.copy(outerAlbumPhoto, copiesAlbumDir.resolve("copy-of-outer-album-photo.jpg"));
+        doExecuteUpload(builder -> builder.withContentDeduplication(true));
+
+        getLastFailure().ifPresent(Assertions::fail);
+        assertNoRecordedProgressErrors();
+        assertThat(googlePhotosClient.getAllItems(), not(hasItem(itemForFile(copyOfOuterAlbumPhoto))));
+        assertThat(googlePhotosClient.getAllAlbums(), hasItem(allOf(
+                albumWithId("copies-album"),
+                albumWithItems(contains(itemForFile(outerAlbumPhoto))))));
+        googlePhotosClient.getAllItems().forEach(item -> assertThat(item.getUploadCount(), is(1)));
+    }
+
+    @Test
+    void uploadsIdenticalContentAgainWithoutDeduplication() throws Exception {
+        doUploadTest();
+        getLastFailure().ifPresent(Assertions::fail);
+
+        var copiesAlbumDir = Files.createDirectory(root.resolve("copies-album"));
+        var copyOfOuterAlbumPhoto = Files.copy(outerAlbumPhoto, copiesAlbumDir.resolve("copy-of-outer-album-photo.jpg"));
+        doExecuteUpload();
+
+        getLastFailure().ifPresent(Assertions::fail);
+        assertThat(googlePhotosClient.getAllItems(), hasItem(
+                allOf(itemForFile(copyOfOuterAlbumPhoto), itemInAlbumWithId(equalTo("copies-album")))));
+    }
+
     @Test
     void ignoresExcludedFile() throws Exception {
         var invalidPhoto = root.resolve("excluded-file.txt");
@@ -164,8 +252,8 @@ final class IntegrationTest {
                         "INVALID_ARGUMENT: createMediaItems"))));
         doVerifyGoogleClientState();
 
-        var varStoreData = readVarStoreDirectly();
-        Map<String, ItemState> uploadedMediaItemIdByAbsolutePath = varStoreData.photosUploader().uploadedMediaItemIdByAbsolutePath();
+        var uploadState = readUploadStateDirectly();
+        Map<String, ItemState> uploadedMediaItemIdByAbsolutePath = uploadState.uploadedMediaItemIdByAbsolutePath();
         assertThat(uploadedMediaItemIdByAbsolutePath.values(), hasSize(4));
 
         var invalidItemPathString = invalidMediaItemPath.toAbsolutePath().toString();
@@ -175,7 +263,7 @@ final class IntegrationTest {
                 uploadMediaItemStateHavingToken(startsWith(invalidItemPathString)),
                 uploadMediaItemStateHavingInstant(equalTo(EPOCH))))));
 
-        doVerifyJpegFilesInVarStore(varStoreData);
+        doVerifyJpegFilesInUploadState(uploadState);
     }
 
     @Test
@@ -192,11 +280,11 @@ final class IntegrationTest {
                         "INVALID_ARGUMENT: uploadMediaData"))));
         doVerifyGoogleClientState();
 
-        var varStoreData = readVarStoreDirectly();
-        Map<String, ItemState> uploadedMediaItemIdByAbsolutePath = varStoreData.photosUploader().uploadedMediaItemIdByAbsolutePath();
+        var uploadState = readUploadStateDirectly();
+        Map<String, ItemState> uploadedMediaItemIdByAbsolutePath = uploadState.uploadedMediaItemIdByAbsolutePath();
         assertThat(uploadedMediaItemIdByAbsolutePath.values(), hasSize(3));
 
-        doVerifyJpegFilesInVarStore(varStoreData);
+        doVerifyJpegFilesInUploadState(uploadState);
     }
 
     @Test
@@ -466,8 +554,8 @@ final class IntegrationTest {
 
         assertThat(googlePhotosClient.getAllItems(), hasItem(allOf(itemForFile(invalidMediaItemPath), itemWithNoAlbum())));
 
-        var varStoreData = readVarStoreDirectly();
-        Map<String, ItemState> uploadedMediaItemIdByAbsolutePath = varStoreData.photosUploader().uploadedMediaItemIdByAbsolutePath();
+        var uploadState = readUploadStateDirectly();
+        Map<String, ItemState> uploadedMediaItemIdByAbsolutePath = uploadState.uploadedMediaItemIdByAbsolutePath();
 
         var invalidItemPathString = invalidMediaItemPath.toAbsolutePath().toString();
         var invalidItemState = uploadedMediaItemIdByAbsolutePath.get(invalidItemPathString);
@@ -572,6 +660,73 @@ final class IntegrationTest {
         filesPaths.forEach(path -> assertThat(googlePhotosClient.getAllItems(), hasItem(itemForFile(path))));
     }
 
+    @Test
+    void createsItemsOutsideOfAlbumsWhileRestOfDirectoryIsStillBeingUploaded() throws Exception {
+        var uploadedFile = root.resolve("uploaded.jpg");
+        var heldFile = root.resolve("held.jpg");
+        Files.write(uploadedFile, new byte[]{10});
+        Files.write(heldFile, new byte[]{11});
+        var heldUploadRelease = new CompletableFuture<Void>();
+        googlePhotosClient.holdUploadUntil(heldFile, heldUploadRelease);
+        var createdWhileUploadHeld = CompletableFuture.supplyAsync(() -> {
+            var deadline = now().plusSeconds(10);
+            boolean created;
+            while (!(created = hasItem(itemForFile(uploadedFile)).matches(googlePhotosClient.getAllItems())) && now().isBefore(deadline)) {
+                asUnchecked(() -> Thread.sleep(50));
+            }
+            heldUploadRelease.complete(null);
+            return created;
+        });
+
+        doExecuteUpload();
+
+        getLastFailure().ifPresent(Assertions::fail);
+        assertNoRecordedProgressErrors();
+        assertThat(createdWhileUploadHeld.get(), is(true));
+        assertThat(googlePhotosClient.getAllItems(), hasItems(itemForFile(uploadedFile), itemForFile(heldFile)));
+    }
+
+    @Test
+    void addsMoreThan50ItemsToAlbumInTheOrderOfTheirFilesModificationTimes() throws Exception {
+        var albumDirPath = Files.createDirectory(root.resolve("largeSortedAlbum")).toAbsolutePath();
+        // the newest files are the largest, so they are uploaded first
+        var filePaths = IntStream.range(0, 60)
+                .mapToObj(i -> albumDirPath.resolve("file" + i + ".jpg"))
+                .collect(toImmutableList());
+        for (var i = 0; i < filePaths.size(); i++) {
+            Files.write(filePaths.get(i), new byte[i + 1]);
+            Files.setLastModifiedTime(filePaths.get(i), FileTime.from(Instant.parse("2020-01-01T00:00:00Z").plusSeconds(i)));
+        }
+
+        doExecuteUpload();
+
+        getLastFailure().ifPresent(Assertions::fail);
+        assertNoRecordedProgressErrors();
+        assertThat(itemIdsOfAlbum("largeSortedAlbum"), equalTo(filePaths.stream().map(Path::toString).collect(toList())));
+    }
+
+    @Test
+    void addsDeduplicatedItemsToAlbumInTheOrderOfTheirFilesModificationTimes() throws Exception {
+        doExecuteUpload(builder -> builder.withContentDeduplication(true));
+        getLastFailure().ifPresent(Assertions::fail);
+
+        var albumDirPath = Files.createDirectory(root.resolve("mixed-album")).toAbsolutePath();
+        var firstPhoto = Files.write(albumDirPath.resolve("first.jpg"), new byte[]{10});
+        var copyOfOuterAlbumPhoto = Files.copy(outerAlbumPhoto, albumDirPath.resolve("copy-of-outer-album-photo.jpg"));
+        var lastPhoto = Files.write(albumDirPath.resolve("last.jpg"), new byte[]{11});
+        Files.setLastModifiedTime(firstPhoto, FileTime.from(Instant.parse("2020-01-01T00:00:00Z")));
+        Files.setLastModifiedTime(copyOfOuterAlbumPhoto, FileTime.from(Instant.parse("2020-01-02T00:00:00Z")));
+        Files.setLastModifiedTime(lastPhoto, FileTime.from(Instant.parse("2020-01-03T00:00:00Z")));
+        doExecuteUpload(builder -> builder.withContentDeduplication(true));
+
+        getLastFailure().ifPresent(Assertions::fail);
+        assertNoRecordedProgressErrors();
+        assertThat(itemIdsOfAlbum("mixed-album"), contains(
+                firstPhoto.toString(),
+                outerAlbumPhoto.toAbsolutePath().toString(),
+                lastPhoto.toString()));
+    }
+
     @Test
     void addsItemsToAlbumInTheOrderOfTheirCreationTime() throws Exception {
         var albumWithSortedFilesPath = root.resolve("albumWithSortedFiles").toAbsolutePath();
@@ -583,6 +738,10 @@ final class IntegrationTest {
         Files.write(file3, new byte[]{0});
         Files.write(file1, new byte[]{0});
         Files.write(file2, new byte[]{0});
+        // creation time is not known until the items are created, so they are created in the order of modification
+        Files.setLastModifiedTime(file1, FileTime.from(Instant.parse("2020-01-01T00:00:00Z")));
+        Files.setLastModifiedTime(file2, FileTime.from(Instant.parse("2020-01-02T00:00:00Z")));
+        Files.setLastModifiedTime(file3, FileTime.from(Instant.parse("2020-01-03T00:00:00Z")));
 
         doExecuteUpload();
 
@@ -599,16 +758,166 @@ final class IntegrationTest {
                 itemForFile(file3)));
     }
 
+    @Test
+    void reusesStateOfMovedRootDirectoryUntilFullyUploadedFromNewLocation() throws Exception {
+        doUploadTest();
+        getLastFailure().ifPresent(Assertions::fail);
+        var uploadedItems = googlePhotosClient.getAllItems();
+
+        var previousRoot = root;
+        root = Files.createTempDirectory(getClass().getSimpleName());
+        Files.delete(root);
+        Files.move(previousRoot, root);
+        rootPhoto = root.resolve(previousRoot.relativize(rootPhoto));
+        outerAlbumPhoto = root.resolve(previousRoot.relativize(outerAlbumPhoto));
+        innerAlbumPhoto = root.resolve(previousRoot.relativize(innerAlbumPhoto));
+
+        // the first run from the new location is interrupted
+        var failedPhoto = root.resolve("failOnMe.jpg");
+        Files.write(failedPhoto, new byte[]{0});
+        doExecuteUpload();
+        assertThat(getLastFailure(), optionalWithValue());
+
+        Files.delete(failedPhoto);
+        doExecuteUpload();
+
+        getLastFailure().ifPresent(Assertions::fail);
+        assertNoRecordedProgressErrors();
+        assertThat(googlePhotosClient.getAllItems(), containsInAnyOrder(uploadedItems.toArray()));
+        googlePhotosClient.getAllItems().forEach(mediaItem -> assertThat(mediaItem.getUploadCount(), is(1)));
+        assertThat(readUploadStateDirectly().uploadedMediaItemIdByAbsolutePath().keySet(), containsInAnyOrder(
+                rootPhoto.toAbsolutePath().toString(),
+                outerAlbumPhoto.toAbsolutePath().toString(),
+                innerAlbumPhoto.toAbsolutePath().toString()));
+    }
+
+    @Test
+    void keepsStateOfMovedRootDirectoryWhileFilesFailToUploadFromNewLocation() throws Exception {
+        doUploadTest();
+        getLastFailure().ifPresent(Assertions::fail);
+        var previousRootPhoto = rootPhoto;
+
+        var previousRoot = root;
+        root = Files.createTempDirectory(getClass().getSimpleName());
+        Files.delete(root);
+        Files.move(previousRoot, root);
+        rootPhoto = root.resolve(previousRoot.relativize(rootPhoto));
+        outerAlbumPhoto = root.resolve(previousRoot.relativize(outerAlbumPhoto));
+        innerAlbumPhoto = root.resolve(previousRoot.relativize(innerAlbumPhoto));
+
+        var failedPhoto = root.resolve("failOnMeWithInvalidArgumentDuringUploadIngMediaData.jpg");
+        Files.write(failedPhoto, new byte[]{0});
+        doExecuteUpload();
+        getLastFailure().ifPresent(Assertions::fail);
+        assertThat(readUploadStateDirectly().uploadedMediaItemIdByAbsolutePath().keySet(), hasItem(previousRootPhoto.toAbsolutePath().toString()));
+
+        Files.delete(failedPhoto);
+        doExecuteUpload();
+
+        getLastFailure().ifPresent(Assertions::fail);
+        assertThat(readUploadStateDirectly().uploadedMediaItemIdByAbsolutePath().keySet(), containsInAnyOrder(
+                rootPhoto.toAbsolutePath().toString(),
+                outerAlbumPhoto.toAbsolutePath().toString(),
+                innerAlbumPhoto.toAbsolutePath().toString()));
+    }
+
+    @Test
+    void reUploadsOnlyFileChangedSinceUploaded() throws Exception {
+        doUploadTest();
+        getLastFailure().ifPresent(Assertions::fail);
+
+        Files.write(outerAlbumPhoto, new byte[]{1, 1});
+        doExecuteUpload();
+
+        getLastFailure().ifPresent(Assertions::fail);
+        assertNoRecordedProgressErrors();
+        assertUploadCounts(outerAlbumPhoto);
+
+        // the fingerprint of the changed file is saved with its new state
+        doExecuteUpload();
+
+        getLastFailure().ifPresent(Assertions::fail);
+        assertUploadCounts(outerAlbumPhoto);
+    }
+
+    @Test
+    void reUploadsFileEditedInPlaceInDirectoryWithCachedScanIfCachedFilesAreRechecked() throws Exception {
+        // directories modified this recently are not cached
+        TestTimeModule.advanceTimeBy(Duration.between(EPOCH, now().plus(Duration.ofMinutes(1))));
+        doExecuteUpload(builder -> builder.withCachedFileRecheck(true));
+        getLastFailure().ifPresent(Assertions::fail);
+
+        var outerAlbumDirLastModified = Files.getLastModifiedTime(outerAlbumPhoto.getParent());
+        Files.write(outerAlbumPhoto, new byte[]{1, 1});
+        assertThat(Files.getLastModifiedTime(outerAlbumPhoto.getParent()), equalTo(outerAlbumDirLastModified));
+        doExecuteUpload(builder -> builder.withCachedFileRecheck(true));
+
+        getLastFailure().ifPresent(Assertions::fail);
+        assertNoRecordedProgressErrors();
+        assertUploadCounts(outerAlbumPhoto);
+    }
+
+    @Test
+    void reusesCachedFilesOfUnmodifiedDirectoryWithoutReadingThemAgain() throws Exception {
+        // directories modified this recently are not cached
+        TestTimeModule.advanceTimeBy(Duration.between(EPOCH, now().plus(Duration.ofMinutes(1))));
+        doExecuteUpload();
+        getLastFailure().ifPresent(Assertions::fail);
+
+        Files.write(outerAlbumPhoto, new byte[]{1, 1});
+        doExecuteUpload();
+
+        getLastFailure().ifPresent(Assertions::fail);
+        assertNoRecordedProgressErrors();
+        // a file edited in place is only picked up by watch mode or when cached files are rechecked
+        googlePhotosClient.getAllItems().forEach(mediaItem -> assertThat(mediaItem.getUploadCount(), is(1)));
+    }
+
+    @Test
+    void keepsStateRecordedInMemoryMappedStoreWhenSwitchingStores() throws Exception {
+        doExecuteUpload();
+        getLastFailure().ifPresent(Assertions::fail);
+
+        Files.write(root.resolve("photo-uploaded-with-memory-mapped-store.jpg"), new byte[]{3});
+        doExecuteUpload(builder -> builder.withMemoryMappedStateStore(true));
+        getLastFailure().ifPresent(Assertions::fail);
+
+        Files.write(root.resolve("photo-uploaded-without-memory-mapped-store.jpg"), new byte[]{4});
+        doExecuteUpload();
+        getLastFailure().ifPresent(Assertions::fail);
+
+        doExecuteUpload(builder -> builder.withMemoryMappedStateStore(true));
+
+        getLastFailure().ifPresent(Assertions::fail);
+        assertNoRecordedProgressErrors();
+        googlePhotosClient.getAllItems().forEach(mediaItem -> assertThat(mediaItem.getUploadCount(), is(1)));
+    }
+
+    private List<String> itemIdsOfAlbum(String title) {
+        var album = (Album) googlePhotosClient.getAllAlbums().stream()
+                .filter(createdGooglePhotosAlbum -> title.equals(createdGooglePhotosAlbum.getTitle()))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Could not find album '" + title + "'"));
+        return album.getItems().stream()
+                .map(GoogleMediaItem::getId)
+                .collect(toList());
+    }
+
     private void assertNoRecordedProgressErrors() {
         progressStatusFactory.getRecordedErrorsByProgressName().values().forEach(keyedErrors -> assertThat(keyedErrors, is(empty())));
     }
 
-    private VarStoreData readVarStoreDirectly() throws IOException {
-        return Json.parse(Files.readString(varStoreDir.resolve("data.json")), VarStoreData.class);
+    private void assertUploadCounts(Path reUploadedFile) {
+        googlePhotosClient.getAllItems().forEach(mediaItem -> assertThat(mediaItem.getUploadCount(),
+                is(mediaItem.getId().equals(reUploadedFile.toAbsolutePath().toString()) ? 2 : 1)));
+    }
+
+    private UploadState readUploadStateDirectly() throws IOException {
+        return UploadStateCodec.decode(Files.readAllBytes(varStoreDir.resolve("photosUploader.state")));
     }
 
-    private void doVerifyJpegFilesInVarStore(VarStoreData varStoreData) {
-        Map<String, ItemState> uploadedMediaItemIdByAbsolutePath = varStoreData.photosUploader().uploadedMediaItemIdByAbsolutePath();
+    private void doVerifyJpegFilesInUploadState(UploadState uploadState) {
+        Map<String, ItemState> uploadedMediaItemIdByAbsolutePath = uploadState.uploadedMediaItemIdByAbsolutePath();
         var innerPhotoPath = innerAlbumPhoto.toAbsolutePath().toString();
         var outerPhotoPath = outerAlbumPhoto.toAbsolutePath().toString();
         var rootPhotoPath = rootPhoto.toAbsolutePath().toString();
@@ -637,9 +946,9 @@ final class IntegrationTest {
 
         doVerifyGoogleClientState();
 
-        var varStoreData = readVarStoreDirectly();
-        assertThat(varStoreData.photosUploader().uploadedMediaItemIdByAbsolutePath().values(), hasSize(3));
-        doVerifyJpegFilesInVarStore(varStoreData);
+        var uploadState = readUploadStateDirectly();
+        assertThat(uploadState.uploadedMediaItemIdByAbsolutePath().values(), hasSize(3));
+        doVerifyJpegFilesInUploadState(uploadState);
     }
 
     private void doVerifyGoogleClientState() {
@@ -671,6 +980,11 @@ final class IntegrationTest {
     }
 
     private void doExecuteUpload(String... additionalCommandLineOptions) throws InterruptedException {
+        doExecuteUpload(UnaryOperator.identity(), additionalCommandLineOptions);
+    }
+
+    private void doExecuteUpload(UnaryOperator<UploadPhotosModule.Builder> moduleCustomizer,
+                                 String... additionalCommandLineOptions) throws InterruptedException {
         CommandLineParser parser = new DefaultParser();
         var commandLine = getAsUnchecked(() -> parser.parse(OPTIONS, ImmutableList.<String>builder()
                 .add("-r", root.toString())
@@ -683,9 +997,12 @@ final class IntegrationTest {
                     .addModule(TestTimeModule::new)
                     .addModule(ExecutorModule::new)
                     .addModule(() -> new VarStoreModule(varStoreAppName))
+                    .addModule(() -> new TestSettingsRootDirModule(varStoreDir))
                     .addModule(() -> new MockGooglePhotosModule(googlePhotosClient))
                     .addModule(ResourceBundleModule::new)
-                    .addModule(() -> new UploadPhotosModule(1))
+                    .addModule(() -> moduleCustomizer.apply(UploadPhotosModule.builder()
+                            .withBackOffInitialDelayMs(1))
+                            .build())
                     .addModule(() -> new IntegrationTestUploadStarterModule(commandLine, progressStatusFactory))
                     .build()
                     .run();
@@ -848,11 +1165,4 @@ final class IntegrationTest {
             }
         };
     }
-
-    @Immutable
-    @PackagePrivateImmutablesStyle
-    @JsonDeserialize
-    interface BaseVarStoreData {
-        UploadState photosUploader();
-    }
 }
@@ -8,12 +8,14 @@ import javax.inject.Inject;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 final class IntegrationTestUploadStarter extends BaseLifecycleComponent {
     private static final AtomicReference<Throwable> lastFailure = new AtomicReference<>();
+    private static final AtomicReference<Set<Path>> changedPaths = new AtomicReference<>();
     private final Path rootDir;
     private final Uploader uploader;
     private final ApplicationLifecycleControl applicationLifecycleControl;
@@ -33,9 +35,18 @@ final class IntegrationTestUploadStarter extends BaseLifecycleComponent {
         return Optional.ofNullable(lastFailure.get());
     }
 
+    /**
+     * Makes the next run upload only the specified changes, as the watch mode does, instead of the whole root directory.
+     */
+    public static void uploadChangesInNextRun(Set<Path> paths) {
+        changedPaths.set(paths);
+    }
+
     @Override
     protected void doStart() {
-        uploader.upload(rootDir, resume)
+        Optional.ofNullable(changedPaths.getAndSet(null))
+                .map(paths -> uploader.uploadChanges(rootDir, paths))
+                .orElseGet(() -> uploader.upload(rootDir, resume))
                 .whenComplete((aVoid, throwable) -> lastFailure.set(throwable))
                 .whenComplete((ignored1, ignored2) -> applicationLifecycleControl.initiateShutdown());
     }
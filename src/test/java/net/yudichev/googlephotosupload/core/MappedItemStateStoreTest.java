@@ -0,0 +1,123 @@
+package net.yudichev.googlephotosupload.core;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.io.MoreFiles.deleteRecursively;
+import static com.google.common.io.RecursiveDeleteOption.ALLOW_INSECURE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static net.yudichev.googlephotosupload.core.OptionalMatchers.emptyOptional;
+import static net.yudichev.googlephotosupload.core.OptionalMatchers.optionalWithValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+final class MappedItemStateStoreTest {
+    private Path dir;
+    private MappedItemStateStore store;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory(getClass().getSimpleName());
+        store = openStore();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        store.close();
+        deleteRecursively(dir, ALLOW_INSECURE);
+    }
+
+    @Test
+    void returnsLatestValueForKey() {
+        store.put("/a", bytes("1"));
+        store.put("/b", bytes("2"));
+        store.put("/a", bytes("3"));
+
+        assertThat(store.get("/a").map(MappedItemStateStoreTest::string), optionalWithValue(equalTo("3")));
+        assertThat(store.get("/b").map(MappedItemStateStoreTest::string), optionalWithValue(equalTo("2")));
+        assertThat(store.get("/c"), emptyOptional());
+        assertThat(store.size(), is(2));
+    }
+
+    @Test
+    void survivesGrowthAndReopening() {
+        var count = 100_000;
+        for (var i = 0; i < count; i++) {
+            store.put("/dir/file" + i, bytes("value" + i));
+        }
+        store.close();
+        store = openStore();
+
+        assertThat(store.size(), is(count));
+        for (var i = 0; i < count; i += 997) {
+            assertThat(store.get("/dir/file" + i).map(MappedItemStateStoreTest::string), optionalWithValue(equalTo("value" + i)));
+        }
+        Map<String, String> all = new HashMap<>();
+        store.forEach((key, value) -> all.put(key, string(value)));
+        assertThat(all.size(), is(count));
+    }
+
+    @Test
+    void clearRemovesEverything() {
+        store.put("/a", bytes("1"));
+
+        store.clear();
+        store.put("/b", bytes("2"));
+
+        assertThat(store.get("/a"), emptyOptional());
+        assertThat(store.get("/b").map(MappedItemStateStoreTest::string), optionalWithValue(equalTo("2")));
+        assertThat(store.size(), is(1));
+    }
+
+    @Test
+    void copyLeavesSupersededRecordsBehind() {
+        store.put("/a", bytes("1"));
+        store.put("/a", bytes("2"));
+        store.put("/b", bytes("3"));
+        store.setCounter(42);
+        assertThat(store.supersededRecordCount(), is(1L));
+
+        try (var copy = new MappedItemStateStore(dir.resolve("copy-index"), dir.resolve("copy-data"))) {
+            store.copyTo(copy);
+
+            assertThat(copy.supersededRecordCount(), is(0L));
+            assertThat(copy.get("/a").map(MappedItemStateStoreTest::string), optionalWithValue(equalTo("2")));
+            assertThat(copy.get("/b").map(MappedItemStateStoreTest::string), optionalWithValue(equalTo("3")));
+            assertThat(copy.counter(), is(42L));
+        }
+    }
+
+    @Test
+    void keepsCounterAcrossGrowthAndReopening() {
+        assertThat(store.counter(), is(-1L));
+        store.setCounter(7);
+        for (var i = 0; i < 100_000; i++) {
+            store.put("/dir/file" + i, bytes("value" + i));
+        }
+        store.close();
+        store = openStore();
+
+        assertThat(store.counter(), is(7L));
+        assertThat(store.supersededRecordCount(), is(0L));
+    }
+
+    private MappedItemStateStore openStore() {
+        return new MappedItemStateStore(dir.resolve("index"), dir.resolve("data"));
+    }
+
+    private static byte[] bytes(String string) {
+        return string.getBytes(UTF_8);
+    }
+
+    private static String string(byte[] bytes) {
+        return new String(bytes, UTF_8);
+    }
+}
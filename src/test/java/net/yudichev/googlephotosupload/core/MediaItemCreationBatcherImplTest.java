@@ -0,0 +1,170 @@
+package net.yudichev.googlephotosupload.core;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import net.yudichev.jiotty.common.async.ExecutorFactory;
+import net.yudichev.jiotty.common.async.SchedulingExecutor;
+import net.yudichev.jiotty.connector.google.photos.GoogleMediaItem;
+import net.yudichev.jiotty.connector.google.photos.GooglePhotosClient;
+import net.yudichev.jiotty.connector.google.photos.MediaItemOrError;
+import net.yudichev.jiotty.connector.google.photos.NewMediaItem;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.time.Instant.EPOCH;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class MediaItemCreationBatcherImplTest {
+    private static final LongConsumer NO_BACKOFF_CONSUMER = backoffDelayMs -> {};
+
+    @Mock
+    private GooglePhotosClient googlePhotosClient;
+    @Mock
+    private ExecutorFactory executorFactory;
+    @Mock
+    private SchedulingExecutor schedulingExecutor;
+    @Mock
+    private GoogleMediaItem mediaItem;
+    @Captor
+    private ArgumentCaptor<Runnable> scheduledFlushCaptor;
+    @Captor
+    private ArgumentCaptor<List<NewMediaItem>> newMediaItemsCaptor;
+    private ExecutorService executorService;
+    private MediaItemCreationBatcherImpl batcher;
+    private boolean stopped;
+
+    @BeforeEach
+    void setUp() {
+        executorService = MoreExecutors.newDirectExecutorService();
+        when(executorFactory.createSingleThreadedSchedulingExecutor(anyString())).thenReturn(schedulingExecutor);
+        batcher = new MediaItemCreationBatcherImpl(googlePhotosClient, () -> executorService, new CloudOperationHelper() {
+            @Override
+            public <T> CompletableFuture<T> withBackOffAndRetry(String operationName,
+                                                               ApiQuotaGroup quotaGroup,
+                                                               Supplier<CompletableFuture<T>> action,
+                                                               LongConsumer backoffEventConsumer) {
+                return action.get();
+            }
+        }, executorFactory);
+        batcher.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (!stopped) {
+            batcher.stop();
+        }
+    }
+
+    @Test
+    void sendsItemsOutsideOfAlbumsInOneRequestOnceFullRegardlessOfTheirDirectory() {
+        whenCreateMediaItemsSucceeds();
+
+        var futures = IntStream.range(0, 50)
+                .mapToObj(i -> batcher.create(Optional.empty(), newMediaItem("directory" + i + "-photo"), EPOCH, NO_BACKOFF_CONSUMER))
+                .collect(toImmutableList());
+
+        verify(googlePhotosClient).createMediaItems(eq(Optional.empty()), newMediaItemsCaptor.capture(), eq(executorService));
+        assertThat(newMediaItemsCaptor.getValue(), hasSize(50));
+        assertThat(futures.stream().map(CompletableFuture::isDone).collect(toImmutableList()), everyItem(is(true)));
+    }
+
+    @Test
+    void sendsPartialBatchesPerAlbumOnceDelayElapses() {
+        whenCreateMediaItemsSucceeds();
+
+        var future1 = batcher.create(Optional.of("album1"), newMediaItem("photo1"), EPOCH, NO_BACKOFF_CONSUMER);
+        var future2 = batcher.create(Optional.of("album1"), newMediaItem("photo2"), EPOCH, NO_BACKOFF_CONSUMER);
+        var future3 = batcher.create(Optional.of("album2"), newMediaItem("photo3"), EPOCH, NO_BACKOFF_CONSUMER);
+        verify(googlePhotosClient, never()).createMediaItems(any(), anyList(), any());
+        // one delayed flush per batch
+        verify(schedulingExecutor, times(2)).schedule(any(Duration.class), scheduledFlushCaptor.capture());
+
+        scheduledFlushCaptor.getAllValues().forEach(Runnable::run);
+
+        verify(googlePhotosClient).createMediaItems(eq(Optional.of("album1")), newMediaItemsCaptor.capture(), eq(executorService));
+        assertThat(newMediaItemsCaptor.getValue(), contains(newMediaItem("photo1"), newMediaItem("photo2")));
+        verify(googlePhotosClient).createMediaItems(eq(Optional.of("album2")), newMediaItemsCaptor.capture(), eq(executorService));
+        assertThat(newMediaItemsCaptor.getValue(), contains(newMediaItem("photo3")));
+        assertThat(future1.isDone() && future2.isDone() && future3.isDone(), is(true));
+    }
+
+    @Test
+    void sendsItemsInTheOrderOfTheirFilesModificationTimes() {
+        whenCreateMediaItemsSucceeds();
+
+        batcher.create(Optional.of("album"), newMediaItem("photo3"), EPOCH.plusSeconds(3), NO_BACKOFF_CONSUMER);
+        batcher.create(Optional.of("album"), newMediaItem("photo1"), EPOCH.plusSeconds(1), NO_BACKOFF_CONSUMER);
+        batcher.create(Optional.of("album"), newMediaItem("photo2"), EPOCH.plusSeconds(2), NO_BACKOFF_CONSUMER);
+        verify(schedulingExecutor).schedule(any(Duration.class), scheduledFlushCaptor.capture());
+        scheduledFlushCaptor.getValue().run();
+
+        verify(googlePhotosClient).createMediaItems(eq(Optional.of("album")), newMediaItemsCaptor.capture(), eq(executorService));
+        assertThat(newMediaItemsCaptor.getValue(), contains(newMediaItem("photo1"), newMediaItem("photo2"), newMediaItem("photo3")));
+    }
+
+    @Test
+    void sendsPendingBatchesOnStop() {
+        whenCreateMediaItemsSucceeds();
+        var future = batcher.create(Optional.empty(), newMediaItem("photo"), EPOCH, NO_BACKOFF_CONSUMER);
+
+        batcher.stop();
+        stopped = true;
+
+        assertThat(future.isDone(), is(true));
+    }
+
+    @Test
+    void delayedFlushOfBatchAlreadySentAsFullDoesNothing() {
+        whenCreateMediaItemsSucceeds();
+        IntStream.range(0, 50).forEach(i -> batcher.create(Optional.empty(), newMediaItem("photo" + i), EPOCH, NO_BACKOFF_CONSUMER));
+        verify(schedulingExecutor).schedule(any(Duration.class), scheduledFlushCaptor.capture());
+
+        scheduledFlushCaptor.getValue().run();
+
+        verify(googlePhotosClient).createMediaItems(any(), anyList(), any());
+    }
+
+    private void whenCreateMediaItemsSucceeds() {
+        when(googlePhotosClient.createMediaItems(any(), anyList(), any())).thenAnswer(invocation -> {
+            List<NewMediaItem> newMediaItems = invocation.getArgument(1);
+            List<MediaItemOrError> result = new ArrayList<>();
+            newMediaItems.forEach(newMediaItem -> result.add(MediaItemOrError.item(mediaItem)));
+            return completedFuture(result);
+        });
+    }
+
+    private static NewMediaItem newMediaItem(String uploadToken) {
+        return NewMediaItem.of(uploadToken, Optional.empty());
+    }
+}
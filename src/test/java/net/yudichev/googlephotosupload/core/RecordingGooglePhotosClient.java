@@ -3,6 +3,7 @@ package net.yudichev.googlephotosupload.core;
 import com.google.api.gax.grpc.GrpcStatusCode;
 import com.google.api.gax.rpc.InvalidArgumentException;
 import com.google.api.gax.rpc.ResourceExhaustedException;
+import com.google.api.gax.rpc.UnavailableException;
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
@@ -44,9 +45,12 @@ final class RecordingGooglePhotosClient implements GooglePhotosClient {
     private final Map<String, Album> albumsById = new LinkedHashMap<>();
     private final Map<String, Integer> albumIdSuffixByName = new LinkedHashMap<>();
     private final Map<Object, Integer> resourceExhaustionCountByKey = new LinkedHashMap<>();
+    private final Map<Path, CompletableFuture<?>> uploadReleaseByFile = new LinkedHashMap<>();
+    private CompletableFuture<?> listAlbumsRelease = CompletableFuture.completedFuture(null);
     private final Object lock = new Object();
 
     private boolean resourceExhaustedExceptions;
+    private boolean unavailableExceptions;
     @SuppressWarnings("FieldAccessedSynchronizedAndUnsynchronized") // analysis failure
     private boolean fileNameBasedFailuresEnabled = true;
 
@@ -56,7 +60,11 @@ final class RecordingGooglePhotosClient implements GooglePhotosClient {
 
     @Override
     public CompletableFuture<String> uploadMediaData(Path file, Executor executor) {
-        return CompletableFuture.supplyAsync(() -> {
+        CompletableFuture<?> uploadRelease;
+        synchronized (lock) {
+            uploadRelease = uploadReleaseByFile.getOrDefault(file.toAbsolutePath(), CompletableFuture.completedFuture(null));
+        }
+        return uploadRelease.thenApplyAsync(ignored -> {
             synchronized (lock) {
                 if (fileNameBasedFailuresEnabled) {
                     if (file.toString().endsWith("failOnMe.jpg")) {
@@ -66,7 +74,7 @@ final class RecordingGooglePhotosClient implements GooglePhotosClient {
                         throw invalidArgumentException("uploadMediaData");
                     }
                 }
-                simulateResourceExhaustion(ImmutableSet.of("uploadMediaData", file));
+                simulateTransientFailure(ImmutableSet.of("uploadMediaData", file));
                 var binary = new MediaBinary(file);
                 binariesByUploadToken.put(binary.getUploadToken(), binary);
                 return binary.getUploadToken();
@@ -82,7 +90,7 @@ final class RecordingGooglePhotosClient implements GooglePhotosClient {
                 if (newMediaItems.size() > 50) {
                     throw invalidArgumentException("Request must have less than 50 items");
                 }
-                simulateResourceExhaustion(ImmutableSet.of("createMediaItems", albumId, newMediaItems));
+                simulateTransientFailure(ImmutableSet.of("createMediaItems", albumId, newMediaItems));
 
                 albumId
                         .filter(s -> fileNameBasedFailuresEnabled)
@@ -135,7 +143,7 @@ final class RecordingGooglePhotosClient implements GooglePhotosClient {
                 if (fileNameBasedFailuresEnabled && name.endsWith("failOnMe")) {
                     throw new RuntimeException("album creation failed");
                 }
-                simulateResourceExhaustion(ImmutableSet.of("createAlbum", name));
+                simulateTransientFailure(ImmutableSet.of("createAlbum", name));
                 var album = new Album(name, generateAlbumId(name));
                 albumsById.put(album.getId(), album);
                 return album;
@@ -145,9 +153,13 @@ final class RecordingGooglePhotosClient implements GooglePhotosClient {
 
     @Override
     public CompletableFuture<List<GooglePhotosAlbum>> listAlbums(IntConsumer loadedAlbumCountProgressCallback, Executor executor) {
-        return CompletableFuture.supplyAsync(() -> {
+        CompletableFuture<?> release;
+        synchronized (lock) {
+            release = listAlbumsRelease;
+        }
+        return release.thenApplyAsync(ignored -> {
             synchronized (lock) {
-                simulateResourceExhaustion(ImmutableSet.of("listAlbums"));
+                simulateTransientFailure(ImmutableSet.of("listAlbums"));
                 return ImmutableList.copyOf(albumsById.values());
             }
         }, executor);
@@ -157,7 +169,7 @@ final class RecordingGooglePhotosClient implements GooglePhotosClient {
     public CompletableFuture<GooglePhotosAlbum> getAlbum(String albumId, Executor executor) {
         return CompletableFuture.supplyAsync(() -> {
             synchronized (lock) {
-                simulateResourceExhaustion(ImmutableSet.of("getAlbum", albumId));
+                simulateTransientFailure(ImmutableSet.of("getAlbum", albumId));
                 GooglePhotosAlbum album = albumsById.get(albumId);
                 checkArgument(album != null, "unknown album id: %s", albumId);
                 return album;
@@ -171,6 +183,24 @@ final class RecordingGooglePhotosClient implements GooglePhotosClient {
         }
     }
 
+    void enableUnavailableExceptions() {
+        synchronized (lock) {
+            unavailableExceptions = true;
+        }
+    }
+
+    void holdUploadUntil(Path file, CompletableFuture<?> release) {
+        synchronized (lock) {
+            uploadReleaseByFile.put(file.toAbsolutePath(), release);
+        }
+    }
+
+    void holdListAlbumsUntil(CompletableFuture<?> release) {
+        synchronized (lock) {
+            listAlbumsRelease = release;
+        }
+    }
+
     void disableFileNameBaseFailures() {
         synchronized (lock) {
             fileNameBasedFailuresEnabled = false;
@@ -199,8 +229,8 @@ final class RecordingGooglePhotosClient implements GooglePhotosClient {
         return idSuffix == 0 ? name : name + idSuffix;
     }
 
-    private void simulateResourceExhaustion(Object key) {
-        if (!resourceExhaustedExceptions) {
+    private void simulateTransientFailure(Object key) {
+        if (!resourceExhaustedExceptions && !unavailableExceptions) {
             return;
         }
         int currentCount = resourceExhaustionCountByKey.compute(key, (ignored, count) -> {
@@ -210,13 +240,19 @@ final class RecordingGooglePhotosClient implements GooglePhotosClient {
             return --count;
         });
         if (currentCount > 0) {
-            logger.debug("Simulating resource exhaustion for {}, retries left: {}", key, currentCount);
+            logger.debug("Simulating transient failure for {}, retries left: {}", key, currentCount);
+            if (unavailableExceptions) {
+                throw new UnavailableException(
+                        new RuntimeException("unavailable"),
+                        GrpcStatusCode.of(Status.Code.UNAVAILABLE),
+                        true);
+            }
             throw new ResourceExhaustedException(
                     new RuntimeException("exhausted"),
                     GrpcStatusCode.of(Status.Code.RESOURCE_EXHAUSTED),
                     true);
         } else {
-            logger.debug("Resource exhaustion count depleted for {} ({}), not simulating exhaustion", key, currentCount);
+            logger.debug("Transient failure count depleted for {} ({}), not simulating failure", key, currentCount);
         }
     }
 
@@ -412,7 +448,7 @@ final class RecordingGooglePhotosClient implements GooglePhotosClient {
                 throw invalidArgumentException("No permission to add media items to this album");
             }
             synchronized (lock) {
-                simulateResourceExhaustion(ImmutableSet.of("addMediaItemsByIds", mediaItemsIds));
+                simulateTransientFailure(ImmutableSet.of("addMediaItemsByIds", mediaItemsIds));
                 mediaItemsIds.stream()
                         .map(mediaItemId -> checkNotNull(itemsById.get(mediaItemId), "unknown item id: %s", mediaItemId))
                         .forEach(items::add);
@@ -426,7 +462,7 @@ final class RecordingGooglePhotosClient implements GooglePhotosClient {
                         checkArgument(!mediaItemsIds.isEmpty(), "list must contain at least one media item");
                         checkArgument(mediaItemsIds.size() < 50, "Request must have less than 50 items, but was %s", mediaItemsIds.size());
                         synchronized (lock) {
-                            simulateResourceExhaustion(ImmutableSet.of("removeMediaItemsByIds", mediaItemsIds));
+                            simulateTransientFailure(ImmutableSet.of("removeMediaItemsByIds", mediaItemsIds));
                             internalRemoveMediaItemsById(mediaItemsIds);
                         }
                     },
@@ -444,7 +480,7 @@ final class RecordingGooglePhotosClient implements GooglePhotosClient {
             return CompletableFuture.supplyAsync(
                     () -> {
                         synchronized (lock) {
-                            simulateResourceExhaustion(ImmutableSet.of("getMediaItems"));
+                            simulateTransientFailure(ImmutableSet.of("getMediaItems"));
                             return ImmutableList.copyOf(items);
                         }
                     },
@@ -22,6 +22,10 @@ final class RecordingProgressStatusFactory implements ProgressStatusFactory {
             public void incrementSuccessBy(int increment) {
             }
 
+            @Override
+            public void updateTotal(int totalCount) {
+            }
+
             @Override
             public void onBackoffDelay(long backoffDelayMs) {
             }
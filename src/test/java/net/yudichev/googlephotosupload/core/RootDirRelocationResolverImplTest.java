@@ -0,0 +1,105 @@
+package net.yudichev.googlephotosupload.core;
+
+import com.google.common.io.MoreFiles;
+import com.google.inject.Guice;
+import net.yudichev.jiotty.common.varstore.VarStore;
+import net.yudichev.jiotty.common.varstore.VarStoreModule;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+
+import static com.google.common.io.RecursiveDeleteOption.ALLOW_INSECURE;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+
+class RootDirRelocationResolverImplTest {
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private Path dir;
+    private Path varStoreDir;
+    private VarStore varStore;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory(getClass().getSimpleName());
+        var varStoreAppName = getClass().getSimpleName() + RANDOM.nextInt();
+        varStoreDir = Paths.get(System.getProperty("user.home"), "." + varStoreAppName);
+        varStore = Guice.createInjector(new VarStoreModule(varStoreAppName)).getInstance(VarStore.class);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (Files.exists(varStoreDir)) {
+            MoreFiles.deleteRecursively(varStoreDir, ALLOW_INSECURE);
+        }
+        MoreFiles.deleteRecursively(dir, ALLOW_INSECURE);
+    }
+
+    @Test
+    void keepsPreviousLocationUntilStateIsMoved() throws IOException {
+        var location1 = Files.createDirectory(dir.resolve("location1"));
+        register(location1);
+        var location2 = Files.move(location1, dir.resolve("location2"));
+        register(location2);
+
+        // the run from the new location did not complete
+        var resolver = register(location2);
+        assertThat(resolver.previousLocations(location2.resolve("photo.jpg")), contains(location1.resolve("photo.jpg")));
+        assertThat(resolver.vacatedRootDirs(), contains(location1));
+
+        resolver.forgetPreviousLocations();
+        assertThat(resolver.previousLocations(location2.resolve("photo.jpg")), empty());
+        assertThat(register(location2).previousLocations(location2.resolve("photo.jpg")), empty());
+    }
+
+    @Test
+    void keepsAllPreviousLocationsWhenMovedAgain() throws IOException {
+        var location1 = Files.createDirectory(dir.resolve("location1"));
+        register(location1);
+        var location2 = Files.move(location1, dir.resolve("location2"));
+        register(location2);
+        var location3 = Files.move(location2, dir.resolve("location3"));
+
+        var resolver = register(location3);
+        assertThat(resolver.previousLocations(location3.resolve("photo.jpg")), contains(
+                location2.resolve("photo.jpg"),
+                location1.resolve("photo.jpg")));
+    }
+
+    @Test
+    void doesNotReportLocationTakenByAnotherRootAsVacated() throws IOException {
+        var location1 = Files.createDirectory(dir.resolve("location1"));
+        register(location1);
+        var location2 = Files.move(location1, dir.resolve("location2"));
+        var resolver = register(location2);
+        register(Files.createDirectory(location1));
+
+        assertThat(resolver.previousLocations(location2.resolve("photo.jpg")), contains(location1.resolve("photo.jpg")));
+        assertThat(resolver.vacatedRootDirs(), empty());
+    }
+
+    @Test
+    void doesNotReportLocationOfCopiedRootAsVacated() throws IOException {
+        var original = Files.createDirectory(dir.resolve("original"));
+        register(original);
+        var copy = Files.createDirectory(dir.resolve("copy"));
+        Files.copy(original.resolve(RootDirRelocationResolverImpl.MARKER_FILE_NAME), copy.resolve(RootDirRelocationResolverImpl.MARKER_FILE_NAME));
+
+        var resolver = register(copy);
+
+        assertThat(resolver.previousLocations(copy.resolve("photo.jpg")), contains(original.resolve("photo.jpg")));
+        assertThat(resolver.vacatedRootDirs(), empty());
+    }
+
+    private RootDirRelocationResolver register(Path rootDir) {
+        var resolver = new RootDirRelocationResolverImpl(varStore);
+        resolver.register(rootDir);
+        return resolver;
+    }
+}
@@ -0,0 +1,21 @@
+package net.yudichev.googlephotosupload.core;
+
+import com.google.inject.AbstractModule;
+
+import java.nio.file.Path;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static net.yudichev.googlephotosupload.core.Bindings.SettingsRootDir;
+
+final class TestSettingsRootDirModule extends AbstractModule {
+    private final Path settingsRootDir;
+
+    TestSettingsRootDirModule(Path settingsRootDir) {
+        this.settingsRootDir = checkNotNull(settingsRootDir);
+    }
+
+    @Override
+    protected void configure() {
+        bind(Path.class).annotatedWith(SettingsRootDir.class).toInstance(settingsRootDir);
+    }
+}
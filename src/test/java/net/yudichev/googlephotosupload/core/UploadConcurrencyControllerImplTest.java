@@ -0,0 +1,101 @@
+package net.yudichev.googlephotosupload.core;
+
+import net.yudichev.jiotty.common.time.CurrentDateTimeProvider;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.time.Instant.EPOCH;
+import static net.yudichev.jiotty.common.lang.MoreThrowables.getAsUnchecked;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+class UploadConcurrencyControllerImplTest {
+    private Instant currentInstant;
+    private UploadConcurrencyControllerImpl controller;
+    private int initialLimit;
+    private int notifiedLimit;
+
+    @BeforeEach
+    void setUp() {
+        currentInstant = EPOCH;
+        controller = new UploadConcurrencyControllerImpl(new CurrentDateTimeProvider() {
+            @Override
+            public LocalDateTime currentDateTime() {
+                return LocalDateTime.ofInstant(currentInstant(), ZoneOffset.UTC);
+            }
+
+            @Override
+            public Instant currentInstant() {
+                return currentInstant;
+            }
+        });
+        initialLimit = controller.limit();
+        controller.setLimitListener(limit -> notifiedLimit = limit);
+    }
+
+    @Test
+    void raisesLimitByOneWhileThroughputRisesAndLatencyIsStable() {
+        completeSample(1_000_000, Duration.ofSeconds(1));
+        assertThat(controller.limit(), is(initialLimit));
+
+        completeSample(2_000_000, Duration.ofSeconds(2));
+        assertThat(controller.limit(), is(initialLimit + 1));
+        assertThat(notifiedLimit, is(initialLimit + 1));
+
+        completeSample(3_000_000, Duration.ofSeconds(3));
+        assertThat(controller.limit(), is(initialLimit + 2));
+        assertThat(controller.getConcurrencyLimitHistory(), hasSize(2));
+    }
+
+    @Test
+    void holdsLimitWhenThroughputIsFlat() {
+        completeSample(1_000_000, Duration.ofSeconds(1));
+        completeSample(1_020_000, Duration.ofMillis(1020));
+
+        assertThat(controller.limit(), is(initialLimit));
+    }
+
+    @Test
+    void holdsLimitWhenLatencyRises() {
+        completeSample(1_000_000, Duration.ofSeconds(1));
+        completeSample(1_000_000, Duration.ofSeconds(2));
+
+        assertThat(controller.limit(), is(initialLimit));
+    }
+
+    @Test
+    void halvesLimitOncePerSamplingIntervalWhenThrottled() {
+        controller.onThrottled();
+        controller.onThrottled();
+        assertThat(controller.limit(), is(Math.max(1, initialLimit / 2)));
+
+        currentInstant = currentInstant.plusSeconds(10);
+        controller.onThrottled();
+        assertThat(controller.limit(), is(Math.max(1, initialLimit / 4)));
+    }
+
+    @Test
+    void notifiesListenerWithoutHoldingLock() {
+        var limitReadFromAnotherThread = new AtomicInteger();
+        controller.setLimitListener(limit -> limitReadFromAnotherThread.set(
+                getAsUnchecked(() -> CompletableFuture.supplyAsync(controller::limit).get(5, TimeUnit.SECONDS))));
+
+        controller.onThrottled();
+
+        assertThat(limitReadFromAnotherThread.get(), is(Math.max(1, initialLimit / 2)));
+    }
+
+    private void completeSample(long sizeBytes, Duration duration) {
+        currentInstant = currentInstant.plusSeconds(10);
+        controller.onUploadSucceeded(sizeBytes, duration);
+    }
+}
@@ -0,0 +1,51 @@
+package net.yudichev.googlephotosupload.core;
+
+import net.yudichev.jiotty.common.lang.Json;
+
+import java.time.Instant;
+import java.util.function.Supplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Compares {@link UploadStateCodec} with the JSON encoding previously used to persist the upload state.
+ */
+final class UploadStateCodecBenchmark {
+    private static final int ITEM_COUNT = 400_000;
+    private static final int ITERATIONS = 5;
+
+    public static void main(String[] args) {
+        var builder = UploadState.builder();
+        for (var i = 0; i < ITEM_COUNT; i++) {
+            builder.putUploadedMediaItemIdByAbsolutePath(
+                    "/Volumes/photos/archive/" + (2000 + i % 20) + "/album " + i / 200 + "/IMG_" + i + ".JPG",
+                    ItemState.builder()
+                            .setUploadState(UploadMediaItemState.of(
+                                    "CAIS6QIAsYhIdn0-uE3nUU5mMQ7x1YCYGhxYxs0c7SAGPbfzo4LrWx5y5TWStt1l9l5qLnYbSVwdtUDRaz7gpT" + i,
+                                    Instant.ofEpochSecond(1_580_000_000L + i)))
+                            .setMediaId("AHyh5vuE0f2YNq0JKmt1LE3EFCxYwjqnFGzG5mGr2ADnJYwWWP7bFS7RSLSCwmKiYjfm" + i)
+                            .setAlbumId("AHyh5vvZz3SqX2qvXcGAwgnd7wcC4ud2S2ThOGq7_5kGd9aJGxi1wZa" + i / 200)
+                            .build());
+        }
+        var uploadState = builder.build();
+
+        var json = measure("JSON save", () -> Json.stringify(uploadState));
+        measure("JSON load", () -> Json.parse(json, UploadState.class));
+        var binary = measure("binary save", () -> UploadStateCodec.encode(uploadState));
+        measure("binary load", () -> UploadStateCodec.decode(binary));
+
+        System.out.printf("JSON size: %,d bytes, binary size: %,d bytes%n", json.getBytes(UTF_8).length, binary.length);
+    }
+
+    private static <T> T measure(String name, Supplier<T> action) {
+        T result = null;
+        var bestNanos = Long.MAX_VALUE;
+        for (var i = 0; i < ITERATIONS; i++) {
+            var start = System.nanoTime();
+            result = action.get();
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+        System.out.printf("%s: %,d ms%n", name, bestNanos / 1_000_000);
+        return result;
+    }
+}
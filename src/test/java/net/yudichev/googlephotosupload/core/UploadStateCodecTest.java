@@ -0,0 +1,52 @@
+package net.yudichev.googlephotosupload.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+final class UploadStateCodecTest {
+    @Test
+    void roundTripsWholeState() {
+        var uploadState = UploadState.builder()
+                .putUploadedMediaItemIdByAbsolutePath("/photos/2020/b.jpg", ItemState.builder()
+                        .setUploadState(UploadMediaItemState.of("token-b", Instant.ofEpochSecond(1_600_000_000L, 123)))
+                        .setMediaId("media-b")
+                        .setAlbumId("album-1")
+                        .setFingerprint(FileFingerprint.builder()
+                                .setSize(3_000_000L)
+                                .setLastModified(Instant.ofEpochSecond(1_500_000_000L, 456))
+                                .setFileKey("(dev=803,ino=1234)")
+                                .build())
+                        .build())
+                .putUploadedMediaItemIdByAbsolutePath("/photos/2020/a.jpg", ItemState.builder()
+                        .setUploadState(UploadMediaItemState.of("token-a", Instant.ofEpochSecond(-1)))
+                        .setAlbumId("album-1")
+                        .build())
+                .putUploadedMediaItemIdByAbsolutePath("/photos/ünïcödé/c.jpg", ItemState.builder()
+                        .setMediaId("media-c")
+                        .setAlbumId("album-2")
+                        .build())
+                .putUploadedMediaItemIdByAbsolutePath("/photos", ItemState.builder().build())
+                .build();
+
+        assertThat(UploadStateCodec.decode(UploadStateCodec.encode(uploadState)), equalTo(uploadState));
+    }
+
+    @Test
+    void roundTripsItemState() {
+        var itemState = ItemState.builder()
+                .setUploadState(UploadMediaItemState.of("token", Instant.EPOCH))
+                .setMediaId("media")
+                .setAlbumId("album")
+                .setFingerprint(FileFingerprint.builder()
+                        .setSize(0)
+                        .setLastModified(Instant.EPOCH)
+                        .build())
+                .build();
+
+        assertThat(UploadStateCodec.decodeItemState(UploadStateCodec.encodeItemState(itemState)), equalTo(itemState));
+    }
+}